@@ -0,0 +1,32 @@
+package io.github.defective4.trivialpacket.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Entry point of the benchmarks jar. <br>
+ * Accepts the same arguments as the JMH launcher. Unless other profilers are
+ * requested, the GC profiler is enabled, so every benchmark also reports its
+ * allocation rate.
+ */
+public final class BenchmarkRunner {
+
+    private BenchmarkRunner() {}
+
+    @SuppressWarnings("javadoc")
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions cli = new CommandLineOptions(args);
+        if (cli.shouldHelp()) {
+            cli.showHelp();
+            return;
+        }
+        ChainedOptionsBuilder options = new OptionsBuilder().parent(cli);
+        if (cli.getProfilers().isEmpty()) options.addProfiler(GCProfiler.class);
+        Runner runner = new Runner(options.build());
+        if (cli.shouldList()) runner.list();
+        else runner.run();
+    }
+}
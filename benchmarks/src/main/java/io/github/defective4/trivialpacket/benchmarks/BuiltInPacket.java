@@ -0,0 +1,53 @@
+package io.github.defective4.trivialpacket.benchmarks;
+
+import io.github.defective4.trivialpacket.common.packet.Packet;
+import io.github.defective4.trivialpacket.common.packet.client.AuthPacket;
+import io.github.defective4.trivialpacket.common.packet.server.AuthSuccessPacket;
+import io.github.defective4.trivialpacket.common.packet.twoway.CommandPacket;
+import io.github.defective4.trivialpacket.common.packet.twoway.CommandResponsePacket;
+import io.github.defective4.trivialpacket.common.packet.twoway.DisconnectPacket;
+import io.github.defective4.trivialpacket.common.packet.twoway.PingPacket;
+
+/**
+ * Built-in packet types with representative contents
+ */
+public enum BuiltInPacket {
+    AUTH {
+        @Override
+        Packet create() {
+            return new AuthPacket("a-reasonably-long-authorization-token".toCharArray());
+        }
+    },
+    AUTH_SUCCESS {
+        @Override
+        Packet create() {
+            return new AuthSuccessPacket();
+        }
+    },
+    COMMAND {
+        @Override
+        Packet create() {
+            return new CommandPacket(1, "set", new String[] { "user.name", "value", "--force" });
+        }
+    },
+    COMMAND_RESPONSE {
+        @Override
+        Packet create() {
+            return new CommandResponsePacket(1, new byte[256]);
+        }
+    },
+    DISCONNECT {
+        @Override
+        Packet create() {
+            return new DisconnectPacket("Server is shutting down");
+        }
+    },
+    PING {
+        @Override
+        Packet create() {
+            return new PingPacket(System.currentTimeMillis());
+        }
+    };
+
+    abstract Packet create();
+}
@@ -0,0 +1,83 @@
+package io.github.defective4.trivialpacket.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import io.github.defective4.trivialpacket.common.packet.Packet;
+import io.github.defective4.trivialpacket.common.packet.handler.PacketHandler;
+import io.github.defective4.trivialpacket.common.packet.handler.PacketReceiver;
+import io.github.defective4.trivialpacket.common.packet.twoway.CommandPacket;
+import io.github.defective4.trivialpacket.common.packet.twoway.DisconnectPacket;
+import io.github.defective4.trivialpacket.common.packet.twoway.PingPacket;
+
+/**
+ * {@link PacketHandler#handle(Packet)} dispatch to receiver methods
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@SuppressWarnings("javadoc")
+public class DispatchBenchmark {
+
+    private final Packet command = new CommandPacket("echo", new String[] { "Hello" });
+    private BenchmarkHandler handler;
+    private final Packet ping = new PingPacket(1);
+    private final Packet unhandled = new DisconnectPacket("Closed");
+
+    @Benchmark
+    public void command() throws Exception {
+        handler.handle(command);
+    }
+
+    @Benchmark
+    public void ping() throws Exception {
+        handler.handle(ping);
+    }
+
+    @Setup
+    public void setup(Blackhole blackhole) {
+        handler = new BenchmarkHandler(blackhole);
+    }
+
+    @Benchmark
+    public void unhandled() throws Exception {
+        handler.handle(unhandled);
+    }
+
+    public static class BenchmarkHandler extends PacketHandler {
+        private final Blackhole blackhole;
+
+        private BenchmarkHandler(Blackhole blackhole) {
+            this.blackhole = blackhole;
+        }
+
+        @PacketReceiver
+        public void onCommand(CommandPacket packet) {
+            blackhole.consume(packet);
+        }
+
+        @PacketReceiver
+        public void onPing(PingPacket packet) {
+            blackhole.consume(packet);
+        }
+
+        @Override
+        protected void customPacketReceived(Packet packet) {
+            blackhole.consume(packet);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package io.github.defective4.trivialpacket.benchmarks;
+
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyFactory;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.github.defective4.trivialpacket.client.CmdClient;
+import io.github.defective4.trivialpacket.client.event.ClientAdapter;
+import io.github.defective4.trivialpacket.common.io.ConnectionOptions;
+import io.github.defective4.trivialpacket.server.ClientConnection;
+import io.github.defective4.trivialpacket.server.CmdServer;
+import io.github.defective4.trivialpacket.server.TransportMode;
+import io.github.defective4.trivialpacket.server.event.ServerAdapter;
+
+/**
+ * End-to-end command round trips between a {@link CmdServer} and a
+ * {@link CmdClient} connected over loopback, with and without
+ * <code>TCP_NODELAY</code>. <br>
+ * <code>tls</code> transport uses the certificate and key from
+ * <code>examples/ssl</code>. Their directory can be changed with the
+ * <code>trivialpacket.ssl.dir</code> system property.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@SuppressWarnings("javadoc")
+public class LoopbackBenchmark {
+
+    private static final int PIPELINE_DEPTH = 64;
+
+    @Param({ "plain", "selector", "tls" })
+    private String transport;
+
+    @Param({ "16", "4096" })
+    private int responseSize;
+
+    @Param({ "true", "false" })
+    private boolean tcpNoDelay;
+
+    private CmdClient client;
+    private CmdServer server;
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(PIPELINE_DEPTH)
+    public Object pipelined() throws Exception {
+        CompletableFuture<?>[] responses = new CompletableFuture<?>[PIPELINE_DEPTH];
+        for (int i = 0; i < responses.length; i++) responses[i] = client.request("echo");
+        return CompletableFuture.allOf(responses).get();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public byte[] roundTrip() throws Exception {
+        return client.request("echo").get();
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        char[] token = "benchmark".toCharArray();
+        byte[] response = new byte[responseSize];
+        if (transport.equals("tls")) {
+            Path dir = Path.of(System.getProperty("trivialpacket.ssl.dir", "../examples/ssl"));
+            PrivateKey key = KeyFactory
+                    .getInstance("RSA")
+                    .generatePrivate(new PKCS8EncodedKeySpec(Files.readAllBytes(dir.resolve("key.pkcs8"))));
+            Certificate cert;
+            try (InputStream is = new FileInputStream(dir.resolve("cert.pem").toFile())) {
+                cert = CertificateFactory.getInstance("X509").generateCertificate(is);
+            }
+            server = new CmdServer("localhost", port, token, cert, key);
+            client = new CmdClient("localhost", port, token, cert);
+        } else {
+            server = new CmdServer("localhost", port, token);
+            if (transport.equals("selector")) server.setTransportMode(TransportMode.SELECTOR);
+            client = new CmdClient("localhost", port, token);
+        }
+        ConnectionOptions options = ConnectionOptions.builder().tcpNoDelay(tcpNoDelay).build();
+        server.setConnectionOptions(options);
+        client.setConnectionOptions(options);
+        server.addListener(new ServerAdapter() {
+
+            @Override
+            public void commandReceived(ClientConnection connection, String command, String[] args)
+                    throws Exception {
+                connection.respond(response);
+            }
+        });
+        Thread serverThread = new Thread(() -> {
+            try {
+                server.start();
+            } catch (Exception e) {}
+        }, "Benchmark server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+
+        CountDownLatch authorized = new CountDownLatch(1);
+        client.addListener(new ClientAdapter() {
+
+            @Override
+            public void authorized() throws Exception {
+                authorized.countDown();
+            }
+        });
+        for (int attempt = 0; !server.isBound() && attempt < 100; attempt++) Thread.sleep(50);
+        CompletableFuture<Void> connection = client.connectAsync();
+        while (!authorized.await(100, TimeUnit.MILLISECONDS))
+            if (connection.isDone()) connection.join();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        client.close();
+        server.close();
+    }
+}
@@ -0,0 +1,93 @@
+package io.github.defective4.trivialpacket.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.github.defective4.trivialpacket.common.io.BufferPool;
+import io.github.defective4.trivialpacket.common.packet.FrameDecoder;
+import io.github.defective4.trivialpacket.common.packet.Packet;
+
+/**
+ * Encoding and decoding of a single frame, for every built-in packet type
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@SuppressWarnings("javadoc")
+public class PacketCodecBenchmark {
+
+    @Param
+    private BuiltInPacket type;
+
+    private FrameDecoder decoder;
+    private ByteArrayInputStream input;
+    private DataInputStream dataInput;
+    private DataOutputStream dataOutput;
+    private ByteArrayOutputStream output;
+    private Packet packet;
+
+    @Benchmark
+    public Packet decode() throws Exception {
+        input.reset();
+        return decoder.read(input);
+    }
+
+    @Benchmark
+    public int encode() throws IOException {
+        ByteBuffer frame = packet.encode(BufferPool.HEAP);
+        int length = frame.remaining();
+        BufferPool.HEAP.release(frame);
+        return length;
+    }
+
+    @Benchmark
+    public Packet readFromStream() throws Exception {
+        input.reset();
+        return Packet.readFromStream(dataInput);
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        packet = type.create();
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        packet.writeToStream(new DataOutputStream(frame));
+        input = new ByteArrayInputStream(frame.toByteArray());
+        dataInput = new DataInputStream(input);
+        output = new ByteArrayOutputStream(frame.size());
+        dataOutput = new DataOutputStream(output);
+        decoder = new FrameDecoder(BufferPool.HEAP, FrameDecoder.DEFAULT_MAX_FRAME_SIZE);
+    }
+
+    @TearDown
+    public void tearDown() {
+        decoder.close();
+    }
+
+    @Benchmark
+    public int writeToStream() throws IOException {
+        output.reset();
+        packet.writeToStream(dataOutput);
+        return output.size();
+    }
+}
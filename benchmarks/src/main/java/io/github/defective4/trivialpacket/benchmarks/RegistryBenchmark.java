@@ -0,0 +1,65 @@
+package io.github.defective4.trivialpacket.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.github.defective4.trivialpacket.common.packet.Packet;
+import io.github.defective4.trivialpacket.common.packet.PacketFactoryRegistry;
+import io.github.defective4.trivialpacket.common.packet.server.AuthSuccessPacket;
+
+/**
+ * {@link PacketFactoryRegistry} lookups, measured through the public API using
+ * them: packet construction looks up the ID of the packet's class, and
+ * {@link Packet#fromData(int, byte[])} looks up the factory for an ID. <br>
+ * {@link AuthSuccessPacket} is used as it carries no data, so its construction
+ * and decoding cost is dominated by the lookup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@SuppressWarnings("javadoc")
+public class RegistryBenchmark {
+
+    private final byte[] data = new byte[0];
+    private int id;
+    private Packet packet;
+
+    @Benchmark
+    public Packet factoryForID() throws Exception {
+        return Packet.fromData(id, data);
+    }
+
+    @Benchmark
+    public Packet idForClass() {
+        return new AuthSuccessPacket();
+    }
+
+    @Benchmark
+    public boolean isBuiltIn() {
+        return PacketFactoryRegistry.isBuiltIn(packet);
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        packet = new AuthSuccessPacket();
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        packet.writeToStream(new DataOutputStream(frame));
+        id = Byte.toUnsignedInt(frame.toByteArray()[4]);
+    }
+}
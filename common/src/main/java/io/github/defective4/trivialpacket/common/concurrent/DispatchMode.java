@@ -0,0 +1,27 @@
+package io.github.defective4.trivialpacket.common.concurrent;
+
+/**
+ * Defines how received packets are passed to listeners
+ *
+ * @see Dispatcher
+ */
+public enum DispatchMode {
+    /**
+     * Listeners are called on the thread reading the connection. <br>
+     * This has the lowest overhead, but a slow listener stops the connection
+     * from reading until it returns.
+     */
+    INLINE,
+    /**
+     * Listeners are called on a shared executor. <br>
+     * Packets of a single connection may be handled concurrently, and in any
+     * order.
+     */
+    EXECUTOR,
+    /**
+     * Listeners are called on a shared executor, one packet of a connection at a
+     * time, in the order the packets were received. <br>
+     * Packets of different connections are handled in parallel.
+     */
+    ORDERED
+}
@@ -0,0 +1,278 @@
+package io.github.defective4.trivialpacket.common.concurrent;
+
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+import io.github.defective4.trivialpacket.common.metrics.MetricsSink;
+
+/**
+ * A per-connection stage between decoding packets and handling them. <br>
+ * Depending on its {@link DispatchMode}, tasks are run on the calling thread,
+ * on a shared executor, or on a shared executor one at a time in submission
+ * order. <br>
+ * The number of queued tasks is bounded. When the queue is full,
+ * {@link #dispatch(Task)} waits for space, and
+ * {@link #tryDispatch(Task, Runnable)} refuses the task and notifies the caller
+ * once there is space again, so readers apply backpressure to the peer instead
+ * of buffering unlimited packets. <br>
+ * All methods are thread safe.
+ */
+public final class Dispatcher {
+    /**
+     * A single unit of work, usually handling one packet
+     */
+    @FunctionalInterface
+    public interface Task {
+        /**
+         * Runs the task
+         *
+         * @throws Exception
+         */
+        void run() throws Exception;
+    }
+
+    /**
+     * Default maximum number of queued tasks
+     */
+    public static final int DEFAULT_CAPACITY = 256;
+
+    /**
+     * Executor used when no executor is configured. Runs every task on a new
+     * virtual thread, if supported.
+     */
+    public static final ExecutorService DEFAULT_EXECUTOR = VirtualThreads.newThreadPerTaskExecutor();
+
+    private final AtomicInteger depth = new AtomicInteger();
+    private final Consumer<Exception> errorHandler;
+    private final Executor executor;
+    private final MetricsSink metrics;
+    private final DispatchMode mode;
+    private final AtomicInteger peakDepth = new AtomicInteger();
+    private final Semaphore permits;
+    private final MpscQueue<Runnable> queue;
+    private final AtomicReference<Runnable> waiter = new AtomicReference<>();
+
+    /**
+     * Creates a new dispatcher
+     *
+     * @param  mode                     dispatch mode
+     * @param  executor                 executor running the tasks. Ignored in
+     *                                  {@link DispatchMode#INLINE} mode
+     * @param  capacity                 maximum number of tasks queued or running
+     *                                  at once
+     * @param  errorHandler             called with exceptions thrown by tasks run
+     *                                  on the executor
+     * @throws NullPointerException     if mode, executor or errorHandler is null
+     * @throws IllegalArgumentException if capacity is less than 1
+     */
+    public Dispatcher(DispatchMode mode, Executor executor, int capacity, Consumer<Exception> errorHandler) {
+        this(mode, executor, capacity, errorHandler, null);
+    }
+
+    /**
+     * Creates a new dispatcher measuring how long dispatched tasks take
+     *
+     * @param  mode                     dispatch mode
+     * @param  executor                 executor running the tasks. Ignored in
+     *                                  {@link DispatchMode#INLINE} mode
+     * @param  capacity                 maximum number of tasks queued or running
+     *                                  at once
+     * @param  errorHandler             called with exceptions thrown by tasks run
+     *                                  on the executor
+     * @param  metrics                  sink notified when a task passed to
+     *                                  {@link #dispatch(Task)} or
+     *                                  {@link #tryDispatch(Task, Runnable)}
+     *                                  completes, or <code>null</code>
+     * @throws NullPointerException     if mode, executor or errorHandler is null
+     * @throws IllegalArgumentException if capacity is less than 1
+     */
+    public Dispatcher(DispatchMode mode, Executor executor, int capacity, Consumer<Exception> errorHandler,
+            MetricsSink metrics) {
+        Objects.requireNonNull(mode);
+        Objects.requireNonNull(executor);
+        Objects.requireNonNull(errorHandler);
+        if (capacity < 1) throw new IllegalArgumentException("capacity can't be less than 1");
+        this.mode = mode;
+        this.executor = executor;
+        this.errorHandler = errorHandler;
+        this.metrics = metrics;
+        permits = new Semaphore(capacity);
+        queue = mode == DispatchMode.ORDERED ? new MpscQueue<>() : null;
+    }
+
+    /**
+     * Dispatches a task, waiting for space in the queue if it's full. <br>
+     * In {@link DispatchMode#INLINE} mode, the task is run immediately and its
+     * exceptions are thrown from this method.
+     *
+     * @param  task                 task to run
+     * @throws Exception            if the task was run inline and failed, or the
+     *                              thread was interrupted while waiting
+     * @throws NullPointerException if task is null
+     */
+    public void dispatch(Task task) throws Exception {
+        Objects.requireNonNull(task);
+        if (mode == DispatchMode.INLINE) {
+            runInline(task);
+            return;
+        }
+        long start = metrics == null ? 0 : System.nanoTime();
+        permits.acquire();
+        submit(task, true, start);
+    }
+
+    /**
+     * Dispatches a task regardless of the queue capacity. <br>
+     * Meant for events that must never be refused or wait, like connection
+     * state changes. Unlike {@link #dispatch(Task)}, exceptions of inline tasks
+     * are passed to the error handler.
+     *
+     * @param  task                 task to run
+     * @throws NullPointerException if task is null
+     */
+    public void execute(Task task) {
+        Objects.requireNonNull(task);
+        if (mode == DispatchMode.INLINE) run(task);
+        else submit(task, false, 0);
+    }
+
+    /**
+     * Get dispatch mode of this dispatcher
+     *
+     * @return dispatch mode
+     */
+    public DispatchMode getMode() {
+        return mode;
+    }
+
+    /**
+     * Get highest number of tasks that were queued or running at once
+     *
+     * @return peak queue depth
+     */
+    public int getPeakQueueDepth() {
+        return peakDepth.get();
+    }
+
+    /**
+     * Get number of tasks that are queued or running. <br>
+     * Always <code>0</code> in {@link DispatchMode#INLINE} mode.
+     *
+     * @return current queue depth
+     */
+    public int getQueueDepth() {
+        return depth.get();
+    }
+
+    /**
+     * Dispatches a task if there is space in the queue. <br>
+     * If the queue is full, the task is not dispatched, and
+     * <code>onAvailable</code> is called once space becomes available. It may be
+     * called on any thread.
+     *
+     * @param  task                 task to run
+     * @param  onAvailable          called when space becomes available, if the
+     *                              task was refused
+     * @return                      <code>true</code> if the task was dispatched
+     * @throws Exception            if the task was run inline and failed
+     * @throws NullPointerException if task or onAvailable is null
+     */
+    public boolean tryDispatch(Task task, Runnable onAvailable) throws Exception {
+        Objects.requireNonNull(task);
+        Objects.requireNonNull(onAvailable);
+        if (mode == DispatchMode.INLINE) {
+            runInline(task);
+            return true;
+        }
+        long start = metrics == null ? 0 : System.nanoTime();
+        if (!permits.tryAcquire()) {
+            waiter.set(onAvailable);
+            if (!permits.tryAcquire()) return false;
+            waiter.compareAndSet(onAvailable, null);
+        }
+        submit(task, true, start);
+        return true;
+    }
+
+    /**
+     * Releases the permit of a completed task
+     */
+    private void completed(long start) {
+        if (metrics != null) metrics.packetDispatched(System.nanoTime() - start);
+        release();
+    }
+
+    /**
+     * Runs queued tasks of an {@link DispatchMode#ORDERED} dispatcher, until the
+     * queue is empty. <br>
+     * Only one drain runs at a time, as it's scheduled only by the task that
+     * made the queue non-empty.
+     */
+    private void drain() {
+        do {
+            Runnable next;
+            while ((next = queue.poll()) == null) Thread.onSpinWait();
+            next.run();
+        } while (depth.decrementAndGet() > 0);
+    }
+
+    private void run(Task task) {
+        try {
+            task.run();
+        } catch (Exception e) {
+            errorHandler.accept(e);
+        }
+    }
+
+    private void release() {
+        permits.release();
+        Runnable waiter = this.waiter.getAndSet(null);
+        if (waiter != null) waiter.run();
+    }
+
+    private void runInline(Task task) throws Exception {
+        if (metrics == null) {
+            task.run();
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            task.run();
+        } finally {
+            metrics.packetDispatched(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * @param permit <code>true</code> if the task holds a permit, and should be
+     *               measured
+     * @param start  time the task was dispatched at
+     */
+    private void submit(Task task, boolean permit, long start) {
+        int current = depth.incrementAndGet();
+        if (current > peakDepth.get()) peakDepth.accumulateAndGet(current, Math::max);
+        if (queue == null) executor.execute(() -> {
+            try {
+                run(task);
+            } finally {
+                depth.decrementAndGet();
+                if (permit) completed(start);
+            }
+        });
+        else {
+            queue.offer(() -> {
+                try {
+                    run(task);
+                } finally {
+                    if (permit) completed(start);
+                }
+            });
+            if (current == 1) executor.execute(this::drain);
+        }
+    }
+}
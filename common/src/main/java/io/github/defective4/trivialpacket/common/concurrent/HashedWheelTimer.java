@@ -0,0 +1,244 @@
+package io.github.defective4.trivialpacket.common.concurrent;
+
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A timer for large numbers of approximate timeouts, like keep-alives and idle
+ * timeouts of many connections. <br>
+ * Timeouts are kept in a wheel of buckets, each covering one tick. Scheduling
+ * and cancelling a timeout takes constant time and never blocks, and all
+ * timeouts of a timer are run by a single daemon thread, regardless of their
+ * number. In exchange, timeouts expire up to one tick late. <br>
+ * Tasks are run on the timer's thread, so they must be short and must never
+ * block - anything else should be handed off to another executor. Exceptions
+ * thrown by tasks are ignored. <br>
+ * The thread is started when the first timeout is scheduled. All methods are
+ * thread safe.
+ */
+public final class HashedWheelTimer {
+    /**
+     * A scheduled task, returned by
+     * {@link HashedWheelTimer#schedule(Runnable, long, TimeUnit)}
+     */
+    public interface Timeout {
+        /**
+         * Cancels the timeout. <br>
+         * Does nothing if the timeout already expired or was cancelled.
+         *
+         * @return <code>true</code> if the task will not run because of this call
+         */
+        boolean cancel();
+
+        /**
+         * @return <code>true</code> if the timeout was cancelled
+         */
+        boolean isCancelled();
+
+        /**
+         * @return <code>true</code> if the task was run or is running
+         */
+        boolean isExpired();
+    }
+
+    private static final AtomicInteger THREAD_ID = new AtomicInteger();
+
+    /**
+     * Timer shared by all servers and clients that don't use their own. It ticks
+     * every 100 milliseconds and can't be stopped.
+     */
+    public static final HashedWheelTimer DEFAULT = new HashedWheelTimer(100, TimeUnit.MILLISECONDS, 512);
+
+    private static final int MAX_TRANSFERS_PER_TICK = 100000;
+    private static final int STATE_CREATED = 0, STATE_STARTED = 1, STATE_STOPPED = 2;
+
+    private final MpscQueue<Entry> cancelled = new MpscQueue<>();
+    private final int mask;
+    private final MpscQueue<Entry> pending = new MpscQueue<>();
+    private volatile long startTime;
+    private final AtomicInteger state = new AtomicInteger();
+    private long tick;
+    private final long tickDuration;
+    private final Bucket[] wheel;
+    private final Thread worker;
+
+    /**
+     * Creates a new timer
+     *
+     * @param  tickDuration             duration of a single tick, which is the
+     *                                  precision of the timer
+     * @param  unit                     unit of tickDuration
+     * @param  wheelSize                number of buckets in the wheel. It's rounded
+     *                                  up to a power of two. Timeouts further than
+     *                                  the whole wheel wrap around it, so it should
+     *                                  cover the most common delays
+     * @throws NullPointerException     if unit is null
+     * @throws IllegalArgumentException if tickDuration is less than 1 millisecond,
+     *                                  or wheelSize is less than 1 or greater than
+     *                                  <code>2^30</code>
+     */
+    public HashedWheelTimer(long tickDuration, TimeUnit unit, int wheelSize) {
+        Objects.requireNonNull(unit);
+        if (unit.toMillis(tickDuration) < 1)
+            throw new IllegalArgumentException("tickDuration can't be less than 1 millisecond");
+        if (wheelSize < 1) throw new IllegalArgumentException("wheelSize can't be less than 1");
+        if (wheelSize > 1 << 30) throw new IllegalArgumentException("wheelSize can't be greater than 2^30");
+        int size = wheelSize == 1 ? 1 : Integer.highestOneBit(wheelSize - 1) << 1;
+        wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) wheel[i] = new Bucket();
+        mask = size - 1;
+        this.tickDuration = unit.toNanos(tickDuration);
+        worker = new Thread(this::run, "TrivialPacket timer #" + THREAD_ID.incrementAndGet());
+        worker.setDaemon(true);
+    }
+
+    /**
+     * Get duration of a single tick
+     *
+     * @param  unit unit of the returned value
+     * @return      tick duration
+     */
+    public long getTickDuration(TimeUnit unit) {
+        return unit.convert(tickDuration, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Schedules a task to run once after the specified delay
+     *
+     * @param  task                  task to run. It's run on the timer's thread
+     * @param  delay                 delay after which the task is run. Negative
+     *                               delays are treated as <code>0</code>
+     * @param  unit                  unit of delay
+     * @return                       handle used to cancel the task
+     * @throws NullPointerException  if task or unit is null
+     * @throws IllegalStateException if the timer is stopped
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        Objects.requireNonNull(task);
+        Objects.requireNonNull(unit);
+        start();
+        long deadline = System.nanoTime() - startTime + Math.max(0, unit.toNanos(delay));
+        Entry entry = new Entry(task, deadline);
+        pending.offer(entry);
+        return entry;
+    }
+
+    /**
+     * Stops the timer. Scheduled tasks are never run. <br>
+     * Subsequent calls have no effect.
+     *
+     * @throws IllegalStateException if this is the {@link #DEFAULT} timer
+     */
+    public void stop() {
+        if (this == DEFAULT) throw new IllegalStateException("The default timer can't be stopped");
+        if (state.getAndSet(STATE_STOPPED) == STATE_STARTED) LockSupport.unpark(worker);
+    }
+
+    private void expire(Bucket bucket) {
+        Entry entry = bucket.head;
+        while (entry != null) {
+            Entry next = entry.next;
+            if (entry.remainingRounds <= 0) {
+                bucket.remove(entry);
+                if (entry.state.compareAndSet(Entry.WAITING, Entry.EXPIRED)) try {
+                    entry.task.run();
+                } catch (Exception e) {}
+            } else if (entry.isCancelled()) bucket.remove(entry);
+            else entry.remainingRounds--;
+            entry = next;
+        }
+    }
+
+    private void run() {
+        while (state.get() == STATE_STARTED) {
+            long deadline = tickDuration * (tick + 1);
+            long sleep;
+            while ((sleep = deadline - (System.nanoTime() - startTime)) > 0) {
+                LockSupport.parkNanos(this, sleep);
+                if (state.get() != STATE_STARTED) return;
+            }
+            for (Entry entry; (entry = cancelled.poll()) != null;) if (entry.bucket != null) entry.bucket.remove(entry);
+            transferPending();
+            expire(wheel[(int) (tick & mask)]);
+            tick++;
+        }
+    }
+
+    private void start() {
+        if (state.get() == STATE_CREATED && state.compareAndSet(STATE_CREATED, STATE_STARTED)) {
+            startTime = System.nanoTime();
+            worker.start();
+        } else if (state.get() == STATE_STOPPED) throw new IllegalStateException("Timer stopped");
+        while (startTime == 0) Thread.onSpinWait();
+    }
+
+    private void transferPending() {
+        for (int i = 0; i < MAX_TRANSFERS_PER_TICK; i++) {
+            Entry entry = pending.poll();
+            if (entry == null) return;
+            if (entry.isCancelled()) continue;
+            long ticks = entry.deadline / tickDuration;
+            entry.remainingRounds = (ticks - tick) / wheel.length;
+            wheel[(int) (Math.max(ticks, tick) & mask)].add(entry);
+        }
+    }
+
+    private static final class Bucket {
+        private Entry head, tail;
+
+        private void add(Entry entry) {
+            entry.bucket = this;
+            if (head == null) head = tail = entry;
+            else {
+                tail.next = entry;
+                entry.prev = tail;
+                tail = entry;
+            }
+        }
+
+        private void remove(Entry entry) {
+            if (entry.bucket != this) return;
+            if (entry.prev != null) entry.prev.next = entry.next;
+            else head = entry.next;
+            if (entry.next != null) entry.next.prev = entry.prev;
+            else tail = entry.prev;
+            entry.prev = entry.next = null;
+            entry.bucket = null;
+        }
+    }
+
+    private final class Entry implements Timeout {
+        private static final int WAITING = 0, CANCELLED = 1, EXPIRED = 2;
+
+        private Bucket bucket;
+        private final long deadline;
+        private Entry next, prev;
+        private long remainingRounds;
+        private final AtomicInteger state = new AtomicInteger();
+        private final Runnable task;
+
+        private Entry(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public boolean cancel() {
+            if (!state.compareAndSet(WAITING, CANCELLED)) return false;
+            cancelled.offer(this);
+            return true;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+
+        @Override
+        public boolean isExpired() {
+            return state.get() == EXPIRED;
+        }
+    }
+}
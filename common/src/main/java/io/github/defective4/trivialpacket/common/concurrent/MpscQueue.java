@@ -0,0 +1,103 @@
+package io.github.defective4.trivialpacket.common.concurrent;
+
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
+
+/**
+ * An unbounded, lock-free, multi-producer single-consumer FIFO queue. <br>
+ * {@link #offer(Object)} can be called from any number of threads at once,
+ * while {@link #poll()} must only be called by one thread at a time.
+ *
+ * @param <E> element type
+ */
+public final class MpscQueue<E> {
+    private volatile Node<E> head;
+    private final AtomicReference<Node<E>> tail;
+
+    /**
+     * Creates a new, empty queue
+     */
+    public MpscQueue() {
+        Node<E> stub = new Node<>(null);
+        head = stub;
+        tail = new AtomicReference<>(stub);
+    }
+
+    /**
+     * Checks if the queue is empty. <br>
+     * An element that is being offered concurrently may not be visible yet.
+     *
+     * @return <code>true</code> if there are no elements in the queue
+     */
+    public boolean isEmpty() {
+        return head.next == null;
+    }
+
+    /**
+     * Adds an element to the end of the queue. Safe to call from any thread.
+     *
+     * @param  element              element to add
+     * @throws NullPointerException if element is null
+     */
+    public void offer(E element) {
+        Objects.requireNonNull(element);
+        Node<E> node = new Node<>(element);
+        tail.getAndSet(node).next = node;
+    }
+
+    /**
+     * Adds two elements to the end of the queue at once. Elements offered
+     * concurrently by other threads never end up between them.
+     *
+     * @param  first                first element to add
+     * @param  second               element following the first one
+     * @throws NullPointerException if any of the elements is null
+     */
+    public void offer(E first, E second) {
+        Objects.requireNonNull(first);
+        Objects.requireNonNull(second);
+        Node<E> node = new Node<>(first);
+        Node<E> last = new Node<>(second);
+        node.next = last;
+        tail.getAndSet(last).next = node;
+    }
+
+    /**
+     * Retrieves and removes the first element of the queue. Consumer only.
+     *
+     * @return first element, or <code>null</code> if the queue is empty
+     */
+    public E poll() {
+        Node<E> next = head.next;
+        if (next == null) return null;
+        E value = next.value;
+        next.value = null;
+        head = next;
+        return value;
+    }
+
+    /**
+     * Replaces each element of the queue, from the first one, with the result of
+     * the operator. Consumer only. <br>
+     * Elements offered concurrently may or may not be visited.
+     *
+     * @param  operator             operator returning the element to keep in
+     *                              place of the given one
+     * @throws NullPointerException if operator is null, or returned null
+     */
+    public void replaceAll(UnaryOperator<E> operator) {
+        Objects.requireNonNull(operator);
+        for (Node<E> node = head.next; node != null; node = node.next)
+            node.value = Objects.requireNonNull(operator.apply(node.value));
+    }
+
+    private static final class Node<E> {
+        private volatile Node<E> next;
+        private E value;
+
+        private Node(E value) {
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package io.github.defective4.trivialpacket.common.concurrent;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Requests sent over a single connection that are waiting for a response. <br>
+ * Every request gets a unique, non-zero ID, which is sent with the request and
+ * echoed back by the other end in the response. This allows any number of
+ * requests to be in flight at once, and responses to arrive in any order. <br>
+ * All methods are thread safe.
+ *
+ * @param <T> response type
+ */
+public final class PendingRequests<T> {
+    /**
+     * Default request timeout in milliseconds
+     */
+    public static final long DEFAULT_TIMEOUT = 30000;
+
+    private final AtomicInteger nextID = new AtomicInteger();
+    private final Map<Integer, CompletableFuture<T>> pending = new ConcurrentHashMap<>();
+
+    /**
+     * Completes a pending request
+     *
+     * @param  id       request ID received in the response
+     * @param  response received response
+     * @return          <code>true</code> if there was a pending request with this
+     *                  ID. If it returns <code>false</code>, the request has
+     *                  already timed out, or was never sent
+     */
+    public boolean complete(int id, T response) {
+        if (id == 0) return false;
+        CompletableFuture<T> future = pending.remove(id);
+        return future != null && future.complete(response);
+    }
+
+    /**
+     * Fails all pending requests. <br>
+     * Used when the connection is closed.
+     *
+     * @param cause exception to complete the requests with
+     */
+    public void failAll(Throwable cause) {
+        for (Integer id : pending.keySet()) {
+            CompletableFuture<T> future = pending.remove(id);
+            if (future != null) future.completeExceptionally(cause);
+        }
+    }
+
+    /**
+     * Registers a new request
+     *
+     * @param  future  future to complete with the response
+     * @param  timeout time in milliseconds after which the future is completed
+     *                 with a {@link java.util.concurrent.TimeoutException}.
+     *                 <code>0</code> means no timeout
+     * @return         ID to send with the request
+     */
+    public int register(CompletableFuture<T> future, long timeout) {
+        int id;
+        do {
+            id = nextID.incrementAndGet();
+        } while (id == 0 || pending.putIfAbsent(id, future) != null);
+        int registered = id;
+        if (timeout > 0) future.orTimeout(timeout, TimeUnit.MILLISECONDS);
+        future.whenComplete((response, e) -> pending.remove(registered, future));
+        return id;
+    }
+
+    /**
+     * Get number of requests waiting for a response
+     *
+     * @return number of pending requests
+     */
+    public int size() {
+        return pending.size();
+    }
+}
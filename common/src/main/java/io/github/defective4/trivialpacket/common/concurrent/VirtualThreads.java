@@ -0,0 +1,62 @@
+package io.github.defective4.trivialpacket.common.concurrent;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Access to virtual threads on runtimes that support them. <br>
+ * The library targets Java 17, so virtual threads are looked up at runtime.
+ * When they are not available (Java 20 and older), an unbounded pool of daemon
+ * platform threads is used instead.
+ */
+public final class VirtualThreads {
+
+    private static final MethodHandle NEW_EXECUTOR;
+
+    static {
+        MethodHandle handle;
+        try {
+            handle = MethodHandles
+                    .publicLookup()
+                    .findStatic(Executors.class, "newVirtualThreadPerTaskExecutor",
+                            MethodType.methodType(ExecutorService.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            handle = null;
+        }
+        NEW_EXECUTOR = handle;
+    }
+
+    private VirtualThreads() {}
+
+    /**
+     * Checks if the current runtime supports virtual threads
+     *
+     * @return <code>true</code> if virtual threads are supported
+     */
+    public static boolean isSupported() {
+        return NEW_EXECUTOR != null;
+    }
+
+    /**
+     * Creates an executor starting a new thread for every submitted task. <br>
+     * The threads are virtual if {@link #isSupported()}, otherwise they are
+     * daemon platform threads.
+     *
+     * @return new executor
+     */
+    public static ExecutorService newThreadPerTaskExecutor() {
+        if (NEW_EXECUTOR != null) try {
+            return (ExecutorService) NEW_EXECUTOR.invokeExact();
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+        return Executors.newCachedThreadPool(task -> {
+            Thread thread = new Thread(task);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+}
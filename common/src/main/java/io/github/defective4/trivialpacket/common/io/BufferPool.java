@@ -0,0 +1,105 @@
+package io.github.defective4.trivialpacket.common.io;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A lock-free pool of reusable byte buffers. <br>
+ * Buffers are grouped in power-of-two size classes. Requests larger than the
+ * biggest size class are served with freshly allocated buffers that are not
+ * retained on release. <br>
+ * Acquiring and releasing pooled buffers does not allocate.
+ */
+public final class BufferPool {
+    /**
+     * Shared pool of direct buffers, used for writing frames to channels
+     */
+    public static final BufferPool DIRECT = new BufferPool(true);
+
+    /**
+     * Shared pool of heap buffers, used for writing frames to streams
+     */
+    public static final BufferPool HEAP = new BufferPool(false);
+
+    private static final int MAX_CLASS_SHIFT = 16;
+    private static final int MIN_CLASS_SHIFT = 9;
+    private static final int SLOTS_PER_CLASS = 32;
+
+    private final AtomicReferenceArray<ByteBuffer>[] classes;
+    private final boolean direct;
+
+    /**
+     * Creates a new, empty buffer pool
+     *
+     * @param direct whether the pool should contain direct buffers
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public BufferPool(boolean direct) {
+        this.direct = direct;
+        classes = new AtomicReferenceArray[MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1];
+        for (int i = 0; i < classes.length; i++) classes[i] = new AtomicReferenceArray<>(SLOTS_PER_CLASS);
+    }
+
+    /**
+     * Acquire a cleared buffer with at least the requested capacity. <br>
+     * The buffer should be returned with {@link #release(ByteBuffer)} once it's
+     * no longer used.
+     *
+     * @param  capacity minimum capacity
+     * @return          buffer with position <code>0</code> and limit equal to its
+     *                  capacity
+     */
+    public ByteBuffer acquire(int capacity) {
+        int index = classIndex(capacity);
+        if (index < 0) return allocate(capacity);
+        AtomicReferenceArray<ByteBuffer> slots = classes[index];
+        int start = slotHint();
+        for (int i = 0; i < SLOTS_PER_CLASS; i++) {
+            ByteBuffer buffer = slots.getAndSet((start + i) & (SLOTS_PER_CLASS - 1), null);
+            if (buffer != null) return buffer.clear();
+        }
+        return allocate(1 << (index + MIN_CLASS_SHIFT));
+    }
+
+    /**
+     * Checks if this pool contains direct buffers
+     *
+     * @return <code>true</code> if buffers are direct
+     */
+    public boolean isDirect() {
+        return direct;
+    }
+
+    /**
+     * Return a buffer to the pool. <br>
+     * The buffer must not be used after releasing it. Buffers not belonging to any
+     * size class of this pool are ignored.
+     *
+     * @param buffer buffer to release. Can be <code>null</code>
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.isDirect() != direct || buffer.isReadOnly()) return;
+        int capacity = buffer.capacity();
+        if (Integer.bitCount(capacity) != 1) return;
+        int index = classIndex(capacity);
+        if (index < 0) return;
+        AtomicReferenceArray<ByteBuffer> slots = classes[index];
+        int start = slotHint();
+        for (int i = 0; i < SLOTS_PER_CLASS; i++)
+            if (slots.compareAndSet((start + i) & (SLOTS_PER_CLASS - 1), null, buffer)) return;
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    private static int classIndex(int capacity) {
+        if (capacity > 1 << MAX_CLASS_SHIFT) return -1;
+        int shift = Math.max(MIN_CLASS_SHIFT, 32 - Integer.numberOfLeadingZeros(Math.max(capacity, 1) - 1));
+        return shift - MIN_CLASS_SHIFT;
+    }
+
+    private static int slotHint() {
+        return (int) Thread.currentThread().getId();
+    }
+}
@@ -0,0 +1,90 @@
+package io.github.defective4.trivialpacket.common.io;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Objects;
+
+/**
+ * An output stream writing to a buffer acquired from a {@link BufferPool}. <br>
+ * When the buffer runs out of space, a larger one is acquired and the old one is
+ * released. <br>
+ * Instances are reusable with {@link #reset(BufferPool, int)}, and are not
+ * thread safe.
+ */
+public final class ByteBufferOutputStream extends OutputStream {
+    private ByteBuffer buffer;
+    private BufferPool pool;
+
+    /**
+     * Detaches the current buffer from this stream. <br>
+     * The caller becomes responsible for releasing it to the pool.
+     *
+     * @return                       buffer with position set to the number of
+     *                               bytes written
+     * @throws IllegalStateException if the stream has no buffer
+     */
+    public ByteBuffer detach() {
+        if (buffer == null) throw new IllegalStateException("No buffer attached");
+        ByteBuffer detached = buffer;
+        buffer = null;
+        return detached;
+    }
+
+    /**
+     * Get the number of bytes written since the last reset
+     *
+     * @return number of bytes written
+     */
+    public int position() {
+        return buffer == null ? 0 : buffer.position();
+    }
+
+    /**
+     * Releases the current buffer, if any, and acquires a new one.
+     *
+     * @param  pool                 pool to acquire buffers from
+     * @param  capacity             initial capacity
+     * @throws NullPointerException if pool is null
+     */
+    public void reset(BufferPool pool, int capacity) {
+        Objects.requireNonNull(pool);
+        if (buffer != null) this.pool.release(buffer);
+        this.pool = pool;
+        buffer = pool.acquire(capacity);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        Objects.checkFromIndexSize(off, len, b.length);
+        ensureRemaining(len);
+        buffer.put(b, off, len);
+    }
+
+    @Override
+    public void write(int b) {
+        ensureRemaining(1);
+        buffer.put((byte) b);
+    }
+
+    /**
+     * Writes a byte buffer's remaining content to this stream
+     *
+     * @param src buffer to write
+     */
+    public void write(ByteBuffer src) {
+        ensureRemaining(src.remaining());
+        buffer.put(src);
+    }
+
+    private void ensureRemaining(int length) {
+        if (buffer == null) throw new IllegalStateException("No buffer attached");
+        if (buffer.remaining() >= length) return;
+        int required = buffer.position() + length;
+        if (required < 0) throw new OutOfMemoryError("Required buffer size is too large");
+        ByteBuffer larger = pool.acquire(Math.max(required, buffer.capacity() << 1));
+        buffer.flip();
+        larger.put(buffer);
+        pool.release(buffer);
+        buffer = larger;
+    }
+}
@@ -0,0 +1,161 @@
+package io.github.defective4.trivialpacket.common.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import io.github.defective4.trivialpacket.common.packet.twoway.StreamChunkPacket;
+import io.github.defective4.trivialpacket.common.packet.twoway.StreamCreditPacket;
+
+/**
+ * Receiving end of a streamed response. <br>
+ * Chunks are queued as they arrive, and credits are returned to the sender once
+ * half of the window is consumed, so at most one window of chunks is ever
+ * buffered. <br>
+ * Closing the stream before reaching its end cancels it. <br>
+ * Reads must not happen on the thread reading the connection, as they would
+ * wait for chunks that thread would never read. Instances are not thread safe,
+ * except for {@link #close()}.
+ *
+ * @see PendingStreams#request(java.util.function.IntFunction, long)
+ */
+public final class ChunkedInputStream extends InputStream {
+    private static final byte[] END = new byte[0];
+    private static final byte[] FAILED = new byte[0];
+
+    private final LinkedBlockingQueue<byte[]> chunks = new LinkedBlockingQueue<>();
+    private int consumed;
+    private byte[] current;
+    private volatile IOException failure;
+    private boolean finished;
+    private final int id;
+    private volatile boolean lastReceived;
+    private int position;
+    private final CompletableFuture<byte[]> response;
+    private final PendingStreams streams;
+    private final long timeout;
+    private final int window;
+
+    ChunkedInputStream(PendingStreams streams, int id, int window, long timeout,
+            CompletableFuture<byte[]> response) {
+        this.streams = streams;
+        this.id = id;
+        this.window = window;
+        this.timeout = timeout;
+        this.response = response;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return current == null ? 0 : current.length - position;
+    }
+
+    /**
+     * Closes the stream. If the stream hasn't been read to its end, it's
+     * cancelled, and the sender stops sending it.
+     */
+    @Override
+    public void close() throws IOException {
+        if (failure != null || lastReceived && finished) return;
+        fail(new IOException("Stream closed"));
+        streams.closed(this, id);
+        if (!lastReceived) streams.send(new StreamCreditPacket(id, StreamCreditPacket.CANCEL));
+    }
+
+    /**
+     * Get ID of the request this stream responds to
+     *
+     * @return request ID
+     */
+    public int getRequestID() {
+        return id;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!nextChunk()) return -1;
+        return current[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        Objects.checkFromIndexSize(off, len, b.length);
+        if (len == 0) return 0;
+        if (!nextChunk()) return -1;
+        int read = Math.min(len, current.length - position);
+        System.arraycopy(current, position, b, off, read);
+        position += read;
+        return read;
+    }
+
+    void fail(Throwable cause) {
+        if (failure != null) return;
+        failure = cause instanceof IOException e ? e : new IOException(cause);
+        chunks.clear();
+        chunks.offer(FAILED);
+        response.complete(null);
+    }
+
+    void receive(StreamChunkPacket chunk) {
+        if (lastReceived || failure != null) return;
+        if (chunks.size() > window) {
+            fail(new IOException("Stream window exceeded"));
+            return;
+        }
+        if (chunk.isAborted()) {
+            fail(new IOException("Stream aborted by peer"));
+            return;
+        }
+        chunks.offer(chunk.getData());
+        if (chunk.isLast()) {
+            lastReceived = true;
+            chunks.offer(END);
+            response.complete(null);
+        }
+    }
+
+    /**
+     * Makes sure the current chunk has data, waiting for the next chunk if
+     * needed
+     *
+     * @return <code>false</code> if the end of the stream was reached
+     */
+    private boolean nextChunk() throws IOException {
+        while (current == null || position == current.length) {
+            if (current != null) {
+                current = null;
+                chunkConsumed();
+            }
+            if (finished) return false;
+            byte[] next;
+            try {
+                next = timeout > 0 ? chunks.poll(timeout, TimeUnit.MILLISECONDS) : chunks.take();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            if (next == null) throw new SocketTimeoutException("Stream read timed out");
+            if (next == FAILED) {
+                chunks.offer(FAILED);
+                throw failure;
+            }
+            if (next == END) {
+                finished = true;
+                return false;
+            }
+            current = next;
+            position = 0;
+        }
+        return true;
+    }
+
+    private void chunkConsumed() throws IOException {
+        if (lastReceived || ++consumed < Math.max(1, window / 2)) return;
+        streams.send(new StreamCreditPacket(id, consumed));
+        consumed = 0;
+    }
+}
@@ -0,0 +1,208 @@
+package io.github.defective4.trivialpacket.common.io;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Objects;
+import java.util.concurrent.Semaphore;
+
+import io.github.defective4.trivialpacket.common.packet.twoway.StreamChunkPacket;
+
+/**
+ * Sending end of a streamed response. <br>
+ * Written data is collected into chunks, and every full chunk is sent as soon
+ * as the receiver has granted a credit for it. Writes wait for credits, so a
+ * slow receiver slows down the writer instead of growing any buffer. Writes of
+ * at least a whole chunk are sent directly from the caller's array, and files
+ * are sent directly from memory-mapped regions
+ * ({@link #transferFrom(FileChannel, long, long)}). <br>
+ * {@link #close()} sends the last chunk and must be called to complete the
+ * response. {@link #abort()} ends the response with an error instead. <br>
+ * Writes must not happen on the thread reading the connection, as credits are
+ * received on that thread. Instances are not thread safe.
+ *
+ * @see PendingStreams#respond(int)
+ */
+public final class ChunkedOutputStream extends OutputStream {
+    private static final int MAX_CREDITS = 1 << 16;
+    private static final long MAX_MAPPED_REGION = 16 * 1024 * 1024;
+
+    private final byte[] buffer;
+    private boolean closed;
+    private int count;
+    private final Semaphore credits = new Semaphore(0);
+    private volatile IOException failure;
+    private final int id;
+    private final PendingStreams streams;
+
+    ChunkedOutputStream(PendingStreams streams, int id, int chunkSize) {
+        this.streams = streams;
+        this.id = id;
+        buffer = new byte[chunkSize];
+    }
+
+    /**
+     * Ends the response with an error. <br>
+     * Data that was not sent yet is discarded, and reading the stream on the
+     * other end fails. Has no effect if the stream is already closed.
+     *
+     * @throws IOException if there was an error sending the abort
+     */
+    public void abort() throws IOException {
+        if (closed) return;
+        closed = true;
+        streams.closed(this, id);
+        if (failure == null)
+            streams.send(new StreamChunkPacket(id, StreamChunkPacket.LAST | StreamChunkPacket.ABORTED, buffer, 0, 0));
+    }
+
+    /**
+     * Sends buffered data as the last chunk, completing the response. <br>
+     * Has no effect if the stream is already closed or failed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        if (failure != null) {
+            closed = true;
+            streams.closed(this, id);
+            return;
+        }
+        try {
+            sendChunk(buffer, 0, count, StreamChunkPacket.LAST);
+        } finally {
+            closed = true;
+            count = 0;
+            streams.closed(this, id);
+        }
+    }
+
+    /**
+     * Sends buffered data as a chunk, even if it's not full
+     */
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        if (count == 0) return;
+        sendChunk(buffer, 0, count, 0);
+        count = 0;
+    }
+
+    /**
+     * Get ID of the request this stream responds to
+     *
+     * @return request ID
+     */
+    public int getRequestID() {
+        return id;
+    }
+
+    /**
+     * Sends a part of a file. <br>
+     * Buffered data is sent first. The file is then mapped into memory region by
+     * region, and every chunk is written to the connection directly from the
+     * mapped region, without copying it to the heap. <br>
+     * The file must not be truncated while it's being sent.
+     *
+     * @param  channel                  file to send
+     * @param  position                 position in the file to start at
+     * @param  count                    maximum number of bytes to send
+     * @return                          number of bytes sent, less than count if
+     *                                  the end of the file was reached
+     * @throws IOException              if there was an error reading the file or
+     *                                  sending the chunks
+     * @throws NullPointerException     if channel is null
+     * @throws IllegalArgumentException if position or count is less than 0
+     */
+    public long transferFrom(FileChannel channel, long position, long count) throws IOException {
+        Objects.requireNonNull(channel);
+        if (position < 0) throw new IllegalArgumentException("position can't be less than 0");
+        if (count < 0) throw new IllegalArgumentException("count can't be less than 0");
+        flush();
+        long end = Math.min(channel.size(), position + count);
+        long maxRegion = Math.max(1, MAX_MAPPED_REGION / buffer.length) * buffer.length;
+        long sent = 0;
+        while (position + sent < end) {
+            long regionSize = Math.min(end - position - sent, maxRegion);
+            MappedByteBuffer region = channel.map(MapMode.READ_ONLY, position + sent, regionSize);
+            for (int offset = 0; offset < regionSize; offset += buffer.length) {
+                int length = (int) Math.min(buffer.length, regionSize - offset);
+                acquireCredit();
+                streams.send(new StreamChunkPacket(id, 0, buffer, 0, 0), region.slice(offset, length));
+            }
+            sent += regionSize;
+        }
+        return sent;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        Objects.checkFromIndexSize(off, len, b.length);
+        ensureOpen();
+        while (len > 0) {
+            if (count == 0 && len >= buffer.length) {
+                sendChunk(b, off, buffer.length, 0);
+                off += buffer.length;
+                len -= buffer.length;
+                continue;
+            }
+            int copied = Math.min(len, buffer.length - count);
+            System.arraycopy(b, off, buffer, count, copied);
+            count += copied;
+            off += copied;
+            len -= copied;
+            if (count == buffer.length) flush();
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        buffer[count++] = (byte) b;
+        if (count == buffer.length) flush();
+    }
+
+    void addCredits(int granted) {
+        if (failure == null && credits.availablePermits() < MAX_CREDITS)
+            credits.release(Math.min(granted, MAX_CREDITS));
+    }
+
+    void fail(IOException cause) {
+        if (failure != null) return;
+        failure = cause;
+        credits.release(Integer.MAX_VALUE / 2);
+    }
+
+    /**
+     * Waits for a credit to send the next chunk
+     */
+    private void acquireCredit() throws IOException {
+        ensureOpen();
+        if (!credits.tryAcquire()) {
+            if (streams.isReadingThread()) {
+                abort();
+                throw new IOException("Can't wait for stream credits on the reading thread");
+            }
+            try {
+                credits.acquire();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+        if (failure != null) throw failure;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (failure != null) throw failure;
+        if (closed) throw new IOException("Stream closed");
+    }
+
+    private void sendChunk(byte[] data, int offset, int length, int flags) throws IOException {
+        acquireCredit();
+        streams.send(new StreamChunkPacket(id, flags, data, offset, length));
+    }
+}
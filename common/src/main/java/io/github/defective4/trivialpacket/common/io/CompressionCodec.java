@@ -0,0 +1,174 @@
+package io.github.defective4.trivialpacket.common.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Codecs used to compress frames. <br>
+ * Both peers announce the codecs they support during the authentication
+ * handshake, and the server picks the one used by the connection. <br>
+ * A compressed frame has the highest bit of its length set
+ * ({@link #COMPRESSED_FLAG}). Its data starts with the uncompressed data length
+ * as an <code>int</code>, followed by the compressed data. The packet ID is
+ * never compressed. <br>
+ * All codecs are thread safe.
+ */
+public enum CompressionCodec {
+    /**
+     * Frames are not compressed
+     */
+    NONE(0) {
+        @Override
+        public void compress(ByteBuffer src, ByteBuffer dst) {
+            dst.put(src);
+        }
+
+        @Override
+        public void decompress(ByteBuffer src, ByteBuffer dst) throws IOException {
+            if (src.remaining() != dst.remaining()) throw new IOException("Invalid uncompressed length");
+            dst.put(src);
+        }
+
+        @Override
+        public int maxCompressedLength(int length) {
+            return length;
+        }
+    },
+    /**
+     * DEFLATE with the zlib wrapper. <br>
+     * Gives the best compression ratio, at a considerably higher CPU cost. Suited
+     * for slow links.
+     */
+    DEFLATE(1) {
+        @Override
+        public void compress(ByteBuffer src, ByteBuffer dst) {
+            DeflateCodec.compress(src, dst);
+        }
+
+        @Override
+        public void decompress(ByteBuffer src, ByteBuffer dst) throws IOException {
+            DeflateCodec.decompress(src, dst);
+        }
+
+        @Override
+        public int maxCompressedLength(int length) {
+            return DeflateCodec.maxCompressedLength(length);
+        }
+    },
+    /**
+     * A pure-Java implementation of the LZ4 block format. <br>
+     * Compresses worse than {@link #DEFLATE}, but is several times faster, and
+     * gives up quickly on incompressible data.
+     */
+    LZ4(2) {
+        @Override
+        public void compress(ByteBuffer src, ByteBuffer dst) {
+            Lz4Codec.compress(src, dst);
+        }
+
+        @Override
+        public void decompress(ByteBuffer src, ByteBuffer dst) throws IOException {
+            Lz4Codec.decompress(src, dst);
+        }
+
+        @Override
+        public int maxCompressedLength(int length) {
+            return Lz4Codec.maxCompressedLength(length);
+        }
+    };
+
+    /**
+     * Flag set in the length of compressed frames
+     */
+    public static final int COMPRESSED_FLAG = 0x80000000;
+
+    /**
+     * Default minimum frame data length that gets compressed
+     */
+    public static final int DEFAULT_THRESHOLD = 1024;
+
+    private static final int FRAME_HEADER_SIZE = 5;
+    private static final CompressionCodec[] VALUES = values();
+
+    private final int id;
+
+    private CompressionCodec(int id) {
+        this.id = id;
+    }
+
+    /**
+     * Compresses all remaining bytes of <code>src</code> into <code>dst</code>.
+     * <br>
+     * Positions of both buffers are advanced.
+     *
+     * @param src source data
+     * @param dst destination buffer, with at least
+     *            {@link #maxCompressedLength(int)} bytes remaining
+     */
+    public abstract void compress(ByteBuffer src, ByteBuffer dst);
+
+    /**
+     * Compresses an encoded frame, if it's worth it. <br>
+     * Frames with data shorter than <code>threshold</code>, and frames that
+     * wouldn't get any smaller, are returned as they are. Otherwise a new frame
+     * acquired from the pool is returned, and the original frame is left intact.
+     *
+     * @param  frame     encoded frame, including the length and the ID
+     * @param  pool      pool to acquire the compressed frame from
+     * @param  threshold minimum data length to compress
+     * @return           compressed frame, or the original frame
+     */
+    public ByteBuffer compressFrame(ByteBuffer frame, BufferPool pool, int threshold) {
+        int start = frame.position();
+        int length = frame.remaining() - FRAME_HEADER_SIZE;
+        if (this == NONE || length < threshold || length < 1) return frame;
+        ByteBuffer compressed = pool.acquire(FRAME_HEADER_SIZE + 4 + maxCompressedLength(length));
+        compressed.position(FRAME_HEADER_SIZE).putInt(length);
+        compress(frame.slice(start + FRAME_HEADER_SIZE, length), compressed);
+        if (compressed.position() >= length + FRAME_HEADER_SIZE) {
+            pool.release(compressed);
+            return frame;
+        }
+        return compressed.putInt(0, compressed.position() - 4 | COMPRESSED_FLAG).put(4, frame.get(start + 4)).flip();
+    }
+
+    /**
+     * Decompresses all remaining bytes of <code>src</code>, filling exactly the
+     * remaining space of <code>dst</code>. <br>
+     * Positions of both buffers are advanced.
+     *
+     * @param  src         compressed data
+     * @param  dst         destination buffer, limited to the uncompressed length
+     * @throws IOException if the data is corrupted, or doesn't decompress to
+     *                     exactly the expected length
+     */
+    public abstract void decompress(ByteBuffer src, ByteBuffer dst) throws IOException;
+
+    /**
+     * Get ID of this codec, used during the handshake
+     *
+     * @return codec ID
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Get maximum length of compressed data
+     *
+     * @param  length uncompressed data length
+     * @return        maximum compressed length
+     */
+    public abstract int maxCompressedLength(int length);
+
+    /**
+     * Get codec with the specified ID
+     *
+     * @param  id codec ID
+     * @return    codec, or <code>null</code> if there is no codec with this ID
+     */
+    public static CompressionCodec forId(int id) {
+        for (CompressionCodec codec : VALUES) if (codec.id == id) return codec;
+        return null;
+    }
+}
@@ -0,0 +1,263 @@
+package io.github.defective4.trivialpacket.common.io;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Immutable set of TCP options applied to server sockets, accepted sockets and
+ * client sockets. <br>
+ * Options left at <code>0</code> are not set at all, so the operating system's
+ * defaults are used. <br>
+ * Example usage:
+ *
+ * <pre>
+ * ConnectionOptions options = ConnectionOptions
+ *         .builder()
+ *         .sendBufferSize(256 * 1024)
+ *         .receiveBufferSize(256 * 1024)
+ *         .keepAlive(true)
+ *         .build();
+ * server.setConnectionOptions(options);
+ * </pre>
+ */
+public final class ConnectionOptions {
+
+    /**
+     * Builder of {@link ConnectionOptions}
+     */
+    public static final class Builder {
+        private int backlog;
+        private int connectTimeout;
+        private boolean keepAlive;
+        private int receiveBufferSize;
+        private int sendBufferSize;
+        private boolean tcpNoDelay = true;
+
+        private Builder() {}
+
+        private Builder(ConnectionOptions options) {
+            backlog = options.backlog;
+            connectTimeout = options.connectTimeout;
+            keepAlive = options.keepAlive;
+            receiveBufferSize = options.receiveBufferSize;
+            sendBufferSize = options.sendBufferSize;
+            tcpNoDelay = options.tcpNoDelay;
+        }
+
+        /**
+         * Set maximum number of connections waiting to be accepted by a server.
+         * <br>
+         * Default value is <code>0</code>, meaning the platform's default.
+         *
+         * @param  backlog                  accept backlog
+         * @return                          this builder
+         * @throws IllegalArgumentException if backlog is less than 0
+         */
+        public Builder backlog(int backlog) {
+            if (backlog < 0) throw new IllegalArgumentException("backlog can't be less than 0");
+            this.backlog = backlog;
+            return this;
+        }
+
+        /**
+         * Creates the options
+         *
+         * @return new options
+         */
+        public ConnectionOptions build() {
+            return new ConnectionOptions(this);
+        }
+
+        /**
+         * Set time a client waits for the connection to be established. <br>
+         * Default value is <code>0</code>, meaning no timeout.
+         *
+         * @param  connectTimeout           connect timeout in milliseconds
+         * @return                          this builder
+         * @throws IllegalArgumentException if connectTimeout is less than 0
+         */
+        public Builder connectTimeout(int connectTimeout) {
+            if (connectTimeout < 0) throw new IllegalArgumentException("connectTimeout can't be less than 0");
+            this.connectTimeout = connectTimeout;
+            return this;
+        }
+
+        /**
+         * Set whether the operating system should probe idle connections to
+         * detect dead peers (<code>SO_KEEPALIVE</code>). <br>
+         * Default value is <code>false</code>. Keep-alive packets sent by
+         * clients usually detect dead peers much sooner.
+         *
+         * @param  keepAlive
+         * @return           this builder
+         */
+        public Builder keepAlive(boolean keepAlive) {
+            this.keepAlive = keepAlive;
+            return this;
+        }
+
+        /**
+         * Set size of the receive buffer of sockets (<code>SO_RCVBUF</code>).
+         * <br>
+         * On servers it's set on the server socket before binding, so
+         * connections can use TCP windows larger than 64 KiB. <br>
+         * Default value is <code>0</code>, meaning the platform's default.
+         *
+         * @param  receiveBufferSize        buffer size in bytes
+         * @return                          this builder
+         * @throws IllegalArgumentException if receiveBufferSize is less than 0
+         */
+        public Builder receiveBufferSize(int receiveBufferSize) {
+            if (receiveBufferSize < 0) throw new IllegalArgumentException("receiveBufferSize can't be less than 0");
+            this.receiveBufferSize = receiveBufferSize;
+            return this;
+        }
+
+        /**
+         * Set size of the send buffer of sockets (<code>SO_SNDBUF</code>). <br>
+         * Default value is <code>0</code>, meaning the platform's default.
+         *
+         * @param  sendBufferSize           buffer size in bytes
+         * @return                          this builder
+         * @throws IllegalArgumentException if sendBufferSize is less than 0
+         */
+        public Builder sendBufferSize(int sendBufferSize) {
+            if (sendBufferSize < 0) throw new IllegalArgumentException("sendBufferSize can't be less than 0");
+            this.sendBufferSize = sendBufferSize;
+            return this;
+        }
+
+        /**
+         * Set whether Nagle's algorithm is disabled (<code>TCP_NODELAY</code>).
+         * <br>
+         * Default value is <code>true</code>. Small packets like commands and
+         * pings are then sent immediately, instead of waiting for the
+         * acknowledgement of previous data. Packets sent together are still
+         * written together by {@link OutboundQueue}.
+         *
+         * @param  tcpNoDelay
+         * @return            this builder
+         */
+        public Builder tcpNoDelay(boolean tcpNoDelay) {
+            this.tcpNoDelay = tcpNoDelay;
+            return this;
+        }
+    }
+
+    /**
+     * Options used when none are set
+     */
+    public static final ConnectionOptions DEFAULT = builder().build();
+
+    private final int backlog;
+    private final int connectTimeout;
+    private final boolean keepAlive;
+    private final int receiveBufferSize;
+    private final int sendBufferSize;
+    private final boolean tcpNoDelay;
+
+    private ConnectionOptions(Builder builder) {
+        backlog = builder.backlog;
+        connectTimeout = builder.connectTimeout;
+        keepAlive = builder.keepAlive;
+        receiveBufferSize = builder.receiveBufferSize;
+        sendBufferSize = builder.sendBufferSize;
+        tcpNoDelay = builder.tcpNoDelay;
+    }
+
+    /**
+     * Applies the options to a client socket or an accepted socket
+     *
+     * @param  socket
+     * @throws IOException if there was an error setting an option
+     */
+    public void apply(Socket socket) throws IOException {
+        socket.setTcpNoDelay(tcpNoDelay);
+        if (keepAlive) socket.setKeepAlive(true);
+        if (sendBufferSize > 0) socket.setSendBufferSize(sendBufferSize);
+        if (receiveBufferSize > 0) socket.setReceiveBufferSize(receiveBufferSize);
+    }
+
+    /**
+     * Applies the options to an unbound server socket. <br>
+     * The backlog is passed to {@link ServerSocket#bind(java.net.SocketAddress, int)}
+     * instead.
+     *
+     * @param  socket
+     * @throws IOException if there was an error setting an option
+     */
+    public void apply(ServerSocket socket) throws IOException {
+        if (receiveBufferSize > 0) socket.setReceiveBufferSize(receiveBufferSize);
+    }
+
+    /**
+     * @return accept backlog, or <code>0</code> for the platform's default
+     */
+    public int getBacklog() {
+        return backlog;
+    }
+
+    /**
+     * @return connect timeout in milliseconds, or <code>0</code> if there is no
+     *         timeout
+     */
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    /**
+     * @return receive buffer size in bytes, or <code>0</code> for the platform's
+     *         default
+     */
+    public int getReceiveBufferSize() {
+        return receiveBufferSize;
+    }
+
+    /**
+     * @return send buffer size in bytes, or <code>0</code> for the platform's
+     *         default
+     */
+    public int getSendBufferSize() {
+        return sendBufferSize;
+    }
+
+    /**
+     * @return <code>true</code> if <code>SO_KEEPALIVE</code> is enabled
+     */
+    public boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    /**
+     * @return <code>true</code> if Nagle's algorithm is disabled
+     */
+    public boolean isTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    /**
+     * Creates a builder initialized with these options
+     *
+     * @return new builder
+     */
+    public Builder toBuilder() {
+        return new Builder(this);
+    }
+
+    @Override
+    public String toString() {
+        return "ConnectionOptions [backlog=" + backlog + ", connectTimeout=" + connectTimeout + ", keepAlive="
+                + keepAlive + ", receiveBufferSize=" + receiveBufferSize + ", sendBufferSize=" + sendBufferSize
+                + ", tcpNoDelay=" + tcpNoDelay + "]";
+    }
+
+    /**
+     * Creates a builder initialized with the default options
+     *
+     * @return new builder
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+}
@@ -0,0 +1,172 @@
+package io.github.defective4.trivialpacket.common.io;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Helpers for reading and writing strings directly in byte buffers, without
+ * stream wrappers or intermediate arrays. <br>
+ * Strings are encoded as plain UTF-8, as produced by
+ * {@link String#getBytes(java.nio.charset.Charset)}. Their lengths are usually
+ * prefixed with a variable-length integer, which takes a single byte for values
+ * up to 127. <br>
+ * Variable-length integers are stored 7 bits per byte, least significant
+ * group first, with the highest bit set on all bytes but the last.
+ */
+public final class DataBuffers {
+    private static final int MAX_SCRATCH_SIZE = 8192;
+    private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[256]);
+
+    private DataBuffers() {}
+
+    /**
+     * Reads a variable-length integer
+     *
+     * @param  buffer      buffer to read from
+     * @return             read value
+     * @throws IOException if the value is longer than 5 bytes
+     */
+    public static int getVarInt(ByteBuffer buffer) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) return value;
+        }
+        throw new IOException("Variable-length integer is too long");
+    }
+
+    /**
+     * Reads a UTF-8 string of known length. <br>
+     * Strings in heap buffers are decoded in place.
+     *
+     * @param  buffer                   buffer to read from
+     * @param  length                   encoded length in bytes
+     * @return                          decoded string
+     * @throws BufferUnderflowException if there are less than length bytes
+     *                                  remaining
+     */
+    public static String getUTF8(ByteBuffer buffer, int length) {
+        if (length < 0 || length > buffer.remaining()) throw new BufferUnderflowException();
+        if (buffer.hasArray()) {
+            String str = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length,
+                    StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + length);
+            return str;
+        }
+        byte[] bytes = length <= MAX_SCRATCH_SIZE ? scratch(length) : new byte[length];
+        buffer.get(bytes, 0, length);
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads all remaining bytes of a buffer as a UTF-8 string
+     *
+     * @param  buffer buffer to read from
+     * @return        decoded string
+     */
+    public static String getUTF8(ByteBuffer buffer) {
+        int length = buffer.remaining();
+        byte[] bytes = length <= MAX_SCRATCH_SIZE ? scratch(length) : new byte[length];
+        buffer.get(bytes, 0, length);
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes a string encoded as UTF-8, without any length prefix. <br>
+     * Unpaired surrogates are replaced with <code>'?'</code>, same as in
+     * {@link String#getBytes(java.nio.charset.Charset)}. The buffer must have at
+     * least {@link #utf8Length(CharSequence)} bytes remaining.
+     *
+     * @param buffer buffer to write to
+     * @param str    string to write
+     */
+    public static void putUTF8(ByteBuffer buffer, CharSequence str) {
+        int start = buffer.position();
+        int length = Math.min(str.length(), buffer.remaining());
+        int i = 0;
+        for (char c; i < length && (c = str.charAt(i)) < 0x80; i++) buffer.put(start + i, (byte) c);
+        buffer.position(start + i);
+        for (; i < str.length(); i++) {
+            char c = str.charAt(i);
+            if (c < 0x80) buffer.put((byte) c);
+            else if (c < 0x800) buffer.put((byte) (0xC0 | c >> 6)).put((byte) (0x80 | c & 0x3F));
+            else if (Character.isSurrogate(c)) {
+                int cp = codePointAt(str, i);
+                if (cp < 0) buffer.put((byte) '?');
+                else {
+                    buffer
+                            .put((byte) (0xF0 | cp >> 18))
+                            .put((byte) (0x80 | cp >> 12 & 0x3F))
+                            .put((byte) (0x80 | cp >> 6 & 0x3F))
+                            .put((byte) (0x80 | cp & 0x3F));
+                    i++;
+                }
+            } else buffer
+                    .put((byte) (0xE0 | c >> 12))
+                    .put((byte) (0x80 | c >> 6 & 0x3F))
+                    .put((byte) (0x80 | c & 0x3F));
+        }
+    }
+
+    /**
+     * Writes a variable-length integer. <br>
+     * Negative values always take 5 bytes.
+     *
+     * @param buffer buffer to write to
+     * @param value  value to write
+     */
+    public static void putVarInt(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) (value & 0x7F | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    /**
+     * Calculates the number of bytes written by
+     * {@link #putUTF8(ByteBuffer, CharSequence)}
+     *
+     * @param  str string to measure
+     * @return     encoded length in bytes
+     */
+    public static int utf8Length(CharSequence str) {
+        int length = 0;
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            if (c < 0x80) length++;
+            else if (c < 0x800) length += 2;
+            else if (Character.isSurrogate(c)) {
+                if (codePointAt(str, i) < 0) length++;
+                else {
+                    length += 4;
+                    i++;
+                }
+            } else length += 3;
+        }
+        return length;
+    }
+
+    /**
+     * @return code point of a valid surrogate pair starting at index, or
+     *         <code>-1</code> if the pair is invalid
+     */
+    private static int codePointAt(CharSequence str, int index) {
+        char high = str.charAt(index);
+        if (!Character.isHighSurrogate(high) || index + 1 >= str.length()) return -1;
+        char low = str.charAt(index + 1);
+        return Character.isLowSurrogate(low) ? Character.toCodePoint(high, low) : -1;
+    }
+
+    private static byte[] scratch(int length) {
+        byte[] bytes = SCRATCH.get();
+        if (bytes.length < length) {
+            bytes = new byte[Math.max(length, bytes.length * 2)];
+            SCRATCH.set(bytes);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,61 @@
+package io.github.defective4.trivialpacket.common.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Implementation of {@link CompressionCodec#DEFLATE}. <br>
+ * Deflaters and inflaters hold native memory and are expensive to create, so a
+ * bounded number of them is kept in pools and reset between uses. Instances are
+ * never cached per thread, as there may be millions of virtual threads.
+ */
+final class DeflateCodec {
+    private static final ArrayBlockingQueue<Deflater> DEFLATERS = new ArrayBlockingQueue<>(
+            Runtime.getRuntime().availableProcessors() * 2);
+    private static final ArrayBlockingQueue<Inflater> INFLATERS = new ArrayBlockingQueue<>(
+            Runtime.getRuntime().availableProcessors() * 2);
+
+    private DeflateCodec() {}
+
+    static void compress(ByteBuffer src, ByteBuffer dst) {
+        Deflater deflater = DEFLATERS.poll();
+        if (deflater == null) deflater = new Deflater();
+        try {
+            deflater.setInput(src);
+            deflater.finish();
+            while (!deflater.finished())
+                if (deflater.deflate(dst) == 0 && !dst.hasRemaining())
+                    throw new IllegalArgumentException("Destination buffer too small");
+        } finally {
+            deflater.reset();
+            if (!DEFLATERS.offer(deflater)) deflater.end();
+        }
+    }
+
+    static void decompress(ByteBuffer src, ByteBuffer dst) throws IOException {
+        Inflater inflater = INFLATERS.poll();
+        if (inflater == null) inflater = new Inflater();
+        try {
+            inflater.setInput(src);
+            while (!inflater.finished()) {
+                int remaining = src.remaining();
+                if (inflater.inflate(dst) == 0 && !inflater.finished() && src.remaining() == remaining)
+                    throw new IOException("Invalid compressed data");
+            }
+            if (dst.hasRemaining() || src.hasRemaining()) throw new IOException("Invalid uncompressed length");
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid compressed data", e);
+        } finally {
+            inflater.reset();
+            if (!INFLATERS.offer(inflater)) inflater.end();
+        }
+    }
+
+    static int maxCompressedLength(int length) {
+        return length + (length >> 12) + (length >> 14) + (length >> 25) + 19;
+    }
+}
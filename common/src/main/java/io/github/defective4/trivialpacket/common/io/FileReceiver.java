@@ -0,0 +1,110 @@
+package io.github.defective4.trivialpacket.common.io;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import io.github.defective4.trivialpacket.common.packet.twoway.StreamChunkPacket;
+import io.github.defective4.trivialpacket.common.packet.twoway.StreamCreditPacket;
+
+/**
+ * Receiving end of a streamed response written to a file. <br>
+ * Chunks are written to the file on the thread reading the connection as soon
+ * as they arrive, and credits are returned right after writing them, so no
+ * chunk is ever queued. Each chunk's data is still copied once, when the packet
+ * is decoded, as the read buffer it arrives in is reused for the next frames.
+ * <br>
+ * Only {@link #await(long)} is meant to be called by the requesting thread.
+ *
+ * @see PendingStreams#receiveFile(java.util.function.IntFunction,
+ *      java.nio.file.Path, long, long)
+ */
+final class FileReceiver {
+    private final FileChannel channel;
+    private int consumed;
+    private final CompletableFuture<Long> done = new CompletableFuture<>();
+    private final int id;
+    private long position;
+    private volatile long received;
+    private final CompletableFuture<byte[]> response;
+    private final PendingStreams streams;
+    private final int window;
+
+    FileReceiver(PendingStreams streams, int id, int window, FileChannel channel, long position,
+            CompletableFuture<byte[]> response) {
+        this.streams = streams;
+        this.id = id;
+        this.window = window;
+        this.channel = channel;
+        this.position = position;
+        this.response = response;
+    }
+
+    /**
+     * Waits until the whole file is received
+     *
+     * @param  timeout     maximum time in milliseconds to wait for data.
+     *                     <code>0</code> means no timeout
+     * @return             number of received bytes
+     * @throws IOException if the transfer failed, timed out, or was interrupted.
+     *                     The transfer is cancelled in the last two cases
+     */
+    long await(long timeout) throws IOException {
+        long lastReceived = -1;
+        while (true) try {
+            return timeout > 0 ? done.get(timeout, TimeUnit.MILLISECONDS) : done.get();
+        } catch (TimeoutException e) {
+            if (received == lastReceived) {
+                cancel(new SocketTimeoutException("File transfer timed out"));
+                throw new SocketTimeoutException("File transfer timed out");
+            }
+            lastReceived = received;
+        } catch (InterruptedException e) {
+            cancel(new InterruptedIOException());
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+        }
+    }
+
+    void fail(Throwable cause) {
+        if (done.completeExceptionally(cause instanceof IOException e ? e : new IOException(cause)))
+            response.complete(null);
+    }
+
+    void receive(StreamChunkPacket chunk) {
+        if (done.isDone()) return;
+        if (chunk.isAborted()) {
+            fail(new IOException("Stream aborted by peer"));
+            return;
+        }
+        try {
+            for (ByteBuffer data = ByteBuffer.wrap(chunk.getData()); data.hasRemaining();)
+                position += channel.write(data, position);
+            received += chunk.getLength();
+            if (chunk.isLast()) {
+                if (done.complete(received)) response.complete(null);
+            } else if (++consumed >= Math.max(1, window / 2)) {
+                streams.send(new StreamCreditPacket(id, consumed));
+                consumed = 0;
+            }
+        } catch (IOException e) {
+            cancel(e);
+        }
+    }
+
+    private void cancel(IOException cause) {
+        if (done.isDone()) return;
+        fail(cause);
+        streams.closed(this, id);
+        try {
+            streams.send(new StreamCreditPacket(id, StreamCreditPacket.CANCEL));
+        } catch (IOException e) {}
+    }
+}
@@ -0,0 +1,157 @@
+package io.github.defective4.trivialpacket.common.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Implementation of {@link CompressionCodec#LZ4}. <br>
+ * Produces and reads the LZ4 block format (without the frame format), using a
+ * single-probe hash table like the reference fast compressor. Works with heap
+ * and direct buffers, using absolute accesses only.
+ */
+final class Lz4Codec {
+    private static final int HASH_LOG = 12;
+    private static final int LAST_LITERALS = 5;
+    private static final int MAX_DISTANCE = 65535;
+    private static final int MF_LIMIT = 12;
+    private static final int MIN_LENGTH = MF_LIMIT + 1;
+    private static final int MIN_MATCH = 4;
+    private static final int RUN_MASK = 15;
+    private static final int SKIP_TRIGGER = 6;
+    private static final ArrayBlockingQueue<int[]> TABLES = new ArrayBlockingQueue<>(
+            Runtime.getRuntime().availableProcessors() * 2);
+
+    private Lz4Codec() {}
+
+    static void compress(ByteBuffer src, ByteBuffer dst) {
+        int base = src.position();
+        int end = src.limit();
+        int anchor = base;
+        int d = dst.position();
+        if (end - base >= MIN_LENGTH) {
+            int[] table = TABLES.poll();
+            if (table == null) table = new int[1 << HASH_LOG];
+            else Arrays.fill(table, 0);
+            try {
+                int matchLimit = end - LAST_LITERALS;
+                int mfLimit = end - MF_LIMIT;
+                int i = base;
+                while (i < mfLimit) {
+                    int sequence = src.getInt(i);
+                    int hash = sequence * -1640531535 >>> 32 - HASH_LOG;
+                    int ref = table[hash] - 1;
+                    table[hash] = i + 1;
+                    if (ref < base || i - ref > MAX_DISTANCE || src.getInt(ref) != sequence) {
+                        i += 1 + (i - anchor >>> SKIP_TRIGGER);
+                        continue;
+                    }
+                    int length = MIN_MATCH;
+                    while (i + length < matchLimit && src.get(ref + length) == src.get(i + length)) length++;
+                    while (i > anchor && ref > base && src.get(ref - 1) == src.get(i - 1)) {
+                        i--;
+                        ref--;
+                        length++;
+                    }
+                    d = writeSequence(src, anchor, i - anchor, dst, d, i - ref, length);
+                    i += length;
+                    anchor = i;
+                }
+            } finally {
+                TABLES.offer(table);
+            }
+        }
+        int literals = end - anchor;
+        int token = d++;
+        if (literals >= RUN_MASK) {
+            dst.put(token, (byte) (RUN_MASK << 4));
+            d = writeLength(dst, d, literals - RUN_MASK);
+        } else dst.put(token, (byte) (literals << 4));
+        dst.put(d, src, anchor, literals);
+        dst.position(d + literals);
+        src.position(end);
+    }
+
+    static void decompress(ByteBuffer src, ByteBuffer dst) throws IOException {
+        int s = src.position();
+        int sEnd = src.limit();
+        int base = dst.position();
+        int d = base;
+        int dEnd = dst.limit();
+        while (true) {
+            if (s >= sEnd) throw new IOException("Invalid compressed data");
+            int token = src.get(s++) & 0xFF;
+            int literals = token >>> 4;
+            if (literals == RUN_MASK) {
+                int b;
+                do {
+                    if (s >= sEnd) throw new IOException("Invalid compressed data");
+                    b = src.get(s++) & 0xFF;
+                    literals += b;
+                    if (literals > dEnd - d) throw new IOException("Invalid compressed data");
+                } while (b == 255);
+            }
+            if (literals > sEnd - s || literals > dEnd - d)
+                throw new IOException("Invalid compressed data");
+            dst.put(d, src, s, literals);
+            s += literals;
+            d += literals;
+            if (s == sEnd) break;
+            if (sEnd - s < 2) throw new IOException("Invalid compressed data");
+            int offset = src.get(s) & 0xFF | (src.get(s + 1) & 0xFF) << 8;
+            s += 2;
+            if (offset == 0 || offset > d - base) throw new IOException("Invalid compressed data");
+            int length = token & RUN_MASK;
+            if (length == RUN_MASK) {
+                int b;
+                do {
+                    if (s >= sEnd) throw new IOException("Invalid compressed data");
+                    b = src.get(s++) & 0xFF;
+                    length += b;
+                    if (length > dEnd - d) throw new IOException("Invalid compressed data");
+                } while (b == 255);
+            }
+            length += MIN_MATCH;
+            if (length > dEnd - d) throw new IOException("Invalid compressed data");
+            int ref = d - offset;
+            if (offset >= length) dst.put(d, dst, ref, length);
+            else for (int i = 0; i < length; i++) dst.put(d + i, dst.get(ref + i));
+            d += length;
+        }
+        if (d != dEnd) throw new IOException("Invalid uncompressed length");
+        src.position(s);
+        dst.position(d);
+    }
+
+    static int maxCompressedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    private static int writeLength(ByteBuffer dst, int d, int length) {
+        for (; length >= 255; length -= 255) dst.put(d++, (byte) 255);
+        dst.put(d++, (byte) length);
+        return d;
+    }
+
+    private static int writeSequence(ByteBuffer src, int anchor, int literals, ByteBuffer dst, int d, int offset,
+            int length) {
+        int token = d++;
+        int tokenValue;
+        if (literals >= RUN_MASK) {
+            tokenValue = RUN_MASK << 4;
+            d = writeLength(dst, d, literals - RUN_MASK);
+        } else tokenValue = literals << 4;
+        dst.put(d, src, anchor, literals);
+        d += literals;
+        dst.put(d++, (byte) offset);
+        dst.put(d++, (byte) (offset >>> 8));
+        length -= MIN_MATCH;
+        if (length >= RUN_MASK) {
+            tokenValue |= RUN_MASK;
+            d = writeLength(dst, d, length - RUN_MASK);
+        } else tokenValue |= length;
+        dst.put(token, (byte) tokenValue);
+        return d;
+    }
+}
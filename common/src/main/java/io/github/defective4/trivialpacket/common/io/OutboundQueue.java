@@ -0,0 +1,907 @@
+package io.github.defective4.trivialpacket.common.io;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.util.Collection;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+
+import io.github.defective4.trivialpacket.common.concurrent.MpscQueue;
+import io.github.defective4.trivialpacket.common.concurrent.VirtualThreads;
+import io.github.defective4.trivialpacket.common.metrics.MetricsSink;
+import io.github.defective4.trivialpacket.common.packet.CommandTable;
+import io.github.defective4.trivialpacket.common.packet.Packet;
+import io.github.defective4.trivialpacket.common.packet.twoway.CommandPacket;
+
+/**
+ * A per-connection queue of outgoing frames. <br>
+ * Packets are encoded as soon as they are queued, and written to the underlying
+ * channel or stream in batches:
+ * <ul>
+ * <li>when {@link #flush()} is called</li>
+ * <li>when the number of pending bytes reaches the flush threshold</li>
+ * <li>when the linger time passes after queuing a packet</li>
+ * </ul>
+ * With the default linger time of <code>0</code>, every sent packet is flushed
+ * immediately. <br>
+ * Frames are written to channels with a single gathering write, and to streams
+ * through a buffer, so a batch of packets costs as few system calls (and TLS
+ * records) as possible. <br>
+ * Packets can be compressed with a {@link CompressionCodec}. They are
+ * compressed by the sending thread while encoding, so compression of different
+ * packets runs in parallel. Already encoded frames are written as they are.
+ * <br>
+ * Similarly, commands found in the queue's {@link CommandTable} are sent by
+ * their code. <br>
+ * A frame can also be split into an encoded packet followed by a trailer
+ * buffer, such as a memory-mapped file region. The trailer is written directly
+ * to channels, and through the copy buffer to streams, without ever being
+ * copied to the heap. <br>
+ * <br>
+ * The queue is bounded by its high and low watermarks. When the number of
+ * pending bytes grows above the high watermark, the queue becomes not writable
+ * until it drains below the low watermark. Packets sent while the queue is not
+ * writable are handled according to its {@link OverflowPolicy}. With the
+ * {@link OverflowPolicy#BLOCK} policy, sending threads write the frames
+ * themselves, otherwise frames are written by a separate thread, so a peer that
+ * doesn't read can't block the senders. <br>
+ * <br>
+ * All methods are thread safe. Sending threads never wait for each other: each
+ * frame is added to a lock-free queue, and the first sender that finds no other
+ * thread writing becomes the writer, writing frames of all senders in the order
+ * they were queued. Frames are never interleaved on the wire. As a consequence,
+ * a write error may be reported to a different sender than the one whose packet
+ * failed, but all subsequent operations fail with the same exception.
+ */
+public class OutboundQueue implements Closeable {
+    /**
+     * Listener of state changes of a queue. <br>
+     * Methods are called on whichever thread caused the change, and must not
+     * block.
+     */
+    public interface Listener {
+        /**
+         * Called when a packet is sent to a non-writable queue using the
+         * {@link OverflowPolicy#DISCONNECT} policy. <br>
+         * At this point all frames that haven't started being written are
+         * discarded, and the queue rejects all new packets, except for the one
+         * passed to {@link OutboundQueue#closeAfterFlush(Packet, long, Runnable)}.
+         */
+        void overflowed();
+
+        /**
+         * Called when the queue becomes writable or not writable
+         *
+         * @param writable new state
+         * @see            OutboundQueue#isWritable()
+         */
+        void writabilityChanged(boolean writable);
+    }
+
+    /**
+     * Default number of pending bytes that triggers a flush
+     */
+    public static final int DEFAULT_FLUSH_THRESHOLD = 16384;
+
+    /**
+     * Default number of pending bytes above which the queue becomes not writable
+     */
+    public static final int DEFAULT_HIGH_WATERMARK = 1024 * 1024;
+
+    /**
+     * Default number of pending bytes below which the queue becomes writable
+     * again
+     */
+    public static final int DEFAULT_LOW_WATERMARK = 512 * 1024;
+
+    private static final Executor ASYNC_WRITER = VirtualThreads.newThreadPerTaskExecutor();
+    private static final ByteBuffer DROPPED = ByteBuffer.allocate(0).asReadOnlyBuffer();
+    private static final ScheduledExecutorService LINGER_TIMER = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "OutboundQueue linger timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final int MAX_BATCH = 64;
+    private static final long WRITABLE_POLL_INTERVAL = 100;
+
+    private final ByteBuffer[] batch = new ByteBuffer[MAX_BATCH + 1];
+    private int batchStart, batchEnd;
+    private final GatheringByteChannel channel;
+    private final AtomicReference<Runnable> closeCallback = new AtomicReference<>();
+    private volatile boolean closed;
+    private volatile CommandTable commandTable;
+    private volatile CompressionCodec compression = CompressionCodec.NONE;
+    private volatile int compressionThreshold = CompressionCodec.DEFAULT_THRESHOLD;
+    private byte[] copyBuffer;
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    private volatile IOException failure;
+    private volatile int flushThreshold = DEFAULT_FLUSH_THRESHOLD;
+    private final MpscQueue<ByteBuffer> frames = new MpscQueue<>();
+    private volatile int highWatermark = DEFAULT_HIGH_WATERMARK;
+    private volatile long linger;
+    private final AtomicBoolean lingerScheduled = new AtomicBoolean();
+    private volatile Listener listener;
+    private volatile int lowWatermark = DEFAULT_LOW_WATERMARK;
+    private volatile MetricsSink metrics;
+    private final boolean nonBlocking;
+    private volatile OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+    private volatile boolean overflowed;
+    private final AtomicInteger pendingBytes = new AtomicInteger();
+    private final BufferPool pool;
+    private final OutputStream stream;
+    private final AtomicBoolean writable = new AtomicBoolean(true);
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    /**
+     * Creates a queue writing to a channel. <br>
+     * The channel may be non-blocking, in which case {@link #flush()} stops as
+     * soon as the channel doesn't accept more data. The blocking mode of the
+     * channel must not change after creating the queue.
+     *
+     * @param  channel              target channel
+     * @throws NullPointerException if channel is null
+     */
+    public OutboundQueue(GatheringByteChannel channel) {
+        Objects.requireNonNull(channel);
+        this.channel = channel;
+        stream = null;
+        pool = BufferPool.DIRECT;
+        nonBlocking = channel instanceof SelectableChannel selectable && !selectable.isBlocking();
+    }
+
+    /**
+     * Creates a queue writing to a blocking stream.
+     *
+     * @param  stream               target stream
+     * @throws NullPointerException if stream is null
+     */
+    public OutboundQueue(OutputStream stream) {
+        Objects.requireNonNull(stream);
+        this.stream = new BufferedOutputStream(stream, DEFAULT_FLUSH_THRESHOLD);
+        channel = null;
+        pool = BufferPool.HEAP;
+        nonBlocking = false;
+    }
+
+    /**
+     * Closes this queue and discards all pending frames. <br>
+     * The underlying channel or stream is not closed.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        writeLock.lock();
+        try {
+            for (int i = batchStart; i < batchEnd; i++) pool.release(batch[i]);
+            batchStart = batchEnd = 0;
+            discard();
+            pendingBytes.set(0);
+        } finally {
+            writeLock.unlock();
+        }
+        signalWaiters();
+    }
+
+    /**
+     * Stops accepting new packets and sends a final one after all frames that
+     * have started being written. <br>
+     * The callback is called once, when the final packet is written, or when the
+     * timeout passes, whichever happens first. It's meant to close the
+     * connection. <br>
+     * On blocking channels and streams the frames are written by a separate
+     * thread. On non-blocking channels the caller is responsible for flushing
+     * the queue.
+     *
+     * @param  last                 final packet to send, usually a
+     *                              {@link io.github.defective4.trivialpacket.common.packet.twoway.DisconnectPacket}
+     * @param  timeout              maximum time to wait for the packet to be
+     *                              written, in milliseconds
+     * @param  callback             called after the packet is written or the
+     *                              timeout passes
+     * @throws NullPointerException if last or callback is null
+     */
+    public void closeAfterFlush(Packet last, long timeout, Runnable callback) {
+        Objects.requireNonNull(last);
+        Objects.requireNonNull(callback);
+        overflowed = true;
+        discard();
+        try {
+            if (failure == null && !closed) {
+                ByteBuffer frame = last.encode(pool);
+                pendingBytes.addAndGet(frame.remaining());
+                frames.offer(frame);
+            }
+        } catch (IOException e) {}
+        closeCallback.set(callback);
+        CompletableFuture.delayedExecutor(timeout, TimeUnit.MILLISECONDS).execute(this::runCloseCallback);
+        if (!nonBlocking) drainAsync(ASYNC_WRITER);
+    }
+
+    /**
+     * Writes all pending frames, waiting for any other thread currently writing.
+     * <br>
+     * On non-blocking channels, this method writes only as much as the channel
+     * accepts.
+     *
+     * @return             <code>true</code> if there are no pending frames left
+     * @throws IOException if there was an error writing frames. All subsequent
+     *                     operations on this queue will fail with the same
+     *                     exception
+     */
+    public boolean flush() throws IOException {
+        boolean flushed;
+        writeLock.lock();
+        try {
+            flushed = flushLocked();
+        } finally {
+            writeLock.unlock();
+        }
+        if (flushed) runCloseCallbackIfSet();
+        return flushed;
+    }
+
+    /**
+     * Get table used to send commands by their code
+     *
+     * @return command table, or <code>null</code> if there is none
+     */
+    public CommandTable getCommandTable() {
+        return commandTable;
+    }
+
+    /**
+     * Get codec used to compress packets
+     *
+     * @return compression codec
+     */
+    public CompressionCodec getCompression() {
+        return compression;
+    }
+
+    /**
+     * Get minimum data length of compressed packets
+     *
+     * @return compression threshold in bytes
+     */
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    /**
+     * Get current flush threshold
+     *
+     * @return number of pending bytes triggering a flush
+     */
+    public int getFlushThreshold() {
+        return flushThreshold;
+    }
+
+    /**
+     * Get current high watermark
+     *
+     * @return number of pending bytes above which the queue becomes not writable
+     */
+    public int getHighWatermark() {
+        return highWatermark;
+    }
+
+    /**
+     * Get current linger time
+     *
+     * @return linger time in milliseconds
+     */
+    public long getLinger() {
+        return linger;
+    }
+
+    /**
+     * Get current low watermark
+     *
+     * @return number of pending bytes below which the queue becomes writable
+     *         again
+     */
+    public int getLowWatermark() {
+        return lowWatermark;
+    }
+
+    /**
+     * Get sink notified of queued packets
+     *
+     * @return metrics sink, or <code>null</code> if there is none
+     */
+    public MetricsSink getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Get current overflow policy
+     *
+     * @return overflow policy
+     */
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * Get number of encoded bytes waiting to be written
+     *
+     * @return number of pending bytes
+     */
+    public int getPendingBytes() {
+        return pendingBytes.get();
+    }
+
+    /**
+     * Checks if packets can be sent without triggering the overflow policy. <br>
+     * The queue becomes not writable when the number of pending bytes grows
+     * above the high watermark, and writable again when it drains below the low
+     * watermark.
+     *
+     * @return <code>true</code> if the queue is writable
+     */
+    public boolean isWritable() {
+        return writable.get();
+    }
+
+    /**
+     * Encodes and queues a packet without flushing it. <br>
+     * If the queue is not writable, the overflow policy is applied first.
+     *
+     * @param  packet               packet to queue
+     * @throws IOException          if the queue is closed, has failed before,
+     *                              rejected the packet, or there was an error
+     *                              encoding the packet
+     * @throws NullPointerException if packet is null
+     */
+    public void offer(Packet packet) throws IOException {
+        offer(packet, true);
+    }
+
+    /**
+     * Encodes and queues a packet without flushing it. <br>
+     * If the queue is not writable, the overflow policy is applied first.
+     *
+     * @param  packet               packet to queue
+     * @param  mayBlock             <code>false</code> if the calling thread must
+     *                              not wait for the queue to drain with the
+     *                              {@link OverflowPolicy#BLOCK} policy
+     * @throws IOException          if the queue is closed, has failed before,
+     *                              rejected the packet, or there was an error
+     *                              encoding the packet
+     * @throws NullPointerException if packet is null
+     */
+    public void offer(Packet packet, boolean mayBlock) throws IOException {
+        Objects.requireNonNull(packet);
+        checkState();
+        CommandTable commandTable = this.commandTable;
+        if (commandTable != null && packet instanceof CommandPacket command) packet = command.compact(commandTable);
+        ByteBuffer frame = packet.encode(pool);
+        ByteBuffer compressed = compression.compressFrame(frame, pool, compressionThreshold);
+        if (compressed != frame) {
+            pool.release(frame);
+            frame = compressed;
+        }
+        try {
+            enqueue(frame, null, mayBlock);
+        } catch (IOException e) {
+            pool.release(frame);
+            throw e;
+        }
+    }
+
+    /**
+     * Encodes a packet and queues it followed by a trailer, without flushing it.
+     * <br>
+     * The frame length is extended to cover the trailer, so the receiver sees a
+     * single packet with the trailer appended to its data. The trailer is written
+     * as-is and is never released to the pool. Such frames are never compressed.
+     * <br>
+     * If the queue is not writable, the overflow policy is applied first.
+     *
+     * @param  packet               packet to queue
+     * @param  trailer              data following the packet's data
+     * @param  mayBlock             <code>false</code> if the calling thread must
+     *                              not wait for the queue to drain with the
+     *                              {@link OverflowPolicy#BLOCK} policy
+     * @throws IOException          if the queue is closed, has failed before,
+     *                              rejected the packet, or there was an error
+     *                              encoding the packet
+     * @throws NullPointerException if packet or trailer is null
+     */
+    public void offer(Packet packet, ByteBuffer trailer, boolean mayBlock) throws IOException {
+        Objects.requireNonNull(packet);
+        Objects.requireNonNull(trailer);
+        checkState();
+        ByteBuffer frame = packet.encode(pool);
+        frame.putInt(0, frame.getInt(0) + trailer.remaining());
+        try {
+            enqueue(frame, trailer.asReadOnlyBuffer(), mayBlock);
+        } catch (IOException e) {
+            pool.release(frame);
+            throw e;
+        }
+    }
+
+    /**
+     * Queues an already encoded frame without flushing it. <br>
+     * The frame is written as-is. A read-only view of it is queued, so it's never
+     * released to the pool, and its position is left untouched. A single frame
+     * can be shared between multiple queues, as long as it's not modified. <br>
+     * If the queue is not writable, the overflow policy is applied first, but
+     * the calling thread never waits for the queue to drain.
+     *
+     * @param  frame                frame to queue, including the length and the ID
+     * @throws IOException          if the queue is closed, has failed before, or
+     *                              rejected the frame
+     * @throws NullPointerException if frame is null
+     */
+    public void offerFrame(ByteBuffer frame) throws IOException {
+        Objects.requireNonNull(frame);
+        checkState();
+        enqueue(frame.asReadOnlyBuffer(), null, false);
+    }
+
+    /**
+     * Queues an already encoded frame, and writes pending frames using the
+     * executor, so the calling thread never blocks on the underlying channel or
+     * stream. <br>
+     * At most one write is scheduled at a time, frames queued before it starts
+     * are written together.
+     *
+     * @param  frame                frame to send
+     * @param  executor             executor to write frames on
+     * @throws IOException          if the queue is closed, has failed before, or
+     *                              rejected the frame
+     * @throws NullPointerException if frame or executor is null
+     * @see                         #offerFrame(ByteBuffer)
+     */
+    public void sendFrame(ByteBuffer frame, Executor executor) throws IOException {
+        Objects.requireNonNull(executor);
+        offerFrame(frame);
+        drainAsync(executor);
+    }
+
+    /**
+     * Queues a packet and flushes the queue according to the flush threshold and
+     * the linger time.
+     *
+     * @param  packet               packet to send
+     * @throws IOException          if there was an error sending the packet
+     * @throws NullPointerException if packet is null
+     */
+    public void send(Packet packet) throws IOException {
+        offer(packet);
+        drainAfterSend();
+    }
+
+    /**
+     * Queues a packet followed by a trailer, and flushes the queue according to
+     * the flush threshold and the linger time.
+     *
+     * @param  packet               packet to send
+     * @param  trailer              data following the packet's data
+     * @throws IOException          if there was an error sending the packet
+     * @throws NullPointerException if packet or trailer is null
+     * @see                         #offer(Packet, ByteBuffer, boolean)
+     */
+    public void send(Packet packet, ByteBuffer trailer) throws IOException {
+        offer(packet, trailer, true);
+        drainAfterSend();
+    }
+
+    /**
+     * Queues all packets and flushes them together
+     *
+     * @param  packets              packets to send
+     * @throws IOException          if there was an error sending the packets
+     * @throws NullPointerException if packets or any of the packets is null
+     */
+    public void sendBatch(Collection<? extends Packet> packets) throws IOException {
+        Objects.requireNonNull(packets);
+        for (Packet packet : packets) offer(packet);
+        drainForSender();
+    }
+
+    /**
+     * Flushes the queue after a packet was sent, or schedules a flush after the
+     * linger time
+     */
+    private void drainAfterSend() throws IOException {
+        if (linger <= 0 || pendingBytes.get() >= flushThreshold) drainForSender();
+        else if (lingerScheduled.compareAndSet(false, true)) LINGER_TIMER.schedule(() -> {
+            lingerScheduled.set(false);
+            if (nonBlocking) try {
+                drain();
+            } catch (IOException e) {}
+            else drainAsync(ASYNC_WRITER);
+        }, linger, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Set table used to send commands queued from now on by their code. <br>
+     * The peer must resolve the codes with the same table.
+     *
+     * @param commandTable command table, or <code>null</code> to send all
+     *                     commands by their name
+     */
+    public void setCommandTable(CommandTable commandTable) {
+        this.commandTable = commandTable;
+    }
+
+    /**
+     * Set codec used to compress packets queued from now on. <br>
+     * Only packets with data at least <code>threshold</code> bytes long are
+     * compressed, and only if compression makes them smaller. The peer must be
+     * able to decompress frames with this codec. <br>
+     * Default values are {@link CompressionCodec#NONE} and
+     * {@link CompressionCodec#DEFAULT_THRESHOLD}.
+     *
+     * @param  compression
+     * @param  threshold                minimum data length to compress
+     * @throws NullPointerException     if compression is null
+     * @throws IllegalArgumentException if threshold is less than 0
+     */
+    public void setCompression(CompressionCodec compression, int threshold) {
+        Objects.requireNonNull(compression);
+        if (threshold < 0) throw new IllegalArgumentException("threshold can't be less than 0");
+        compressionThreshold = threshold;
+        this.compression = compression;
+    }
+
+    /**
+     * Set number of pending bytes that triggers a flush, regardless of the linger
+     * time. <br>
+     * Default value is {@link #DEFAULT_FLUSH_THRESHOLD}.
+     *
+     * @param  flushThreshold
+     * @throws IllegalArgumentException if flushThreshold is less than 1
+     */
+    public void setFlushThreshold(int flushThreshold) {
+        if (flushThreshold < 1) throw new IllegalArgumentException("flushThreshold can't be less than 1");
+        this.flushThreshold = flushThreshold;
+    }
+
+    /**
+     * Set the linger time. <br>
+     * Sent packets are held for at most this long, so they can be written
+     * together with packets sent shortly after them. <br>
+     * Default value is <code>0</code>, meaning every packet is flushed
+     * immediately.
+     *
+     * @param  linger                   linger time in milliseconds
+     * @throws IllegalArgumentException if linger is less than 0
+     */
+    public void setLinger(long linger) {
+        if (linger < 0) throw new IllegalArgumentException("linger can't be less than 0");
+        this.linger = linger;
+    }
+
+    /**
+     * Set the listener notified about state changes of this queue
+     *
+     * @param listener new listener, or <code>null</code> to remove it
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Set sink notified of every packet queued from now on
+     *
+     * @param metrics metrics sink, or <code>null</code> to stop measuring
+     */
+    public void setMetrics(MetricsSink metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Set what happens to packets sent while the queue is not writable. <br>
+     * Default value is {@link OverflowPolicy#BLOCK}.
+     *
+     * @param  overflowPolicy
+     * @throws NullPointerException if overflowPolicy is null
+     */
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        Objects.requireNonNull(overflowPolicy);
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Set the watermarks bounding this queue. <br>
+     * Default values are {@link #DEFAULT_LOW_WATERMARK} and
+     * {@link #DEFAULT_HIGH_WATERMARK}.
+     *
+     * @param  lowWatermark             number of pending bytes below which the
+     *                                  queue becomes writable again
+     * @param  highWatermark            number of pending bytes above which the
+     *                                  queue becomes not writable
+     * @throws IllegalArgumentException if lowWatermark is less than 0, or
+     *                                  highWatermark is less than lowWatermark
+     */
+    public void setWatermarks(int lowWatermark, int highWatermark) {
+        if (lowWatermark < 0) throw new IllegalArgumentException("lowWatermark can't be less than 0");
+        if (highWatermark < lowWatermark)
+            throw new IllegalArgumentException("highWatermark can't be less than lowWatermark");
+        this.lowWatermark = lowWatermark;
+        this.highWatermark = highWatermark;
+        updateWritability();
+    }
+
+    /**
+     * Waits until the queue becomes writable. <br>
+     * On blocking channels and streams, the waiting thread writes pending frames
+     * itself if no other thread is writing them.
+     */
+    private void awaitWritable() throws IOException {
+        while (!writable.get()) {
+            checkState();
+            if (!nonBlocking && writeLock.tryLock()) {
+                try {
+                    flushLocked();
+                } finally {
+                    writeLock.unlock();
+                }
+                continue;
+            }
+            try {
+                synchronized (writable) {
+                    if (!writable.get() && !closed && failure == null) writable.wait(WRITABLE_POLL_INTERVAL);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    private void checkState() throws IOException {
+        IOException failure = this.failure;
+        if (failure != null) throw failure;
+        if (closed) throw new IOException("Connection closed");
+        if (overflowed) throw new IOException("Outbound buffer overflow");
+    }
+
+    /**
+     * Discards all queued frames that haven't started being written
+     */
+    private void discard() {
+        synchronized (frames) {
+            ByteBuffer frame;
+            while ((frame = frames.poll()) != null) {
+                pendingBytes.addAndGet(-frame.remaining());
+                pool.release(frame);
+            }
+        }
+        updateWritability();
+    }
+
+    /**
+     * Writes pending frames, unless another thread is already writing them. <br>
+     * The writing thread keeps writing until it finds the queue empty after
+     * releasing the write lock, so no frame is left behind.
+     *
+     * @throws IOException
+     */
+    private void drain() throws IOException {
+        do {
+            if (!writeLock.tryLock()) return;
+            boolean flushed;
+            try {
+                flushed = flushLocked();
+            } finally {
+                writeLock.unlock();
+            }
+            if (!flushed) return;
+            runCloseCallbackIfSet();
+        } while (!frames.isEmpty());
+    }
+
+    private void drainAsync(Executor executor) {
+        if (drainScheduled.compareAndSet(false, true)) executor.execute(() -> {
+            drainScheduled.set(false);
+            try {
+                drain();
+            } catch (IOException e) {}
+        });
+    }
+
+    /**
+     * Drains the queue after a sender queued its packets. <br>
+     * Unless the queue blocks senders anyway, frames are written by a separate
+     * thread on blocking channels and streams.
+     */
+    private void drainForSender() throws IOException {
+        if (nonBlocking || overflowPolicy == OverflowPolicy.BLOCK) drain();
+        else drainAsync(ASYNC_WRITER);
+    }
+
+    /**
+     * Discards the oldest frames queued with {@link #offerFrame(ByteBuffer)},
+     * until the queue drains below the low watermark. <br>
+     * Such frames are the only read-only ones in the queue, apart from
+     * trailers. Protocol frames, like responses, stream credits and chunks, are
+     * never discarded, as the peer would wait for them forever. Discarded frames
+     * are replaced with an empty buffer, skipped when flushing.
+     */
+    private void dropOldest() {
+        synchronized (frames) {
+            boolean[] trailer = new boolean[1];
+            frames.replaceAll(frame -> {
+                if (trailer[0]) {
+                    trailer[0] = false;
+                    return frame;
+                }
+                if (frame == DROPPED) return frame;
+                if (hasTrailer(frame)) {
+                    trailer[0] = true;
+                    return frame;
+                }
+                if (!frame.isReadOnly() || pendingBytes.get() <= lowWatermark) return frame;
+                pendingBytes.addAndGet(-frame.remaining());
+                return DROPPED;
+            });
+        }
+        updateWritability();
+    }
+
+    private void enqueue(ByteBuffer frame, ByteBuffer trailer, boolean mayBlock) throws IOException {
+        if (!writable.get()) switch (overflowPolicy) {
+            case BLOCK -> {
+                if (mayBlock) awaitWritable();
+            }
+            case DROP_OLDEST -> dropOldest();
+            case DISCONNECT -> {
+                if (!overflowed) {
+                    overflowed = true;
+                    discard();
+                    Listener listener = this.listener;
+                    if (listener != null) listener.overflowed();
+                }
+                throw new IOException("Outbound buffer overflow");
+            }
+        }
+        checkState();
+        int length = frame.remaining() + (trailer == null ? 0 : trailer.remaining());
+        pendingBytes.addAndGet(length);
+        if (trailer == null) frames.offer(frame);
+        else frames.offer(frame, trailer);
+        updateWritability();
+        MetricsSink metrics = this.metrics;
+        if (metrics != null) metrics.packetSent(frame.get(frame.position() + 4) & 0xFF, length);
+    }
+
+    private boolean flushChannel() throws IOException {
+        while (true) {
+            if (batchStart == batchEnd) {
+                batchStart = batchEnd = 0;
+                synchronized (frames) {
+                    ByteBuffer frame;
+                    while (batchEnd < MAX_BATCH && (frame = frames.poll()) != null) {
+                        if (frame == DROPPED) continue;
+                        batch[batchEnd++] = frame;
+                        if (hasTrailer(frame)) batch[batchEnd++] = frames.poll();
+                    }
+                }
+                if (batchEnd == 0) return true;
+            }
+            long written = channel.write(batch, batchStart, batchEnd - batchStart);
+            pendingBytes.addAndGet((int) -written);
+            while (batchStart < batchEnd && !batch[batchStart].hasRemaining()) {
+                pool.release(batch[batchStart]);
+                batch[batchStart++] = null;
+            }
+            if (written > 0) updateWritability();
+            else if (batchStart < batchEnd) return false;
+        }
+    }
+
+    private boolean flushLocked() throws IOException {
+        IOException failure = this.failure;
+        if (failure != null) throw failure;
+        if (closed) throw new IOException("Connection closed");
+        try {
+            if (channel != null) return flushChannel();
+            flushStream();
+            return true;
+        } catch (IOException e) {
+            this.failure = e;
+            signalWaiters();
+            throw e;
+        }
+    }
+
+    private void flushStream() throws IOException {
+        ByteBuffer frame, trailer;
+        while (true) {
+            synchronized (frames) {
+                frame = frames.poll();
+                while (frame == DROPPED) frame = frames.poll();
+                trailer = frame != null && hasTrailer(frame) ? frames.poll() : null;
+            }
+            if (frame == null) break;
+            try {
+                writeToStream(frame);
+                if (trailer != null) writeToStream(trailer);
+            } finally {
+                pendingBytes.addAndGet(-frame.remaining());
+                pool.release(frame);
+                if (trailer != null) pendingBytes.addAndGet(-trailer.remaining());
+            }
+            updateWritability();
+        }
+        stream.flush();
+    }
+
+    /**
+     * Checks if a frame is followed by a trailer, which is the case when the
+     * frame is shorter than its length says
+     */
+    private static boolean hasTrailer(ByteBuffer frame) {
+        return frame.remaining() - 4 < (frame.getInt(frame.position()) & ~CompressionCodec.COMPRESSED_FLAG);
+    }
+
+    private void runCloseCallback() {
+        Runnable callback = closeCallback.getAndSet(null);
+        if (callback != null) callback.run();
+    }
+
+    private void runCloseCallbackIfSet() {
+        if (closeCallback.get() != null && frames.isEmpty()) runCloseCallback();
+    }
+
+    private void signalWaiters() {
+        synchronized (writable) {
+            writable.notifyAll();
+        }
+    }
+
+    private void writeToStream(ByteBuffer buffer) throws IOException {
+        if (buffer.hasArray()) {
+            stream.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            return;
+        }
+        if (copyBuffer == null) copyBuffer = new byte[DEFAULT_FLUSH_THRESHOLD];
+        for (ByteBuffer view = buffer.duplicate(); view.hasRemaining();) {
+            int length = Math.min(view.remaining(), copyBuffer.length);
+            view.get(copyBuffer, 0, length);
+            stream.write(copyBuffer, 0, length);
+        }
+    }
+
+    /**
+     * Updates the writable state after the number of pending bytes changed, and
+     * notifies the listener and waiting senders. <br>
+     * The state is checked again after every change, so a concurrent update
+     * can't leave it stale.
+     */
+    private void updateWritability() {
+        while (true) {
+            int pending = pendingBytes.get();
+            boolean state;
+            if (writable.get()) {
+                if (pending <= highWatermark || !writable.compareAndSet(true, false)) return;
+                state = false;
+            } else {
+                if (pending > lowWatermark || !writable.compareAndSet(false, true)) return;
+                state = true;
+                signalWaiters();
+            }
+            Listener listener = this.listener;
+            if (listener != null) listener.writabilityChanged(state);
+        }
+    }
+}
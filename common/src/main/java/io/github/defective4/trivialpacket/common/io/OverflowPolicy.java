@@ -0,0 +1,35 @@
+package io.github.defective4.trivialpacket.common.io;
+
+/**
+ * What an {@link OutboundQueue} does with a packet sent while the queue is not
+ * writable, that is while the peer doesn't read data as fast as it's sent.
+ *
+ * @see OutboundQueue#isWritable()
+ */
+public enum OverflowPolicy {
+    /**
+     * The sending thread waits until the queue drains below the low watermark.
+     * <br>
+     * Threads that can't wait without stopping the queue from being drained (the
+     * event loop thread of a non-blocking transport) queue the packet anyway.
+     */
+    BLOCK,
+    /**
+     * The oldest frames queued with {@link OutboundQueue#offerFrame(java.nio.ByteBuffer)},
+     * like broadcast packets, that haven't started being written yet are
+     * discarded until the queue drains below the low watermark, and the packet is
+     * queued. <br>
+     * Other packets, like command responses and stream chunks, are never
+     * discarded, so the queue may stay above the watermark. <br>
+     * The sending thread never blocks.
+     */
+    DROP_OLDEST,
+    /**
+     * The packet is rejected, all frames that haven't started being written yet
+     * are discarded, and the connection is closed after sending a
+     * {@link io.github.defective4.trivialpacket.common.packet.twoway.DisconnectPacket}.
+     * <br>
+     * The sending thread never blocks.
+     */
+    DISCONNECT
+}
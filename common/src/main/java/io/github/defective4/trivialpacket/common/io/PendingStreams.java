@@ -0,0 +1,342 @@
+package io.github.defective4.trivialpacket.common.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntFunction;
+
+import io.github.defective4.trivialpacket.common.concurrent.PendingRequests;
+import io.github.defective4.trivialpacket.common.packet.Packet;
+import io.github.defective4.trivialpacket.common.packet.twoway.StreamChunkPacket;
+import io.github.defective4.trivialpacket.common.packet.twoway.StreamCreditPacket;
+
+/**
+ * Streamed responses of a single connection, in both directions. <br>
+ * A streamed response is split into {@link StreamChunkPacket}s of bounded size.
+ * The receiver grants the sender a window of chunks with
+ * {@link StreamCreditPacket}s, and grants more as the application consumes
+ * them, so neither side ever holds more than a window of data, regardless of
+ * the response size. <br>
+ * Streams share request IDs with a {@link PendingRequests} instance, so a
+ * request read as a stream can also be answered with a regular response, which
+ * is then read from the stream as a single chunk. <br>
+ * Files are streamed the same way, but are sent from memory-mapped regions of
+ * the file, and written to the target file as soon as they are received. <br>
+ * The initial credits are sent right after the request, so they usually arrive
+ * before the response stream is opened. Such credits are kept until the stream
+ * is opened, for a bounded number of requests. <br>
+ * All methods are thread safe.
+ */
+public final class PendingStreams {
+    /**
+     * Sends packets over the connection owning the streams
+     */
+    public interface PacketSender {
+        /**
+         * Sends a packet
+         *
+         * @param  packet      packet to send
+         * @throws IOException if there was an error sending the packet
+         */
+        void send(Packet packet) throws IOException;
+
+        /**
+         * Sends a packet followed by a trailer appended to its data
+         *
+         * @param  packet      packet to send
+         * @param  trailer     data following the packet's data
+         * @throws IOException if there was an error sending the packet
+         * @see                OutboundQueue#send(Packet, ByteBuffer)
+         */
+        void send(Packet packet, ByteBuffer trailer) throws IOException;
+    }
+
+    /**
+     * Default maximum amount of data carried by a single chunk
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * Default number of chunks a receiver allows to be in flight
+     */
+    public static final int DEFAULT_WINDOW = 8;
+
+    private static final int MAX_EARLY_CREDITS = 1024;
+
+    private final int chunkSize;
+    private final Map<Integer, Integer> earlyCredits = new ConcurrentHashMap<>();
+    private final Map<Integer, FileReceiver> files = new ConcurrentHashMap<>();
+    private final Map<Integer, ChunkedInputStream> inbound = new ConcurrentHashMap<>();
+    private final Map<Integer, ChunkedOutputStream> outbound = new ConcurrentHashMap<>();
+    private final BooleanSupplier readingThread;
+    private final PendingRequests<byte[]> requests;
+    private final PacketSender sender;
+    private final int window;
+
+    /**
+     * Creates a new, empty set of streams
+     *
+     * @param  requests                 pending requests of the connection,
+     *                                  allocating stream IDs
+     * @param  sender                   sends packets over the connection
+     * @param  readingThread            returns <code>true</code> if the calling
+     *                                  thread is the one reading the connection.
+     *                                  Writers never wait for credits on that
+     *                                  thread, as the credits would never be read
+     * @param  chunkSize                maximum data length of sent chunks
+     * @param  window                   number of chunks allowed in flight for
+     *                                  received streams
+     * @throws NullPointerException     if requests, sender or readingThread is
+     *                                  null
+     * @throws IllegalArgumentException if chunkSize or window is less than 1
+     */
+    public PendingStreams(PendingRequests<byte[]> requests, PacketSender sender, BooleanSupplier readingThread,
+            int chunkSize, int window) {
+        Objects.requireNonNull(requests);
+        Objects.requireNonNull(sender);
+        Objects.requireNonNull(readingThread);
+        if (chunkSize < 1) throw new IllegalArgumentException("chunkSize can't be less than 1");
+        if (window < 1) throw new IllegalArgumentException("window can't be less than 1");
+        this.requests = requests;
+        this.sender = sender;
+        this.readingThread = readingThread;
+        this.chunkSize = chunkSize;
+        this.window = window;
+    }
+
+    /**
+     * Fails all open streams. <br>
+     * Used when the connection is closed.
+     *
+     * @param cause exception thrown by subsequent operations on the streams
+     */
+    public void failAll(IOException cause) {
+        for (Integer id : inbound.keySet()) {
+            ChunkedInputStream stream = inbound.remove(id);
+            if (stream != null) stream.fail(cause);
+        }
+        for (Integer id : outbound.keySet()) {
+            ChunkedOutputStream stream = outbound.remove(id);
+            if (stream != null) stream.fail(cause);
+        }
+        for (Integer id : files.keySet()) {
+            FileReceiver file = files.remove(id);
+            if (file != null) file.fail(cause);
+        }
+        earlyCredits.clear();
+    }
+
+    /**
+     * Get number of streams being sent or received
+     *
+     * @return number of open streams
+     */
+    public int size() {
+        return inbound.size() + outbound.size() + files.size();
+    }
+
+    /**
+     * Handles a received stream packet
+     *
+     * @param  packet      received packet
+     * @return             <code>true</code> if it was a stream packet. Packets of
+     *                     unknown streams are dropped
+     * @throws IOException if a credit couldn't be sent
+     */
+    public boolean receive(Packet packet) throws IOException {
+        if (packet instanceof StreamChunkPacket chunk) {
+            ChunkedInputStream stream = inbound.get(chunk.getRequestID());
+            if (stream != null) stream.receive(chunk);
+            else {
+                FileReceiver file = files.get(chunk.getRequestID());
+                if (file != null) file.receive(chunk);
+            }
+            return true;
+        }
+        if (packet instanceof StreamCreditPacket credit) {
+            ChunkedOutputStream stream = outbound.get(credit.getRequestID());
+            if (stream == null) {
+                if (credit.getCredits() <= 0) earlyCredits.remove(credit.getRequestID());
+                else if (earlyCredits.size() < MAX_EARLY_CREDITS)
+                    earlyCredits.merge(credit.getRequestID(), credit.getCredits(), Integer::sum);
+                return true;
+            }
+            if (credit.getCredits() > 0) stream.addCredits(credit.getCredits());
+            else if (outbound.remove(credit.getRequestID(), stream))
+                stream.fail(new IOException("Stream cancelled by peer"));
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Sends a request and opens a stream reading its response. <br>
+     * The initial window is granted right after the request.
+     *
+     * @param  request              creates the request packet with the given ID
+     * @param  timeout              maximum time in milliseconds a read waits for
+     *                              data. <code>0</code> means no timeout
+     * @return                      stream of the response
+     * @throws IOException          if the request couldn't be sent
+     * @throws NullPointerException if request is null
+     */
+    public ChunkedInputStream request(IntFunction<Packet> request, long timeout) throws IOException {
+        Objects.requireNonNull(request);
+        CompletableFuture<byte[]> response = new CompletableFuture<>();
+        int id = requests.register(response, 0);
+        ChunkedInputStream stream = new ChunkedInputStream(this, id, window, timeout, response);
+        inbound.put(id, stream);
+        response.whenComplete((data, e) -> {
+            if (data != null) stream.receive(new StreamChunkPacket(id, StreamChunkPacket.LAST, data));
+            else if (e != null) stream.fail(e);
+            inbound.remove(id, stream);
+        });
+        sendRequest(request, id, response);
+        return stream;
+    }
+
+    /**
+     * Sends a request and writes its streamed response to a file. <br>
+     * The file is created if it doesn't exist, and truncated to
+     * <code>offset</code> bytes otherwise, so an interrupted transfer can be
+     * resumed by requesting the rest of the file and passing the current file
+     * size as the offset. Received chunks are written to the file by the thread
+     * reading the connection, while the calling thread waits for the transfer to
+     * complete.
+     *
+     * @param  request                  creates the request packet with the given
+     *                                  ID
+     * @param  target                   file to write to
+     * @param  offset                   position in the file to write the response
+     *                                  at
+     * @param  timeout                  maximum time in milliseconds to wait for
+     *                                  data. <code>0</code> means no timeout
+     * @return                          number of received bytes
+     * @throws IOException              if the file couldn't be opened, the
+     *                                  request couldn't be sent, the transfer
+     *                                  failed or timed out, or the calling thread
+     *                                  is the one reading the connection
+     * @throws NullPointerException     if request or target is null
+     * @throws IllegalArgumentException if offset is less than 0
+     */
+    public long receiveFile(IntFunction<Packet> request, Path target, long offset, long timeout)
+            throws IOException {
+        Objects.requireNonNull(request);
+        Objects.requireNonNull(target);
+        if (offset < 0) throw new IllegalArgumentException("offset can't be less than 0");
+        if (isReadingThread()) throw new IOException("Can't receive files on the reading thread");
+        try (FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            if (channel.size() < offset) throw new IOException("offset is past the end of " + target);
+            channel.truncate(offset);
+            CompletableFuture<byte[]> response = new CompletableFuture<>();
+            int id = requests.register(response, 0);
+            FileReceiver file = new FileReceiver(this, id, window, channel, offset, response);
+            files.put(id, file);
+            response.whenComplete((data, e) -> {
+                if (data != null) file.receive(new StreamChunkPacket(id, StreamChunkPacket.LAST, data));
+                else if (e != null) file.fail(e);
+                files.remove(id, file);
+            });
+            sendRequest(request, id, response);
+            return file.await(timeout);
+        }
+    }
+
+    /**
+     * Opens a stream responding to a request. <br>
+     * Nothing is sent until the receiver grants credits.
+     *
+     * @param  requestID                ID of the request
+     * @return                          stream of the response
+     * @throws IllegalArgumentException if requestID is <code>0</code>
+     * @throws IllegalStateException    if a response to this request is already
+     *                                  being streamed
+     */
+    public ChunkedOutputStream respond(int requestID) {
+        if (requestID == 0) throw new IllegalArgumentException("requestID can't be 0");
+        ChunkedOutputStream stream = new ChunkedOutputStream(this, requestID, chunkSize);
+        if (outbound.putIfAbsent(requestID, stream) != null)
+            throw new IllegalStateException("Response to request " + requestID + " is already streamed");
+        Integer credits = earlyCredits.remove(requestID);
+        if (credits != null) stream.addCredits(credits);
+        return stream;
+    }
+
+    /**
+     * Responds to a request with a part of a file. <br>
+     * The file is sent with {@link ChunkedOutputStream#transferFrom(FileChannel,
+     * long, long)}, from <code>offset</code> to its end. If the file can't be
+     * sent, the response is aborted.
+     *
+     * @param  requestID                ID of the request
+     * @param  file                     file to send
+     * @param  offset                   position in the file to start at
+     * @return                          number of sent bytes
+     * @throws IOException              if there was an error reading the file or
+     *                                  sending it
+     * @throws NullPointerException     if file is null
+     * @throws IllegalArgumentException if requestID is <code>0</code>, or offset
+     *                                  is less than 0
+     * @throws IllegalStateException    if a response to this request is already
+     *                                  being streamed
+     */
+    public long sendFile(int requestID, Path file, long offset) throws IOException {
+        Objects.requireNonNull(file);
+        if (offset < 0) throw new IllegalArgumentException("offset can't be less than 0");
+        ChunkedOutputStream stream = respond(requestID);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long sent = stream.transferFrom(channel, offset, Long.MAX_VALUE - offset);
+            stream.close();
+            return sent;
+        } catch (IOException e) {
+            try {
+                stream.abort();
+            } catch (IOException e2) {
+                e.addSuppressed(e2);
+            }
+            throw e;
+        }
+    }
+
+    void closed(ChunkedInputStream stream, int id) {
+        inbound.remove(id, stream);
+    }
+
+    void closed(ChunkedOutputStream stream, int id) {
+        outbound.remove(id, stream);
+    }
+
+    void closed(FileReceiver file, int id) {
+        files.remove(id, file);
+    }
+
+    boolean isReadingThread() {
+        return readingThread.getAsBoolean();
+    }
+
+    void send(Packet packet) throws IOException {
+        sender.send(packet);
+    }
+
+    void send(Packet packet, ByteBuffer trailer) throws IOException {
+        sender.send(packet, trailer);
+    }
+
+    private void sendRequest(IntFunction<Packet> request, int id, CompletableFuture<byte[]> response)
+            throws IOException {
+        try {
+            sender.send(request.apply(id));
+            sender.send(new StreamCreditPacket(id, window));
+        } catch (IOException e) {
+            response.completeExceptionally(e);
+            throw e;
+        }
+    }
+}
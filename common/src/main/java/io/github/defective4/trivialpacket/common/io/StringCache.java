@@ -0,0 +1,148 @@
+package io.github.defective4.trivialpacket.common.io;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * A bounded cache of decoded UTF-8 strings, keyed by their encoded bytes. <br>
+ * Strings found in the cache are returned without being decoded, so frequently
+ * received strings resolve to a single canonical instance instead of a new
+ * string each time. <br>
+ * The cache is a small open-addressing table with a fixed number of slots.
+ * A string is only cached once it's seen twice, so unique strings never evict
+ * frequent ones, and new strings replace old ones when all probed slots are
+ * taken. Strings longer than the maximum length are never cached. <br>
+ * Instances are safe to use from multiple threads without locking. Concurrent
+ * readers may miss an entry that is being added, in which case the string is
+ * just decoded again.
+ */
+public final class StringCache {
+    /**
+     * Default number of slots
+     */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    /**
+     * Default maximum encoded length of cached strings
+     */
+    public static final int DEFAULT_MAX_LENGTH = 64;
+
+    private static final int PROBES = 4;
+
+    private final Entry[] entries;
+    private final int mask;
+    private final int maxLength;
+    private final int[] seen;
+
+    /**
+     * Creates a new cache with {@link #DEFAULT_CAPACITY} slots, caching strings up
+     * to {@link #DEFAULT_MAX_LENGTH} bytes long
+     */
+    public StringCache() {
+        this(DEFAULT_CAPACITY, DEFAULT_MAX_LENGTH);
+    }
+
+    /**
+     * Creates a new cache
+     *
+     * @param  capacity                 number of slots. It's rounded up to a power
+     *                                  of two
+     * @param  maxLength                maximum encoded length of cached strings, in
+     *                                  bytes
+     * @throws IllegalArgumentException if capacity is less than 4 or greater
+     *                                  than <code>2^30</code>, or maxLength is
+     *                                  less than 0
+     */
+    public StringCache(int capacity, int maxLength) {
+        if (capacity < PROBES) throw new IllegalArgumentException("capacity can't be less than " + PROBES);
+        if (capacity > 1 << 30) throw new IllegalArgumentException("capacity can't be greater than 2^30");
+        if (maxLength < 0) throw new IllegalArgumentException("maxLength can't be less than 0");
+        int size = Integer.highestOneBit(capacity - 1) << 1;
+        entries = new Entry[size];
+        seen = new int[size];
+        mask = size - 1;
+        this.maxLength = maxLength;
+    }
+
+    /**
+     * Reads a UTF-8 string of known length, returning the cached instance if the
+     * same bytes were read before
+     *
+     * @param  buffer                   buffer to read from
+     * @param  length                   encoded length in bytes
+     * @return                          decoded or cached string
+     * @throws BufferUnderflowException if there are less than length bytes
+     *                                  remaining
+     * @see                             DataBuffers#getUTF8(ByteBuffer, int)
+     */
+    public String get(ByteBuffer buffer, int length) {
+        if (length < 0 || length > maxLength || length > buffer.remaining())
+            return DataBuffers.getUTF8(buffer, length);
+        int position = buffer.position();
+        int hash = hash(buffer, position, length);
+        int free = -1;
+        for (int i = 0; i < PROBES; i++) {
+            int index = hash + i & mask;
+            Entry entry = entries[index];
+            if (entry == null) {
+                if (free < 0) free = index;
+            } else if (entry.hash == hash && entry.matches(buffer, position, length)) {
+                buffer.position(position + length);
+                return entry.value;
+            }
+        }
+        int index = hash & mask;
+        String value = DataBuffers.getUTF8(buffer, length);
+        int mark = hash | 1;
+        if (seen[index] != mark) {
+            seen[index] = mark;
+            return value;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(position, bytes);
+        entries[free < 0 ? index : free] = new Entry(hash, bytes, value);
+        return value;
+    }
+
+    /**
+     * Get number of slots
+     *
+     * @return maximum number of cached strings
+     */
+    public int getCapacity() {
+        return entries.length;
+    }
+
+    /**
+     * Get maximum encoded length of cached strings
+     *
+     * @return maximum length in bytes
+     */
+    public int getMaxLength() {
+        return maxLength;
+    }
+
+    private static int hash(ByteBuffer buffer, int position, int length) {
+        int hash = length;
+        for (int i = 0; i < length; i++) hash = 31 * hash + buffer.get(position + i);
+        return hash ^ hash >>> 16;
+    }
+
+    private static final class Entry {
+        private final byte[] bytes;
+        private final int hash;
+        private final String value;
+
+        private Entry(int hash, byte[] bytes, String value) {
+            this.hash = hash;
+            this.bytes = bytes;
+            this.value = value;
+        }
+
+        private boolean matches(ByteBuffer buffer, int position, int length) {
+            if (bytes.length != length) return false;
+            for (int i = 0; i < bytes.length; i++) if (buffer.get(position + i) != bytes[i]) return false;
+            return true;
+        }
+    }
+}
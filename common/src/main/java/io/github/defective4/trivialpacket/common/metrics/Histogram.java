@@ -0,0 +1,128 @@
+package io.github.defective4.trivialpacket.common.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A concurrent histogram of non-negative values with a fixed relative
+ * precision. <br>
+ * Values are counted in log-linear buckets: every power of two is split into
+ * 32 equal buckets, so any recorded value is reported with an error of at most
+ * about 3%, from single nanoseconds up to {@link Long#MAX_VALUE}. <br>
+ * Recording never allocates or locks, so it can be called on hot paths from
+ * any number of threads at once. Reading the histogram while values are being
+ * recorded gives a slightly inconsistent, but never corrupted, view.
+ */
+public final class Histogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int LINEAR_LIMIT = SUB_BUCKETS * 2;
+    private static final int BUCKETS = LINEAR_LIMIT + (63 - SUB_BUCKET_BITS - 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong max = new AtomicLong();
+    private final LongAdder sum = new LongAdder();
+
+    /**
+     * Get number of recorded values
+     *
+     * @return value count
+     */
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) count += counts.get(i);
+        return count;
+    }
+
+    /**
+     * Get highest recorded value
+     *
+     * @return highest value, or <code>0</code> if nothing was recorded
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Get arithmetic mean of recorded values
+     *
+     * @return mean value, or <code>0</code> if nothing was recorded
+     */
+    public double getMean() {
+        long count = getCount();
+        return count == 0 ? 0 : sum.doubleValue() / count;
+    }
+
+    /**
+     * Get value at a percentile. <br>
+     * The result is the highest value that falls into the same bucket as the
+     * value at the percentile, capped at {@link #getMax()}.
+     *
+     * @param  percentile               percentile, from <code>0</code> to
+     *                                  <code>100</code>
+     * @return                          value at the percentile, or <code>0</code>
+     *                                  if nothing was recorded
+     * @throws IllegalArgumentException if percentile is out of range
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (!(percentile >= 0 && percentile <= 100))
+            throw new IllegalArgumentException("percentile must be between 0 and 100");
+        long[] snapshot = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) count += snapshot[i] = counts.get(i);
+        if (count == 0) return 0;
+        long target = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) if ((seen += snapshot[i]) >= target) return Math.min(highestValue(i), max.get());
+        return max.get();
+    }
+
+    /**
+     * Records a value. Negative values are recorded as <code>0</code>.
+     *
+     * @param value value to record
+     */
+    public void record(long value) {
+        if (value < 0) value = 0;
+        counts.incrementAndGet(bucket(value));
+        sum.add(value);
+        if (value > max.get()) max.accumulateAndGet(value, Math::max);
+    }
+
+    /**
+     * Removes all recorded values. <br>
+     * Values recorded concurrently may be partially kept.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) counts.set(i, 0);
+        sum.reset();
+        max.set(0);
+    }
+
+    /**
+     * Get a summary of this histogram
+     *
+     * @return count, mean, maximum and common percentiles of recorded values
+     */
+    public HistogramSnapshot snapshot() {
+        return new HistogramSnapshot(getCount(), getMean(), getValueAtPercentile(50), getValueAtPercentile(90),
+                getValueAtPercentile(99), getValueAtPercentile(99.9), getMax());
+    }
+
+    private static int bucket(long value) {
+        if (value < LINEAR_LIMIT) return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        return LINEAR_LIMIT + (exponent - SUB_BUCKET_BITS - 1) * SUB_BUCKETS
+                + (int) (value >>> shift & SUB_BUCKETS - 1);
+    }
+
+    private static long highestValue(int bucket) {
+        if (bucket < LINEAR_LIMIT) return bucket;
+        int exponent = (bucket - LINEAR_LIMIT) / SUB_BUCKETS + SUB_BUCKET_BITS + 1;
+        int shift = exponent - SUB_BUCKET_BITS;
+        long lowest = (long) (SUB_BUCKETS + (bucket - LINEAR_LIMIT) % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
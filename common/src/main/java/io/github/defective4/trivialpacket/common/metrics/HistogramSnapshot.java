@@ -0,0 +1,68 @@
+package io.github.defective4.trivialpacket.common.metrics;
+
+/**
+ * An immutable summary of a {@link Histogram}. <br>
+ * Exposed through JMX as composite data.
+ */
+@SuppressWarnings("javadoc")
+public final class HistogramSnapshot {
+    private final long count;
+    private final long max;
+    private final double mean;
+    private final long p50, p90, p99, p999;
+
+    /**
+     * Creates a new snapshot
+     *
+     * @param count number of recorded values
+     * @param mean  arithmetic mean of recorded values
+     * @param p50   median
+     * @param p90   90th percentile
+     * @param p99   99th percentile
+     * @param p999  99.9th percentile
+     * @param max   highest recorded value
+     */
+    public HistogramSnapshot(long count, double mean, long p50, long p90, long p99, long p999, long max) {
+        this.count = count;
+        this.mean = mean;
+        this.p50 = p50;
+        this.p90 = p90;
+        this.p99 = p99;
+        this.p999 = p999;
+        this.max = max;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public double getMean() {
+        return mean;
+    }
+
+    public long getP50() {
+        return p50;
+    }
+
+    public long getP90() {
+        return p90;
+    }
+
+    public long getP99() {
+        return p99;
+    }
+
+    public long getP999() {
+        return p999;
+    }
+
+    @Override
+    public String toString() {
+        return "HistogramSnapshot [count=" + count + ", mean=" + mean + ", p50=" + p50 + ", p90=" + p90 + ", p99="
+                + p99 + ", p999=" + p999 + ", max=" + max + "]";
+    }
+}
@@ -0,0 +1,312 @@
+package io.github.defective4.trivialpacket.common.metrics;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * The built-in {@link MetricsSink}, aggregating all measurements in memory.
+ * <br>
+ * Counters and histograms can be read directly, or through JMX after calling
+ * {@link #register(String)}. <br>
+ * Example usage:
+ *
+ * <pre>
+ * Metrics metrics = new Metrics();
+ * server.setMetrics(metrics);
+ * metrics.register("server");
+ * </pre>
+ *
+ * A single instance can be shared by multiple servers and clients, in which case
+ * their measurements are summed up.
+ */
+public class Metrics implements MetricsSink, MetricsMXBean {
+    /**
+     * JMX domain of registered instances
+     */
+    public static final String DOMAIN = "io.github.defective4.trivialpacket";
+
+    private static final int IDS = 256;
+
+    private final LongAdder acceptFailures = new LongAdder();
+    private final LongAdder authFailures = new LongAdder();
+    private final LongAdder authSuccesses = new LongAdder();
+    private final LongAdder accepted = new LongAdder();
+    private final AtomicLongArray bytesReceived = new AtomicLongArray(IDS);
+    private final AtomicLongArray bytesSent = new AtomicLongArray(IDS);
+    private final LongAdder closed = new LongAdder();
+    private final Histogram decodeTime = new Histogram();
+    private final Histogram dispatchTime = new Histogram();
+    private volatile ObjectName name;
+    private final LongAdder opened = new LongAdder();
+    private final Set<LongSupplier> outboundQueues = ConcurrentHashMap.newKeySet();
+    private final AtomicLongArray packetsReceived = new AtomicLongArray(IDS);
+    private final AtomicLongArray packetsSent = new AtomicLongArray(IDS);
+    private final Histogram pingRoundTrip = new Histogram();
+    private final Histogram tlsHandshakeTime = new Histogram();
+
+    @Override
+    public void acceptFailed(IOException error) {
+        acceptFailures.increment();
+    }
+
+    @Override
+    public void authenticationFailed() {
+        authFailures.increment();
+    }
+
+    @Override
+    public void authenticationSucceeded() {
+        authSuccesses.increment();
+    }
+
+    @Override
+    public void connectionAccepted() {
+        accepted.increment();
+    }
+
+    @Override
+    public void connectionClosed() {
+        closed.increment();
+    }
+
+    @Override
+    public void connectionOpened() {
+        opened.increment();
+    }
+
+    @Override
+    public long getAcceptFailures() {
+        return acceptFailures.sum();
+    }
+
+    @Override
+    public long getActiveConnections() {
+        return opened.sum() - closed.sum();
+    }
+
+    @Override
+    public long getAuthenticationFailures() {
+        return authFailures.sum();
+    }
+
+    @Override
+    public long getAuthenticationSuccesses() {
+        return authSuccesses.sum();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return sum(bytesReceived);
+    }
+
+    @Override
+    public Map<Integer, Long> getBytesReceivedById() {
+        return byId(bytesReceived);
+    }
+
+    @Override
+    public long getBytesSent() {
+        return sum(bytesSent);
+    }
+
+    @Override
+    public Map<Integer, Long> getBytesSentById() {
+        return byId(bytesSent);
+    }
+
+    @Override
+    public long getConnectionsAccepted() {
+        return accepted.sum();
+    }
+
+    @Override
+    public long getConnectionsOpened() {
+        return opened.sum();
+    }
+
+    @Override
+    public HistogramSnapshot getDecodeTime() {
+        return decodeTime.snapshot();
+    }
+
+    /**
+     * Get histogram of packet decoding times
+     *
+     * @return live histogram, in nanoseconds
+     */
+    public Histogram getDecodeTimeHistogram() {
+        return decodeTime;
+    }
+
+    @Override
+    public HistogramSnapshot getDispatchTime() {
+        return dispatchTime.snapshot();
+    }
+
+    /**
+     * Get histogram of packet dispatch times
+     *
+     * @return live histogram, in nanoseconds
+     */
+    public Histogram getDispatchTimeHistogram() {
+        return dispatchTime;
+    }
+
+    @Override
+    public long getOutboundQueueDepth() {
+        long depth = 0;
+        for (LongSupplier queue : outboundQueues) depth += queue.getAsLong();
+        return depth;
+    }
+
+    @Override
+    public long getPacketsReceived() {
+        return sum(packetsReceived);
+    }
+
+    @Override
+    public Map<Integer, Long> getPacketsReceivedById() {
+        return byId(packetsReceived);
+    }
+
+    @Override
+    public long getPacketsSent() {
+        return sum(packetsSent);
+    }
+
+    @Override
+    public Map<Integer, Long> getPacketsSentById() {
+        return byId(packetsSent);
+    }
+
+    @Override
+    public HistogramSnapshot getPingRoundTrip() {
+        return pingRoundTrip.snapshot();
+    }
+
+    /**
+     * Get histogram of keep-alive round-trip times
+     *
+     * @return live histogram, in nanoseconds
+     */
+    public Histogram getPingRoundTripHistogram() {
+        return pingRoundTrip;
+    }
+
+    @Override
+    public HistogramSnapshot getTlsHandshakeTime() {
+        return tlsHandshakeTime.snapshot();
+    }
+
+    /**
+     * Get histogram of SSL handshake times
+     *
+     * @return live histogram, in nanoseconds
+     */
+    public Histogram getTlsHandshakeTimeHistogram() {
+        return tlsHandshakeTime;
+    }
+
+    @Override
+    public void outboundQueueDepth(LongSupplier depth) {
+        outboundQueues.add(depth);
+    }
+
+    @Override
+    public void outboundQueueDepthRemoved(LongSupplier depth) {
+        outboundQueues.remove(depth);
+    }
+
+    @Override
+    public void packetDispatched(long nanos) {
+        dispatchTime.record(nanos);
+    }
+
+    @Override
+    public void packetReceived(int id, int length, long decodeNanos) {
+        packetsReceived.incrementAndGet(id & 0xFF);
+        bytesReceived.addAndGet(id & 0xFF, length);
+        decodeTime.record(decodeNanos);
+    }
+
+    @Override
+    public void packetSent(int id, int length) {
+        packetsSent.incrementAndGet(id & 0xFF);
+        bytesSent.addAndGet(id & 0xFF, length);
+    }
+
+    @Override
+    public void pingRoundTrip(long nanos) {
+        pingRoundTrip.record(nanos);
+    }
+
+    /**
+     * Registers this instance in the platform MBean server, under the
+     * {@value #DOMAIN} domain
+     *
+     * @param  name                  name distinguishing this instance from other
+     *                               registered ones
+     * @return                       name of the registered MBean
+     * @throws JMException           if there was an error registering the MBean,
+     *                               for example if the name is already taken
+     * @throws IllegalStateException if this instance is already registered
+     */
+    public synchronized ObjectName register(String name) throws JMException {
+        if (this.name != null) throw new IllegalStateException("Already registered");
+        ObjectName objectName = new ObjectName(DOMAIN + ":type=Metrics,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        this.name = objectName;
+        return objectName;
+    }
+
+    @Override
+    public void resetHistograms() {
+        decodeTime.reset();
+        dispatchTime.reset();
+        pingRoundTrip.reset();
+        tlsHandshakeTime.reset();
+    }
+
+    @Override
+    public void tlsHandshakeCompleted(long nanos) {
+        tlsHandshakeTime.record(nanos);
+    }
+
+    /**
+     * Removes this instance from the platform MBean server. <br>
+     * Does nothing if it's not registered.
+     *
+     * @throws JMException if there was an error unregistering the MBean
+     */
+    public synchronized void unregister() throws JMException {
+        if (name == null) return;
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        name = null;
+    }
+
+    private static Map<Integer, Long> byId(AtomicLongArray counters) {
+        Map<Integer, Long> map = new TreeMap<>();
+        for (int i = 0; i < IDS; i++) {
+            long value = counters.get(i);
+            if (value != 0) map.put(i, value);
+        }
+        return Collections.unmodifiableMap(map);
+    }
+
+    private static long sum(AtomicLongArray counters) {
+        long sum = 0;
+        for (int i = 0; i < IDS; i++) sum += counters.get(i);
+        return sum;
+    }
+}
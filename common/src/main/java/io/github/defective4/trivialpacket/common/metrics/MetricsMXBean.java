@@ -0,0 +1,113 @@
+package io.github.defective4.trivialpacket.common.metrics;
+
+import java.util.Map;
+
+/**
+ * JMX interface of {@link Metrics}. <br>
+ * All times are in nanoseconds.
+ */
+public interface MetricsMXBean {
+
+    /**
+     * @return number of errors accepting connections. Each of them is retried
+     *         after a short delay
+     */
+    long getAcceptFailures();
+
+    /**
+     * @return number of currently open connections
+     */
+    long getActiveConnections();
+
+    /**
+     * @return number of failed authentications
+     */
+    long getAuthenticationFailures();
+
+    /**
+     * @return number of successful authentications
+     */
+    long getAuthenticationSuccesses();
+
+    /**
+     * @return total number of received bytes
+     */
+    long getBytesReceived();
+
+    /**
+     * @return number of received bytes by packet ID
+     */
+    Map<Integer, Long> getBytesReceivedById();
+
+    /**
+     * @return total number of sent bytes
+     */
+    long getBytesSent();
+
+    /**
+     * @return number of sent bytes by packet ID
+     */
+    Map<Integer, Long> getBytesSentById();
+
+    /**
+     * @return number of connections accepted so far, including rejected ones.
+     *         Its rate of change is the accept rate
+     */
+    long getConnectionsAccepted();
+
+    /**
+     * @return number of connections opened so far
+     */
+    long getConnectionsOpened();
+
+    /**
+     * @return summary of packet decoding times
+     */
+    HistogramSnapshot getDecodeTime();
+
+    /**
+     * @return summary of packet dispatch times
+     */
+    HistogramSnapshot getDispatchTime();
+
+    /**
+     * @return number of bytes currently waiting in outbound queues
+     */
+    long getOutboundQueueDepth();
+
+    /**
+     * @return total number of received packets
+     */
+    long getPacketsReceived();
+
+    /**
+     * @return number of received packets by packet ID
+     */
+    Map<Integer, Long> getPacketsReceivedById();
+
+    /**
+     * @return total number of sent packets
+     */
+    long getPacketsSent();
+
+    /**
+     * @return number of sent packets by packet ID
+     */
+    Map<Integer, Long> getPacketsSentById();
+
+    /**
+     * @return summary of keep-alive round-trip times
+     */
+    HistogramSnapshot getPingRoundTrip();
+
+    /**
+     * @return summary of SSL handshake times
+     */
+    HistogramSnapshot getTlsHandshakeTime();
+
+    /**
+     * Removes all values recorded in the time histograms. Counters are not
+     * affected.
+     */
+    void resetHistograms();
+}
@@ -0,0 +1,114 @@
+package io.github.defective4.trivialpacket.common.metrics;
+
+import java.io.IOException;
+import java.util.function.LongSupplier;
+
+/**
+ * Receives measurements of a server or a client. <br>
+ * All methods do nothing by default, so implementations only override the
+ * ones they are interested in. <br>
+ * Methods are called directly on the threads reading, writing and handling
+ * packets, often from many threads at once, so implementations must be thread
+ * safe and return quickly. When no sink is set, none of the measurements are
+ * taken at all.
+ *
+ * @see Metrics
+ */
+public interface MetricsSink {
+
+    /**
+     * Called when a server fails to accept a connection, for example because it
+     * ran out of file descriptors. The server retries after a short delay.
+     *
+     * @param error error accepting the connection
+     */
+    default void acceptFailed(IOException error) {}
+
+    /**
+     * Called when a peer fails to authenticate
+     */
+    default void authenticationFailed() {}
+
+    /**
+     * Called when a peer is authenticated successfully
+     */
+    default void authenticationSucceeded() {}
+
+    /**
+     * Called for every connection accepted by a server, including connections
+     * rejected afterwards because the server is full
+     */
+    default void connectionAccepted() {}
+
+    /**
+     * Called when a connection is closed. Called exactly once for every call to
+     * {@link #connectionOpened()}.
+     */
+    default void connectionClosed() {}
+
+    /**
+     * Called when a connection is established
+     */
+    default void connectionOpened() {}
+
+    /**
+     * Called when a server starts or a client connects, with a supplier of the
+     * number of bytes currently waiting in its outbound queues. <br>
+     * The supplier is valid until it's passed to
+     * {@link #outboundQueueDepthRemoved(LongSupplier)}, and holds a reference
+     * to its server or client until then.
+     *
+     * @param depth supplier of the outbound queue depth in bytes. It's safe to
+     *              call from any thread
+     */
+    default void outboundQueueDepth(LongSupplier depth) {}
+
+    /**
+     * Called when a server or client passed to
+     * {@link #outboundQueueDepth(LongSupplier)} is closed. Called exactly once
+     * for every call to {@link #outboundQueueDepth(LongSupplier)}.
+     *
+     * @param depth the supplier passed to
+     *              {@link #outboundQueueDepth(LongSupplier)}
+     */
+    default void outboundQueueDepthRemoved(LongSupplier depth) {}
+
+    /**
+     * Called after a dispatched packet is handled
+     *
+     * @param nanos time between dispatching the packet and its listeners
+     *              returning, including time spent waiting in the dispatch queue
+     */
+    default void packetDispatched(long nanos) {}
+
+    /**
+     * Called for every decoded packet
+     *
+     * @param id          packet ID
+     * @param length      length of the frame in bytes, as received
+     * @param decodeNanos time spent decoding the packet
+     */
+    default void packetReceived(int id, int length, long decodeNanos) {}
+
+    /**
+     * Called for every packet queued for sending
+     *
+     * @param id     packet ID
+     * @param length length of the frame in bytes, as sent
+     */
+    default void packetSent(int id, int length) {}
+
+    /**
+     * Called when a keep-alive is acknowledged by the other side
+     *
+     * @param nanos round-trip time
+     */
+    default void pingRoundTrip(long nanos) {}
+
+    /**
+     * Called when an SSL handshake completes successfully
+     *
+     * @param nanos handshake duration
+     */
+    default void tlsHandshakeCompleted(long nanos) {}
+}
@@ -0,0 +1,81 @@
+package io.github.defective4.trivialpacket.common.packet;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import io.github.defective4.trivialpacket.common.packet.twoway.CommandPacket;
+
+/**
+ * A table of frequently used command names. <br>
+ * The server announces its table during the authentication handshake, and from
+ * then on both peers send commands from the table as their index in it, which
+ * takes one byte for the first 64 commands and two bytes for the next 8128,
+ * instead of the whole name. Received commands are resolved to the table's own
+ * string instances, so no new strings are created for them. <br>
+ * Instances are immutable.
+ *
+ * @see CommandPacket#compact(CommandTable)
+ */
+public final class CommandTable {
+    private final Map<String, Integer> codes;
+    private final List<String> commands;
+
+    /**
+     * Creates a new table
+     *
+     * @param  commands                 command names, most frequent first
+     * @throws NullPointerException     if commands or any of the commands is null
+     * @throws IllegalArgumentException if any command appears more than once
+     */
+    public CommandTable(List<String> commands) {
+        this.commands = List.copyOf(commands);
+        codes = new HashMap<>(this.commands.size() * 2);
+        for (int i = 0; i < this.commands.size(); i++)
+            if (codes.putIfAbsent(this.commands.get(i), i) != null)
+                throw new IllegalArgumentException("Duplicate command: " + this.commands.get(i));
+    }
+
+    /**
+     * Get code of a command
+     *
+     * @param  command command name
+     * @return         code of the command, or <code>-1</code> if it's not in this
+     *                 table
+     */
+    public int getCode(String command) {
+        Objects.requireNonNull(command);
+        Integer code = codes.get(command);
+        return code == null ? -1 : code;
+    }
+
+    /**
+     * Get command with the specified code
+     *
+     * @param  code command code
+     * @return      command name, or <code>null</code> if there is no command with
+     *              this code
+     */
+    public String getCommand(int code) {
+        return code >= 0 && code < commands.size() ? commands.get(code) : null;
+    }
+
+    /**
+     * Get all commands in this table
+     *
+     * @return unmodifiable list of commands, ordered by their codes
+     */
+    public List<String> getCommands() {
+        return commands;
+    }
+
+    /**
+     * Get number of commands in this table
+     *
+     * @return number of commands
+     */
+    public int size() {
+        return commands.size();
+    }
+}
@@ -0,0 +1,296 @@
+package io.github.defective4.trivialpacket.common.packet;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Objects;
+
+import io.github.defective4.trivialpacket.common.io.BufferPool;
+import io.github.defective4.trivialpacket.common.io.CompressionCodec;
+import io.github.defective4.trivialpacket.common.metrics.MetricsSink;
+import io.github.defective4.trivialpacket.common.packet.twoway.CommandPacket;
+
+/**
+ * A stateful, incremental frame decoder. <br>
+ * Bytes are accumulated in a buffer acquired from a {@link BufferPool}, across
+ * as many reads as needed to complete a frame. Complete frames are passed to
+ * packet factories as read-only slices of that buffer, without copying. <br>
+ * The buffer grows by doubling as bytes of a large frame arrive, so a peer
+ * announcing a large frame without sending it doesn't make the decoder reserve
+ * memory for the whole frame. <br>
+ * The buffer is returned to the pool whenever all received data is consumed, so
+ * idle connections don't hold any read buffer. <br>
+ * The same decoder works with blocking streams ({@link #read(InputStream)}) and
+ * non-blocking channels ({@link #fill(ReadableByteChannel)} followed by
+ * {@link #hasFrame()} and {@link #nextPacket()}). <br>
+ * Compressed frames are accepted once a codec is set with
+ * {@link #setCompression(CompressionCodec)}. They are decompressed into a
+ * separate pooled buffer, released as soon as the packet is created. <br>
+ * Commands sent by their code are resolved with the {@link CommandTable} set
+ * with {@link #setCommandTable(CommandTable)}, and rejected if there is none.
+ * <br>
+ * Instances are not thread safe.
+ */
+public class FrameDecoder implements Closeable {
+    /**
+     * Default maximum frame size
+     */
+    public static final int DEFAULT_MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+    private static final int HEADER_SIZE = 4;
+    private static final int INITIAL_BUFFER_SIZE = 8192;
+
+    private ByteBuffer buffer;
+    private CommandTable commandTable;
+    private CompressionCodec compression = CompressionCodec.NONE;
+    private final int maxFrameSize;
+    private MetricsSink metrics;
+    private final BufferPool pool;
+    private int start;
+
+    /**
+     * Creates a new decoder
+     *
+     * @param  pool                     pool to acquire read buffers from. Use a
+     *                                  heap pool for decoders reading from streams
+     * @param  maxFrameSize             maximum accepted frame length, including the
+     *                                  packet ID
+     * @throws NullPointerException     if pool is null
+     * @throws IllegalArgumentException if maxFrameSize is less than 1
+     */
+    public FrameDecoder(BufferPool pool, int maxFrameSize) {
+        Objects.requireNonNull(pool);
+        if (maxFrameSize < 1) throw new IllegalArgumentException("maxFrameSize can't be less than 1");
+        this.pool = pool;
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    /**
+     * Releases the read buffer. <br>
+     * Must not be called while another thread is reading with this decoder.
+     */
+    @Override
+    public void close() {
+        release();
+    }
+
+    /**
+     * Reads available bytes from a channel into the decoder
+     *
+     * @param  channel     channel to read from
+     * @return             number of bytes read, or <code>-1</code> if the channel
+     *                     has reached end-of-stream
+     * @throws IOException if there was an error reading, or the pending frame
+     *                     header is invalid
+     */
+    public int fill(ReadableByteChannel channel) throws IOException {
+        ensureSpace();
+        int read = channel.read(buffer);
+        releaseIfEmpty();
+        return read;
+    }
+
+    /**
+     * Reads available bytes from a stream into the decoder. <br>
+     * Requires the decoder to use heap buffers.
+     *
+     * @param  in          stream to read from
+     * @return             number of bytes read, or <code>-1</code> if the stream
+     *                     has reached end-of-stream
+     * @throws IOException if there was an error reading, or the pending frame
+     *                     header is invalid
+     */
+    public int fill(InputStream in) throws IOException {
+        ensureSpace();
+        int read = in.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        if (read > 0) buffer.position(buffer.position() + read);
+        releaseIfEmpty();
+        return read;
+    }
+
+    /**
+     * Get table used to resolve command codes
+     *
+     * @return command table, or <code>null</code> if there is none
+     */
+    public CommandTable getCommandTable() {
+        return commandTable;
+    }
+
+    /**
+     * Get codec used to decompress frames
+     *
+     * @return compression codec
+     */
+    public CompressionCodec getCompression() {
+        return compression;
+    }
+
+    /**
+     * Get maximum accepted frame length
+     *
+     * @return maximum frame length, including the packet ID
+     */
+    public int getMaxFrameSize() {
+        return maxFrameSize;
+    }
+
+    /**
+     * Get sink notified of decoded packets
+     *
+     * @return metrics sink, or <code>null</code> if there is none
+     */
+    public MetricsSink getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Checks if a complete frame is buffered
+     *
+     * @return             <code>true</code> if {@link #nextPacket()} can be called
+     * @throws IOException if the pending frame header is invalid
+     */
+    public boolean hasFrame() throws IOException {
+        if (buffer == null || buffer.position() - start < HEADER_SIZE) return false;
+        return buffer.position() - start - HEADER_SIZE >= frameLength();
+    }
+
+    /**
+     * Decodes and consumes the next buffered frame
+     *
+     * @return                       decoded packet, or <code>null</code> if the
+     *                               packet was not recognized
+     * @throws IllegalStateException if there is no complete frame buffered
+     * @throws Exception             if there was an error creating the packet
+     */
+    public Packet nextPacket() throws Exception {
+        if (!hasFrame()) throw new IllegalStateException("No complete frame buffered");
+        int length = frameLength();
+        boolean compressed = buffer.getInt(start) < 0;
+        int id = buffer.get(start + HEADER_SIZE) & 0xFF;
+        ByteBuffer data = buffer.slice(start + HEADER_SIZE + 1, length - 1).asReadOnlyBuffer();
+        start += HEADER_SIZE + length;
+        MetricsSink metrics = this.metrics;
+        long startTime = metrics == null ? 0 : System.nanoTime();
+        try {
+            Packet packet = compressed ? decompress(id, data) : Packet.decode(id, data);
+            if (packet instanceof CommandPacket command && command.getCommand() == null) {
+                if (commandTable == null) throw new IOException("Received a command code without a command table");
+                packet = command.resolve(commandTable);
+            }
+            if (metrics != null) metrics.packetReceived(id, HEADER_SIZE + length, System.nanoTime() - startTime);
+            return packet;
+        } finally {
+            releaseIfEmpty();
+        }
+    }
+
+    /**
+     * Reads a single packet from a blocking stream, reading as many bytes as
+     * needed. <br>
+     * Bytes following the packet are kept for the next call.
+     *
+     * @param  in        stream to read from
+     * @return           read packet, or <code>null</code> if the packet was not
+     *                   recognized
+     * @throws Exception if there was an error reading or creating the packet
+     */
+    public Packet read(InputStream in) throws Exception {
+        while (!hasFrame()) if (fill(in) < 0) throw new EOFException();
+        return nextPacket();
+    }
+
+    /**
+     * Set table used to resolve command codes
+     *
+     * @param commandTable command table, or <code>null</code> to reject command
+     *                     codes
+     */
+    public void setCommandTable(CommandTable commandTable) {
+        this.commandTable = commandTable;
+    }
+
+    /**
+     * Set codec used to decompress frames. <br>
+     * Frames with the {@link CompressionCodec#COMPRESSED_FLAG} set are rejected
+     * while the codec is {@link CompressionCodec#NONE}, which is the default
+     * value.
+     *
+     * @param  compression
+     * @throws NullPointerException if compression is null
+     */
+    public void setCompression(CompressionCodec compression) {
+        Objects.requireNonNull(compression);
+        this.compression = compression;
+    }
+
+    /**
+     * Set sink notified of every decoded packet
+     *
+     * @param metrics metrics sink, or <code>null</code> to stop measuring
+     */
+    public void setMetrics(MetricsSink metrics) {
+        this.metrics = metrics;
+    }
+
+    private Packet decompress(int id, ByteBuffer data) throws Exception {
+        if (data.remaining() < 4) throw new IOException("Invalid compressed frame");
+        int length = data.getInt();
+        if (length < 0 || length >= maxFrameSize)
+            throw new IOException("Frame too large: " + (length + 1) + " > " + maxFrameSize);
+        ByteBuffer decompressed = pool.acquire(length);
+        try {
+            compression.decompress(data, decompressed.limit(length));
+            return Packet.decode(id, decompressed.flip().asReadOnlyBuffer());
+        } finally {
+            pool.release(decompressed);
+        }
+    }
+
+    /**
+     * Makes sure there is space in the buffer for the next read. <br>
+     * Unconsumed bytes are moved to the beginning of the buffer when the pending
+     * frame doesn't fit after them. A full buffer is replaced with one twice as
+     * large, but never larger than the pending frame, so its size follows the
+     * bytes actually received rather than the length announced in the header.
+     */
+    private void ensureSpace() throws IOException {
+        if (buffer == null) {
+            buffer = pool.acquire(INITIAL_BUFFER_SIZE);
+            start = 0;
+            return;
+        }
+        int available = buffer.position() - start;
+        int required = available >= HEADER_SIZE ? HEADER_SIZE + frameLength() : HEADER_SIZE;
+        if (buffer.hasRemaining() && (start == 0 || buffer.capacity() - start >= required)) return;
+        if (available == buffer.capacity()) {
+            if (required <= available) return;
+            ByteBuffer larger = pool.acquire((int) Math.min(required, 2L * available));
+            larger.put(buffer.flip());
+            pool.release(buffer);
+            buffer = larger;
+        } else buffer.limit(buffer.position()).position(start).compact();
+        start = 0;
+    }
+
+    private int frameLength() throws IOException {
+        int length = buffer.getInt(start);
+        if (length < 0 && compression != CompressionCodec.NONE) length &= ~CompressionCodec.COMPRESSED_FLAG;
+        if (length < 1) throw new IOException("Invalid frame length: " + length);
+        if (length > maxFrameSize) throw new IOException("Frame too large: " + length + " > " + maxFrameSize);
+        return length;
+    }
+
+    private void release() {
+        if (buffer != null) pool.release(buffer);
+        buffer = null;
+        start = 0;
+    }
+
+    private void releaseIfEmpty() {
+        if (buffer != null && start == buffer.position()) release();
+    }
+}
@@ -1,9 +1,13 @@
 package io.github.defective4.trivialpacket.common.packet;
 
-import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+import io.github.defective4.trivialpacket.common.io.BufferPool;
+import io.github.defective4.trivialpacket.common.io.ByteBufferOutputStream;
 
 /**
  * The base packet class. <br>
@@ -19,6 +23,10 @@ import java.io.IOException;
  */
 public abstract class Packet {
 
+    private static final int HEADER_SIZE = 5;
+    private static final int INITIAL_FRAME_SIZE = 512;
+    private static final ThreadLocal<FrameOutput> OUTPUT = ThreadLocal.withInitial(FrameOutput::new);
+
     private final int id;
 
     /**
@@ -43,6 +51,69 @@ public abstract class Packet {
         return id;
     }
 
+    /**
+     * Encodes this packet into a complete frame, including the length and the ID.
+     * <br>
+     * The frame is written directly into a buffer acquired from the pool, and the
+     * length is filled in after the packet data is written. Packets declaring
+     * their data length with {@link #getMaxDataLength()} are written with
+     * {@link #writePacketData(ByteBuffer)}, all other packets are written through
+     * a stream. <br>
+     * The caller is responsible for releasing the returned buffer to the same
+     * pool.
+     *
+     * @param  pool        pool to acquire the buffer from
+     * @return             flipped buffer containing the frame
+     * @throws IOException if there was an error writing packet data
+     */
+    public ByteBuffer encode(BufferPool pool) throws IOException {
+        int maxDataLength = getMaxDataLength();
+        if (maxDataLength >= 0) {
+            ByteBuffer frame = pool.acquire(HEADER_SIZE + maxDataLength);
+            try {
+                writePacketData(frame.position(HEADER_SIZE));
+            } catch (IOException | RuntimeException e) {
+                pool.release(frame);
+                throw e;
+            }
+            frame.putInt(0, frame.position() - 4);
+            frame.put(4, (byte) id);
+            return frame.flip();
+        }
+        FrameOutput output = OUTPUT.get();
+        if (output.busy) output = new FrameOutput();
+        output.busy = true;
+        output.buffer.reset(pool, INITIAL_FRAME_SIZE);
+        try {
+            output.buffer.write(output.header, 0, HEADER_SIZE);
+            writePacketData(output.data);
+        } catch (IOException | RuntimeException e) {
+            pool.release(output.buffer.detach());
+            throw e;
+        } finally {
+            output.busy = false;
+        }
+        ByteBuffer frame = output.buffer.detach();
+        frame.putInt(0, frame.position() - 4);
+        frame.put(4, (byte) id);
+        return frame.flip();
+    }
+
+    /**
+     * Write this packet to a blocking channel with a single write
+     *
+     * @param  channel     channel to write to
+     * @throws IOException thrown if there was an error writing to the channel
+     */
+    public void writeToChannel(WritableByteChannel channel) throws IOException {
+        ByteBuffer frame = encode(BufferPool.DIRECT);
+        try {
+            while (frame.hasRemaining()) channel.write(frame);
+        } finally {
+            BufferPool.DIRECT.release(frame);
+        }
+    }
+
     /**
      * Write this packet to the output stream
      *
@@ -50,26 +121,65 @@ public abstract class Packet {
      * @throws IOException thrown if there was an error writing to the output stream
      */
     public void writeToStream(DataOutputStream str) throws IOException {
-        try (ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-                DataOutputStream wrapper = new DataOutputStream(buffer)) {
-            writePacketData(wrapper);
-            byte[] rawData = buffer.toByteArray();
-            str.writeInt(rawData.length + 1);
-            str.writeByte(id);
-            str.write(rawData);
+        ByteBuffer frame = encode(BufferPool.HEAP);
+        try {
+            str.write(frame.array(), frame.arrayOffset(), frame.remaining());
+        } finally {
+            BufferPool.HEAP.release(frame);
         }
     }
 
     /**
-     * Write packet data to the output buffer
+     * Get the maximum length of this packet's data. <br>
+     * Packets returning a non-negative value are encoded with
+     * {@link #writePacketData(ByteBuffer)} into a buffer of that size, which
+     * avoids any stream wrappers. <br>
+     * The default implementation returns <code>-1</code>, meaning the length is
+     * unknown and {@link #writePacketData(DataOutputStream)} is used instead.
+     *
+     * @return maximum data length in bytes, or <code>-1</code> if unknown
+     */
+    protected int getMaxDataLength() {
+        return -1;
+    }
+
+    /**
+     * Write packet data to a buffer. <br>
+     * Called only if {@link #getMaxDataLength()} returns a non-negative value, and
+     * the buffer has at least that many bytes remaining. <br>
+     * The default implementation throws {@link UnsupportedOperationException}.
+     *
+     * @param  buffer      buffer to write to
+     * @throws IOException
+     */
+    protected void writePacketData(ByteBuffer buffer) throws IOException {
+        throw new UnsupportedOperationException(getClass().getName() + " doesn't support writing to buffers");
+    }
+
+    /**
+     * Write packet data to the output buffer. <br>
+     * Packets have to override either this method, or both
+     * {@link #getMaxDataLength()} and {@link #writePacketData(ByteBuffer)}. <br>
+     * The default implementation writes the data with
+     * {@link #writePacketData(ByteBuffer)}.
      *
      * @param  buffer      buffer stream
      * @throws IOException
      */
-    protected abstract void writePacketData(DataOutputStream buffer) throws IOException;
+    protected void writePacketData(DataOutputStream buffer) throws IOException {
+        int maxDataLength = getMaxDataLength();
+        if (maxDataLength < 0)
+            throw new UnsupportedOperationException(getClass().getName() + " doesn't implement writePacketData");
+        ByteBuffer data = ByteBuffer.allocate(maxDataLength);
+        writePacketData(data);
+        buffer.write(data.array(), 0, data.position());
+    }
 
     /**
-     * Reads a packet from the input stream
+     * Reads a packet from the input stream. <br>
+     * Frames longer than {@link FrameDecoder#DEFAULT_MAX_FRAME_SIZE} are rejected.
+     * Connections use a {@link FrameDecoder} instead, which doesn't need a new
+     * array for every packet.
      *
      * @param  is        input stream to read from
      * @return           read packet, or <code>null</code> if the packet was not
@@ -78,10 +188,51 @@ public abstract class Packet {
      */
     public static Packet readFromStream(DataInputStream is) throws Exception {
         int length = is.readInt();
-        byte id = is.readByte();
+        if (length < 1 || length > FrameDecoder.DEFAULT_MAX_FRAME_SIZE)
+            throw new IOException("Invalid frame length: " + length);
+        int id = is.readUnsignedByte();
         byte[] data = new byte[length - 1];
         is.readFully(data);
+        return fromData(id, data);
+    }
+
+    /**
+     * Creates a packet from its ID and raw data, as read from the wire. <br>
+     * This is used by transports that decode frames on their own, instead of
+     * reading them from a stream.
+     *
+     * @param  id        packet ID
+     * @param  data      packet data, excluding length and ID
+     * @return           created packet, or <code>null</code> if the packet was not
+     *                   recognized
+     * @throws Exception if there was an error creating the packet
+     */
+    public static Packet fromData(int id, byte[] data) throws Exception {
         PacketFactory<?> factory = PacketFactoryRegistry.getFactoryForID(id);
         return factory == null ? null : factory.createPacket(data);
     }
+
+    /**
+     * Creates a packet from its ID and a buffer containing raw data
+     *
+     * @param  id        packet ID
+     * @param  data      packet data, excluding length and ID
+     * @return           created packet, or <code>null</code> if the packet was not
+     *                   recognized
+     * @throws Exception if there was an error creating the packet
+     */
+    static Packet decode(int id, ByteBuffer data) throws Exception {
+        PacketFactory<?> factory = PacketFactoryRegistry.getFactoryForID(id);
+        return factory == null ? null : factory.createPacket(data);
+    }
+
+    /**
+     * Per-thread reusable wrappers used while encoding frames
+     */
+    private static final class FrameOutput {
+        private final ByteBufferOutputStream buffer = new ByteBufferOutputStream();
+        private final DataOutputStream data = new DataOutputStream(buffer);
+        private final byte[] header = new byte[HEADER_SIZE];
+        private boolean busy;
+    }
 }
@@ -1,5 +1,7 @@
 package io.github.defective4.trivialpacket.common.packet;
 
+import java.nio.ByteBuffer;
+
 /**
  * Packet factory is used to create new instances of a packet
  *
@@ -36,4 +38,23 @@ public abstract class PacketFactory<T extends Packet> {
      */
     protected abstract T createPacket(byte[] data) throws Exception;
 
+    /**
+     * Creates a new packet from a buffer containing raw data. <br>
+     * The buffer is a read-only view of the connection's read buffer, and is only
+     * valid until this method returns, so it must not be retained by the created
+     * packet. <br>
+     * Factories should override this method when they can read the data directly
+     * from the buffer. The default implementation copies the data into an array
+     * and calls {@link #createPacket(byte[])}.
+     *
+     * @param  data      packet data, excluding length and ID
+     * @return           created packet. Can be <code>null</code>
+     * @throws Exception
+     */
+    protected T createPacket(ByteBuffer data) throws Exception {
+        byte[] array = new byte[data.remaining()];
+        data.get(array);
+        return createPacket(array);
+    }
+
 }
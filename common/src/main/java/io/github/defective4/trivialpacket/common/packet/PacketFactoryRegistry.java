@@ -1,7 +1,8 @@
 package io.github.defective4.trivialpacket.common.packet;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.io.DataOutputStream;
+import java.nio.ByteBuffer;
+import java.util.NoSuchElementException;
 import java.util.Objects;
 
 import io.github.defective4.trivialpacket.common.packet.client.AuthPacket;
@@ -10,22 +11,57 @@ import io.github.defective4.trivialpacket.common.packet.twoway.CommandPacket;
 import io.github.defective4.trivialpacket.common.packet.twoway.CommandResponsePacket;
 import io.github.defective4.trivialpacket.common.packet.twoway.DisconnectPacket;
 import io.github.defective4.trivialpacket.common.packet.twoway.PingPacket;
+import io.github.defective4.trivialpacket.common.packet.twoway.StreamChunkPacket;
+import io.github.defective4.trivialpacket.common.packet.twoway.StreamCreditPacket;
 
 /**
  * Packet registry stores packet factories required to create packets of
  * different kinds. <br>
  * It stores both built-in factories that cannot be modified, and user-defined
- * ones.
+ * ones. <br>
+ * Packet IDs are sent as a single byte, so valid IDs range from 0 to 255. IDs
+ * 0-5 are taken by the original built-in packets, and IDs 248-255 are reserved
+ * for built-in protocol extensions. <br>
+ * Lookups are lock-free: factories are kept in a copy-on-write array indexed by
+ * packet ID, and packet class IDs are cached per class.
  */
 public class PacketFactoryRegistry {
-    private static boolean registeringDisabled, unregisteringDisabled;
-    private static final Map<Integer, PacketFactory<?>> BUILTIN = Map
-            .of(0, AuthPacket.FACTORY, 1, AuthSuccessPacket.FACTORY, 2, DisconnectPacket.FACTORY, 3, PingPacket.FACTORY,
-                    4, CommandPacket.FACTORY, 5, CommandResponsePacket.FACTORY);
-    private static final Map<Integer, PacketFactory<?>> FACTORIES = new HashMap<>();
+    /**
+     * Maximum number of registered factories, including built-in ones
+     */
+    public static final int MAX_PACKETS = 256;
+
+    /**
+     * First packet ID reserved for built-in protocol extensions
+     */
+    public static final int EXTENSION_ID_START = 248;
+
+    private static final PacketFactory<?>[] BUILTIN = {
+            AuthPacket.FACTORY, AuthSuccessPacket.FACTORY, DisconnectPacket.FACTORY, PingPacket.FACTORY,
+            CommandPacket.FACTORY, CommandResponsePacket.FACTORY
+    };
+    private static final PacketFactory<?>[] BUILTIN_EXTENSIONS = {
+            StreamChunkPacket.FACTORY, StreamCreditPacket.FACTORY
+    };
+    private static final ClassValue<Integer> CLASS_IDS = new ClassValue<>() {
+
+        @Override
+        protected Integer computeValue(Class<?> type) {
+            PacketFactory<?>[] factories = PacketFactoryRegistry.factories;
+            for (int i = 0; i < factories.length; i++)
+                if (factories[i] != null && factories[i].getPacketClass() == type) return i;
+            return -1;
+        }
+    };
+    private static volatile PacketFactory<?>[] factories;
+    private static final Object LOCK = new Object();
+    private static volatile boolean registeringDisabled, unregisteringDisabled;
 
     static {
-        FACTORIES.putAll(BUILTIN);
+        PacketFactory<?>[] initial = new PacketFactory<?>[MAX_PACKETS];
+        System.arraycopy(BUILTIN, 0, initial, 0, BUILTIN.length);
+        System.arraycopy(BUILTIN_EXTENSIONS, 0, initial, EXTENSION_ID_START, BUILTIN_EXTENSIONS.length);
+        factories = initial;
     }
 
     /**
@@ -51,46 +87,61 @@ public class PacketFactoryRegistry {
      * @return        <code>true</code> if built-in
      */
     public static boolean isBuiltIn(Packet packet) {
-        return BUILTIN.containsKey(packet.getId());
+        return isBuiltInID(packet.getId());
     }
 
     /**
      * Checks for a first free packet ID in the registry
-     * 
-     * @return first free ID
+     *
+     * @return                       first free ID
+     * @throws IllegalStateException if all packet IDs are taken
      */
     public static int getFirstFreeID() {
-        int freeID = 0;
-        while (FACTORIES.containsKey(freeID)) freeID++;
-        return freeID;
+        PacketFactory<?>[] factories = PacketFactoryRegistry.factories;
+        for (int i = 0; i < EXTENSION_ID_START; i++) if (factories[i] == null) return i;
+        throw new IllegalStateException("There are no free packet IDs");
     }
 
     /**
      * Registers a new factory. <br>
-     * IDs 0-5 are currently reserved for built-in packets and therefore cannot be
-     * overridden.
+     * IDs 0-5 and 248-255 are reserved for built-in packets and therefore cannot
+     * be overridden.
      *
-     * @param  id                       packet id. Can't be less than 0
+     * @param  id                       packet id. Must be between 0 and 255
      * @param  factory                  factory to register
      * @throws IllegalStateException    if registering is disabled
-     * @throws IllegalArgumentException if id is less than 0, id is already used by another
-     *                                  packet or if the id belongs to a built-in
-     *                                  packet
+     * @throws IllegalArgumentException if id is out of range, id is already used
+     *                                  by another packet, if the id belongs to a
+     *                                  built-in packet, or if the packet class
+     *                                  can't be written, as it doesn't override
+     *                                  the methods required by
+     *                                  {@link Packet#writePacketData(java.io.DataOutputStream)}
      */
     public static void registerPacketFactory(int id, PacketFactory<?> factory) {
         Objects.requireNonNull(factory);
         if (registeringDisabled) throw new IllegalStateException("Factory registering is disabled");
         if (id < 0) throw new IllegalArgumentException("id < 0");
-        if (FACTORIES.containsKey(id)) throw new IllegalArgumentException("Packet " + id + " is already registered.");
-        if (BUILTIN.values().stream().anyMatch(f -> f.getPacketClass() == factory.getPacketClass()))
+        if (id >= MAX_PACKETS) throw new IllegalArgumentException("id > " + (MAX_PACKETS - 1));
+        if (isBuiltInID(id)) throw new IllegalArgumentException("Can't register packets with built-in IDs");
+        for (PacketFactory<?> builtIn : BUILTIN) if (builtIn.getPacketClass() == factory.getPacketClass())
+            throw new IllegalArgumentException("Can't register built-in packets");
+        for (PacketFactory<?> builtIn : BUILTIN_EXTENSIONS) if (builtIn.getPacketClass() == factory.getPacketClass())
             throw new IllegalArgumentException("Can't register built-in packets");
-        FACTORIES.put(id, factory);
+        if (!canWrite(factory.getPacketClass())) throw new IllegalArgumentException(factory.getPacketClass().getName()
+                + " must override writePacketData(DataOutputStream), or getMaxDataLength and writePacketData(ByteBuffer)");
+        synchronized (LOCK) {
+            if (factories[id] != null) throw new IllegalArgumentException("Packet " + id + " is already registered.");
+            PacketFactory<?>[] copy = factories.clone();
+            copy[id] = factory;
+            factories = copy;
+            CLASS_IDS.remove(factory.getPacketClass());
+        }
     }
 
     /**
      * Unregisters an existing factory. <br>
-     * IDs 0-5 are currently reserved for built-in packets and therefore cannot be
-     * unregistered.
+     * IDs 0-5 and 248-255 are reserved for built-in packets and therefore cannot
+     * be unregistered.
      *
      * @param  id                       packet ID
      * @return                          <code>true</code> if there was a factory
@@ -100,21 +151,55 @@ public class PacketFactoryRegistry {
      */
     public static boolean unregisterPacketFactory(int id) {
         if (unregisteringDisabled) throw new IllegalStateException("Factory unregistering is disabled");
-        if (BUILTIN.containsKey(id)) throw new IllegalArgumentException("Can't unregister built-in packets");
-        return FACTORIES.remove(id) != null;
+        if (isBuiltInID(id)) throw new IllegalArgumentException("Can't unregister built-in packets");
+        if (id < 0 || id >= MAX_PACKETS) return false;
+        synchronized (LOCK) {
+            PacketFactory<?> factory = factories[id];
+            if (factory == null) return false;
+            PacketFactory<?>[] copy = factories.clone();
+            copy[id] = null;
+            factories = copy;
+            CLASS_IDS.remove(factory.getPacketClass());
+            return true;
+        }
+    }
+
+    /**
+     * Checks if a packet class overrides either
+     * {@link Packet#writePacketData(java.io.DataOutputStream)}, or both
+     * {@link Packet#getMaxDataLength()} and
+     * {@link Packet#writePacketData(java.nio.ByteBuffer)}
+     */
+    private static boolean canWrite(Class<?> packetClass) {
+        boolean buffer = false, length = false;
+        for (Class<?> type = packetClass; type != Packet.class; type = type.getSuperclass()) {
+            if (declares(type, "writePacketData", DataOutputStream.class)) return true;
+            buffer |= declares(type, "writePacketData", ByteBuffer.class);
+            length |= declares(type, "getMaxDataLength");
+        }
+        return buffer && length;
+    }
+
+    private static boolean declares(Class<?> type, String name, Class<?>... parameterTypes) {
+        try {
+            type.getDeclaredMethod(name, parameterTypes);
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    private static boolean isBuiltInID(int id) {
+        return id >= 0 && id < BUILTIN.length || id >= EXTENSION_ID_START && id < MAX_PACKETS;
     }
 
     static PacketFactory<?> getFactoryForID(int id) {
-        return FACTORIES.get(id);
+        return id < 0 || id >= MAX_PACKETS ? null : factories[id];
     }
 
     static int getIDForPacketClass(Class<? extends Packet> packetClass) {
-        return FACTORIES
-                .entrySet()
-                .stream()
-                .filter(val -> val.getValue().getPacketClass() == packetClass)
-                .findFirst()
-                .orElseThrow()
-                .getKey();
+        int id = CLASS_IDS.get(packetClass);
+        if (id < 0) throw new NoSuchElementException();
+        return id;
     }
 }
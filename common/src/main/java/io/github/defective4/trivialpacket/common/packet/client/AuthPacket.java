@@ -1,14 +1,24 @@
 package io.github.defective4.trivialpacket.common.packet.client;
 
-import java.io.DataOutputStream;
-import java.io.IOException;
-import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
 
+import io.github.defective4.trivialpacket.common.io.CompressionCodec;
+import io.github.defective4.trivialpacket.common.io.DataBuffers;
 import io.github.defective4.trivialpacket.common.packet.Packet;
 import io.github.defective4.trivialpacket.common.packet.PacketFactory;
 
 /**
- * Authentication packet.
+ * Authentication packet. <br>
+ * Also carries compression codecs supported by the client, in order of
+ * preference. Codecs unknown to the receiver are skipped. <br>
+ * The codecs follow the UTF-8 encoded token after a <code>0</code> byte, and
+ * are left out entirely if there are none, so packets of clients that don't
+ * support compression only contain the token.
  */
 @SuppressWarnings("javadoc")
 public class AuthPacket extends Packet {
@@ -17,14 +27,50 @@ public class AuthPacket extends Packet {
 
         @Override
         protected AuthPacket createPacket(byte[] data) {
-            return new AuthPacket(new String(data, StandardCharsets.UTF_8).toCharArray());
+            return createPacket(ByteBuffer.wrap(data));
+        }
+
+        @Override
+        protected AuthPacket createPacket(ByteBuffer data) {
+            int end = data.position();
+            while (end < data.limit() && data.get(end) != 0) end++;
+            char[] token = DataBuffers.getUTF8(data, end - data.position()).toCharArray();
+            List<CompressionCodec> compression = new ArrayList<>();
+            if (data.hasRemaining()) {
+                data.get();
+                while (data.hasRemaining()) {
+                    CompressionCodec codec = CompressionCodec.forId(data.get() & 0xFF);
+                    if (codec != null && codec != CompressionCodec.NONE) compression.add(codec);
+                }
+            }
+            return new AuthPacket(token, compression);
         }
     };
 
+    private final List<CompressionCodec> compression;
     private final char[] token;
 
     public AuthPacket(char[] token) {
+        this(token, Collections.emptyList());
+    }
+
+    /**
+     * @param  token
+     * @param  compression              supported compression codecs, in order of
+     *                                  preference
+     * @throws IllegalArgumentException if token contains a NUL character
+     * @throws NullPointerException     if token or compression is null
+     */
+    public AuthPacket(char[] token, List<CompressionCodec> compression) {
+        Objects.requireNonNull(token);
+        Objects.requireNonNull(compression);
+        for (char c : token) if (c == 0) throw new IllegalArgumentException("token can't contain NUL characters");
         this.token = token;
+        this.compression = List.copyOf(compression);
+    }
+
+    public List<CompressionCodec> getCompression() {
+        return compression;
     }
 
     public char[] getToken() {
@@ -32,8 +78,17 @@ public class AuthPacket extends Packet {
     }
 
     @Override
-    protected void writePacketData(DataOutputStream str) throws IOException {
-        str.write(new String(token).getBytes(StandardCharsets.UTF_8));
+    protected int getMaxDataLength() {
+        int length = DataBuffers.utf8Length(CharBuffer.wrap(token));
+        return compression.isEmpty() ? length : length + 1 + compression.size();
+    }
+
+    @Override
+    protected void writePacketData(ByteBuffer buffer) {
+        DataBuffers.putUTF8(buffer, CharBuffer.wrap(token));
+        if (compression.isEmpty()) return;
+        buffer.put((byte) 0);
+        for (CompressionCodec codec : compression) buffer.put((byte) codec.getId());
     }
 
 }
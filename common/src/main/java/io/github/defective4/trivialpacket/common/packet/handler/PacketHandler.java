@@ -1,22 +1,140 @@
 package io.github.defective4.trivialpacket.common.packet.handler;
 
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
-import java.lang.reflect.Parameter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import io.github.defective4.trivialpacket.common.packet.Packet;
 import io.github.defective4.trivialpacket.common.packet.PacketFactoryRegistry;
 
+/**
+ * Base class for packet handlers. <br>
+ * Public methods annotated with {@link PacketReceiver}, taking a single packet
+ * argument, are called when a packet of exactly that class is handled. This
+ * works for both built-in and custom packets. <br>
+ * Custom packets without a matching receiver method are passed to
+ * {@link #customPacketReceived(Packet)}. <br>
+ * Receiver methods are discovered once per handler class and compiled into
+ * direct invokers, so handling a packet doesn't involve reflection.
+ */
 @SuppressWarnings("javadoc")
 public abstract class PacketHandler {
 
+    private static final ClassValue<DispatchTable> TABLES = new ClassValue<>() {
+
+        @Override
+        protected DispatchTable computeValue(Class<?> type) {
+            return new DispatchTable(type);
+        }
+    };
+
     public void handle(Packet packet) throws Exception {
-        if (PacketFactoryRegistry.isBuiltIn(packet)) {
-            for (Method m : getClass().getMethods()) if (m.isAnnotationPresent(PacketReceiver.class)) {
-                Parameter[] params = m.getParameters();
-                if (params.length == 1 && params[0].getType() == packet.getClass()) m.invoke(this, packet);
-            }
-        } else customPacketReceived(packet);
+        Invoker[] invokers = TABLES.get(getClass()).lookup(packet);
+        if (invokers.length == 0) {
+            if (!PacketFactoryRegistry.isBuiltIn(packet)) customPacketReceived(packet);
+        } else for (Invoker invoker : invokers) invoker.invoke(this, packet);
     }
 
     protected abstract void customPacketReceived(Packet packet) throws Exception;
+
+    /**
+     * A compiled call to a single {@link PacketReceiver} method. <br>
+     * Used internally.
+     */
+    @FunctionalInterface
+    public interface Invoker {
+        void invoke(PacketHandler handler, Packet packet) throws Exception;
+    }
+
+    /**
+     * Receiver methods of a single handler class. <br>
+     * Lookups are cached in a table indexed by packet ID, so after the first
+     * packet of each kind dispatching is a single array access.
+     */
+    private static final class DispatchTable {
+        private static final Invoker[] NONE = new Invoker[0];
+
+        private final AtomicReferenceArray<Entry> cache = new AtomicReferenceArray<>(256);
+        private final Map<Class<?>, Invoker[]> receivers;
+
+        private DispatchTable(Class<?> handlerClass) {
+            Map<Class<?>, List<Invoker>> found = new HashMap<>();
+            for (Method m : handlerClass.getMethods()) if (m.isAnnotationPresent(PacketReceiver.class)) {
+                Class<?>[] params = m.getParameterTypes();
+                if (params.length != 1 || !Packet.class.isAssignableFrom(params[0])) continue;
+                found.computeIfAbsent(params[0], k -> new ArrayList<>()).add(compile(handlerClass, m));
+            }
+            Map<Class<?>, Invoker[]> receivers = new HashMap<>();
+            found.forEach((type, list) -> receivers.put(type, list.toArray(NONE)));
+            this.receivers = Collections.unmodifiableMap(receivers);
+        }
+
+        private Invoker[] lookup(Packet packet) {
+            int slot = packet.getId() & 0xFF;
+            Entry entry = cache.get(slot);
+            if (entry == null || entry.packetClass != packet.getClass()) {
+                entry = new Entry(packet.getClass(), receivers.getOrDefault(packet.getClass(), NONE));
+                cache.set(slot, entry);
+            }
+            return entry.invokers;
+        }
+
+        /**
+         * Compiles a receiver method into an {@link Invoker}. <br>
+         * A generated lambda is used when possible, as it can be inlined by the JIT.
+         * If the handler class doesn't allow it, a method handle is used instead.
+         */
+        private static Invoker compile(Class<?> handlerClass, Method method) {
+            MethodHandles.Lookup lookup;
+            try {
+                lookup = MethodHandles.privateLookupIn(handlerClass, MethodHandles.lookup());
+            } catch (IllegalAccessException e) {
+                lookup = MethodHandles.publicLookup();
+            }
+            MethodHandle handle;
+            try {
+                handle = lookup.unreflect(method);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException("Can't access packet receiver " + method, e);
+            }
+            try {
+                CallSite site = LambdaMetafactory
+                        .metafactory(lookup, "invoke", MethodType.methodType(Invoker.class),
+                                MethodType.methodType(void.class, PacketHandler.class, Packet.class), handle,
+                                MethodType.methodType(void.class, handlerClass, method.getParameterTypes()[0]));
+                return (Invoker) site.getTarget().invokeExact();
+            } catch (Throwable e) {
+                MethodHandle adapted = handle
+                        .asType(MethodType.methodType(void.class, PacketHandler.class, Packet.class));
+                return (handler, packet) -> {
+                    try {
+                        adapted.invokeExact(handler, packet);
+                    } catch (Exception | Error e1) {
+                        throw e1;
+                    } catch (Throwable e1) {
+                        throw new IllegalStateException(e1);
+                    }
+                };
+            }
+        }
+
+        private static final class Entry {
+            private final Invoker[] invokers;
+            private final Class<?> packetClass;
+
+            private Entry(Class<?> packetClass, Invoker[] invokers) {
+                this.packetClass = packetClass;
+                this.invokers = invokers;
+            }
+        }
+    }
 }
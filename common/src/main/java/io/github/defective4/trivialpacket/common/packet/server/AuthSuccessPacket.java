@@ -1,12 +1,23 @@
 package io.github.defective4.trivialpacket.common.packet.server;
 
-import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Objects;
 
+import io.github.defective4.trivialpacket.common.io.CompressionCodec;
+import io.github.defective4.trivialpacket.common.io.DataBuffers;
+import io.github.defective4.trivialpacket.common.packet.CommandTable;
 import io.github.defective4.trivialpacket.common.packet.Packet;
 import io.github.defective4.trivialpacket.common.packet.PacketFactory;
 
 /**
- * Authentication success packet.
+ * Authentication success packet. <br>
+ * Also carries the compression codec chosen by the server, and the server's
+ * {@link CommandTable}, if it has one. <br>
+ * Both are optional: the data is either empty, a single codec ID byte, or the
+ * codec ID followed by the number of commands and their length-prefixed UTF-8
+ * names.
  */
 @SuppressWarnings("javadoc")
 public class AuthSuccessPacket extends Packet {
@@ -15,11 +26,75 @@ public class AuthSuccessPacket extends Packet {
 
         @Override
         protected AuthSuccessPacket createPacket(byte[] data) throws Exception {
-            return new AuthSuccessPacket();
+            return createPacket(ByteBuffer.wrap(data));
+        }
+
+        @Override
+        protected AuthSuccessPacket createPacket(ByteBuffer data) throws Exception {
+            if (!data.hasRemaining()) return new AuthSuccessPacket();
+            int id = data.get() & 0xFF;
+            CompressionCodec compression = CompressionCodec.forId(id);
+            if (compression == null) throw new IOException("Unknown compression codec: " + id);
+            if (!data.hasRemaining()) return new AuthSuccessPacket(compression);
+            int count = DataBuffers.getVarInt(data);
+            if (count < 0 || count > data.remaining()) throw new IOException("Invalid command count: " + count);
+            String[] commands = new String[count];
+            for (int i = 0; i < count; i++) commands[i] = DataBuffers.getUTF8(data, DataBuffers.getVarInt(data));
+            return new AuthSuccessPacket(compression, new CommandTable(List.of(commands)));
         }
     };
 
+    private final CommandTable commandTable;
+    private final CompressionCodec compression;
+
+    public AuthSuccessPacket() {
+        this(CompressionCodec.NONE);
+    }
+
+    public AuthSuccessPacket(CompressionCodec compression) {
+        this(compression, null);
+    }
+
+    /**
+     * @param compression  compression codec chosen by the server
+     * @param commandTable command table of the server, or <code>null</code> if it
+     *                     has none
+     */
+    public AuthSuccessPacket(CompressionCodec compression, CommandTable commandTable) {
+        Objects.requireNonNull(compression);
+        this.compression = compression;
+        this.commandTable = commandTable;
+    }
+
+    /**
+     * @return command table of the server, or <code>null</code> if it has none
+     */
+    public CommandTable getCommandTable() {
+        return commandTable;
+    }
+
+    public CompressionCodec getCompression() {
+        return compression;
+    }
+
     @Override
-    protected void writePacketData(DataOutputStream str) {}
+    protected int getMaxDataLength() {
+        if (commandTable == null) return compression == CompressionCodec.NONE ? 0 : 1;
+        int length = 1 + 5;
+        for (String command : commandTable.getCommands()) length += 5 + DataBuffers.utf8Length(command);
+        return length;
+    }
+
+    @Override
+    protected void writePacketData(ByteBuffer buffer) {
+        if (compression == CompressionCodec.NONE && commandTable == null) return;
+        buffer.put((byte) compression.getId());
+        if (commandTable == null) return;
+        DataBuffers.putVarInt(buffer, commandTable.size());
+        for (String command : commandTable.getCommands()) {
+            DataBuffers.putVarInt(buffer, DataBuffers.utf8Length(command));
+            DataBuffers.putUTF8(buffer, command);
+        }
+    }
 
 }
@@ -1,15 +1,34 @@
 package io.github.defective4.trivialpacket.common.packet.twoway;
 
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Objects;
 
+import io.github.defective4.trivialpacket.common.io.DataBuffers;
+import io.github.defective4.trivialpacket.common.io.StringCache;
+import io.github.defective4.trivialpacket.common.packet.CommandTable;
 import io.github.defective4.trivialpacket.common.packet.Packet;
 import io.github.defective4.trivialpacket.common.packet.PacketFactory;
 
 /**
- * Command packet
+ * Command packet. <br>
+ * Commands sent as requests carry a non-zero request ID, which has to be echoed
+ * back in the {@link CommandResponsePacket}. <br>
+ * The packet is encoded as follows, with all lengths and counts stored as
+ * variable-length integers ({@link DataBuffers#putVarInt(ByteBuffer, int)}) and
+ * all strings as UTF-8:
+ *
+ * <pre>
+ * - Request ID
+ * - Command - code * 2 + 1 for commands sent by their {@link CommandTable} code,
+ *   or length * 2 followed by the name
+ * - Argument count
+ * - Arguments - length followed by the argument, for each argument
+ * </pre>
+ *
+ * Received command names and short arguments go through a {@link StringCache}
+ * shared by all connections, so repeated ones resolve to the same
+ * <code>String</code> instance without being decoded again.
  */
 @SuppressWarnings("javadoc")
 public class CommandPacket extends Packet {
@@ -18,39 +37,135 @@ public class CommandPacket extends Packet {
 
         @Override
         protected CommandPacket createPacket(byte[] data) throws Exception {
-            try (ByteArrayInputStream buffer = new ByteArrayInputStream(data);
-                    DataInputStream wrapper = new DataInputStream(buffer)) {
-                String command = wrapper.readUTF();
-                String[] arguments = new String[wrapper.readInt()];
-                for (int i = 0; i < arguments.length; i++) arguments[i] = wrapper.readUTF();
-                return new CommandPacket(command, arguments);
+            return createPacket(ByteBuffer.wrap(data));
+        }
+
+        @Override
+        protected CommandPacket createPacket(ByteBuffer data) throws Exception {
+            try {
+                int requestID = DataBuffers.getVarInt(data);
+                int header = DataBuffers.getVarInt(data);
+                String command = (header & 1) == 0 ? STRINGS.get(data, header >>> 1) : null;
+                int count = DataBuffers.getVarInt(data);
+                if (count < 0 || count > data.remaining()) throw new IOException("Invalid argument count: " + count);
+                String[] arguments = new String[count];
+                for (int i = 0; i < count; i++) arguments[i] = STRINGS.get(data, DataBuffers.getVarInt(data));
+                return new CommandPacket(requestID, command == null ? header >>> 1 : -1, command, arguments);
             } catch (Exception e) {
                 throw new IllegalStateException(e);
             }
         }
     };
 
+    private static final StringCache STRINGS = new StringCache();
+
     private final String[] arguments;
     private final String command;
+    private final int commandCode;
+    private final int requestID;
+
+    public CommandPacket(int requestID, String command, String[] arguments) {
+        this(requestID, -1, command, arguments);
+    }
 
     public CommandPacket(String command, String[] arguments) {
+        this(0, command, arguments);
+    }
+
+    private CommandPacket(int requestID, int commandCode, String command, String[] arguments) {
+        this.requestID = requestID;
+        this.commandCode = commandCode;
         this.arguments = arguments;
         this.command = command;
     }
 
+    /**
+     * Get a copy of this packet sending its command by its code in a table. <br>
+     * The receiver must resolve the code with the same table.
+     *
+     * @param  table                command table
+     * @return                      packet sending the command by its code, or
+     *                              this packet if the command is not in the table
+     * @throws NullPointerException if table is null
+     * @see                         #resolve(CommandTable)
+     */
+    public CommandPacket compact(CommandTable table) {
+        Objects.requireNonNull(table);
+        if (command == null || commandCode >= 0) return this;
+        int code = table.getCode(command);
+        return code < 0 ? this : new CommandPacket(requestID, code, command, arguments);
+    }
+
     public String[] getArguments() {
         return arguments;
     }
 
+    /**
+     * @return command name, or <code>null</code> if the command was received by
+     *         its code and is not resolved yet
+     */
     public String getCommand() {
         return command;
     }
 
+    /**
+     * @return code of the command in a {@link CommandTable}, or <code>-1</code> if
+     *         the command is sent by its name
+     */
+    public int getCommandCode() {
+        return commandCode;
+    }
+
+    /**
+     * @return request ID, or <code>0</code> if the command doesn't expect a tagged
+     *         response
+     */
+    public int getRequestID() {
+        return requestID;
+    }
+
+    /**
+     * Get a copy of this packet with its command code resolved to the command
+     * name
+     *
+     * @param  table                command table used by the sender
+     * @return                      packet with the command name, or this packet
+     *                              if the name is already known
+     * @throws IOException          if the code is not in the table
+     * @throws NullPointerException if table is null
+     */
+    public CommandPacket resolve(CommandTable table) throws IOException {
+        Objects.requireNonNull(table);
+        if (command != null) return this;
+        String name = table.getCommand(commandCode);
+        if (name == null) throw new IOException("Unknown command code: " + commandCode);
+        return new CommandPacket(requestID, commandCode, name, arguments);
+    }
+
     @Override
-    protected void writePacketData(DataOutputStream str) throws IOException {
-        str.writeUTF(command);
-        str.writeInt(arguments.length);
-        for (String arg : arguments) str.writeUTF(arg);
+    protected int getMaxDataLength() {
+        int length = 3 * 5;
+        length += commandCode >= 0 ? 0 : DataBuffers.utf8Length(command);
+        for (String arg : arguments) length += 5 + DataBuffers.utf8Length(arg);
+        return length;
+    }
+
+    @Override
+    protected void writePacketData(ByteBuffer buffer) throws IOException {
+        DataBuffers.putVarInt(buffer, requestID);
+        if (commandCode >= 0) DataBuffers.putVarInt(buffer, commandCode << 1 | 1);
+        else putString(buffer, command, 1);
+        DataBuffers.putVarInt(buffer, arguments.length);
+        for (String arg : arguments) putString(buffer, arg, 0);
+    }
+
+    /**
+     * Writes a string prefixed with its length, shifted left by the given number
+     * of bits
+     */
+    private static void putString(ByteBuffer buffer, String str, int shift) {
+        DataBuffers.putVarInt(buffer, DataBuffers.utf8Length(str) << shift);
+        DataBuffers.putUTF8(buffer, str);
     }
 
 }
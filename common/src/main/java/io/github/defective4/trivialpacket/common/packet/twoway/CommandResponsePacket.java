@@ -1,13 +1,14 @@
 package io.github.defective4.trivialpacket.common.packet.twoway;
 
-import java.io.DataOutputStream;
-import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import io.github.defective4.trivialpacket.common.packet.Packet;
 import io.github.defective4.trivialpacket.common.packet.PacketFactory;
 
 /**
- * Command response packet
+ * Command response packet. <br>
+ * Responses to requests carry the request ID of the {@link CommandPacket} they
+ * respond to, untagged responses use <code>0</code>.
  */
 @SuppressWarnings("javadoc")
 public class CommandResponsePacket extends Packet {
@@ -17,13 +18,27 @@ public class CommandResponsePacket extends Packet {
 
         @Override
         protected CommandResponsePacket createPacket(byte[] data) throws Exception {
-            return new CommandResponsePacket(data);
+            return createPacket(ByteBuffer.wrap(data));
+        }
+
+        @Override
+        protected CommandResponsePacket createPacket(ByteBuffer data) throws Exception {
+            int requestID = data.getInt();
+            byte[] copy = new byte[data.remaining()];
+            data.get(copy);
+            return new CommandResponsePacket(requestID, copy);
         }
     };
 
     private final byte[] data;
+    private final int requestID;
 
     public CommandResponsePacket(byte[] data) {
+        this(0, data);
+    }
+
+    public CommandResponsePacket(int requestID, byte[] data) {
+        this.requestID = requestID;
         this.data = data;
     }
 
@@ -31,9 +46,23 @@ public class CommandResponsePacket extends Packet {
         return data;
     }
 
+    /**
+     * @return ID of the request this packet responds to, or <code>0</code> if
+     *         it's not a response to a request
+     */
+    public int getRequestID() {
+        return requestID;
+    }
+
+    @Override
+    protected int getMaxDataLength() {
+        return Integer.BYTES + data.length;
+    }
+
     @Override
-    protected void writePacketData(DataOutputStream str) throws IOException {
-        str.write(data);
+    protected void writePacketData(ByteBuffer buffer) {
+        buffer.putInt(requestID);
+        buffer.put(data);
     }
 
 }
@@ -1,9 +1,8 @@
 package io.github.defective4.trivialpacket.common.packet.twoway;
 
-import java.io.DataOutputStream;
-import java.io.IOException;
-import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
 
+import io.github.defective4.trivialpacket.common.io.DataBuffers;
 import io.github.defective4.trivialpacket.common.packet.Packet;
 import io.github.defective4.trivialpacket.common.packet.PacketFactory;
 
@@ -19,7 +18,12 @@ public class DisconnectPacket extends Packet {
 
         @Override
         protected DisconnectPacket createPacket(byte[] data) throws Exception {
-            return new DisconnectPacket(new String(data, StandardCharsets.UTF_8));
+            return createPacket(ByteBuffer.wrap(data));
+        }
+
+        @Override
+        protected DisconnectPacket createPacket(ByteBuffer data) throws Exception {
+            return new DisconnectPacket(DataBuffers.getUTF8(data));
         }
     };
 
@@ -37,8 +41,13 @@ public class DisconnectPacket extends Packet {
     }
 
     @Override
-    protected void writePacketData(DataOutputStream str) throws IOException {
-        str.write(reason.getBytes(StandardCharsets.UTF_8));
+    protected int getMaxDataLength() {
+        return DataBuffers.utf8Length(reason);
+    }
+
+    @Override
+    protected void writePacketData(ByteBuffer buffer) {
+        DataBuffers.putUTF8(buffer, reason);
     }
 
 }
@@ -1,7 +1,5 @@
 package io.github.defective4.trivialpacket.common.packet.twoway;
 
-import java.io.DataOutputStream;
-import java.io.IOException;
 import java.nio.ByteBuffer;
 
 import io.github.defective4.trivialpacket.common.packet.Packet;
@@ -14,7 +12,12 @@ public class PingPacket extends Packet {
 
         @Override
         protected PingPacket createPacket(byte[] data) throws Exception {
-            return new PingPacket(ByteBuffer.wrap(data).getLong());
+            return createPacket(ByteBuffer.wrap(data));
+        }
+
+        @Override
+        protected PingPacket createPacket(ByteBuffer data) throws Exception {
+            return new PingPacket(data.getLong());
         }
     };
 
@@ -24,9 +27,24 @@ public class PingPacket extends Packet {
         this.id = id;
     }
 
+    /**
+     * Get the keep-alive ID carried by this packet. <br>
+     * Not to be confused with {@link #getId()}, which returns the packet ID.
+     *
+     * @return keep-alive ID
+     */
+    public long getPingID() {
+        return id;
+    }
+
+    @Override
+    protected int getMaxDataLength() {
+        return Long.BYTES;
+    }
+
     @Override
-    protected void writePacketData(DataOutputStream str) throws IOException {
-        str.writeLong(id);
+    protected void writePacketData(ByteBuffer buffer) {
+        buffer.putLong(id);
     }
 
 }
@@ -0,0 +1,103 @@
+package io.github.defective4.trivialpacket.common.packet.twoway;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Objects;
+
+import io.github.defective4.trivialpacket.common.packet.Packet;
+import io.github.defective4.trivialpacket.common.packet.PacketFactory;
+
+/**
+ * A chunk of a streamed response. <br>
+ * Carries the ID of the request it responds to. Sending a chunk consumes one
+ * credit granted by the receiver with {@link StreamCreditPacket}. <br>
+ * Outgoing packets don't copy the data passed to the constructor, so the array
+ * must not be modified until the packet is sent.
+ */
+@SuppressWarnings("javadoc")
+public class StreamChunkPacket extends Packet {
+
+    /**
+     * Flag of the last chunk of a stream
+     */
+    public static final int LAST = 1;
+
+    /**
+     * Flag of a stream aborted by the sender. Always sent together with
+     * {@link #LAST}.
+     */
+    public static final int ABORTED = 2;
+
+    public static final PacketFactory<StreamChunkPacket> FACTORY = new PacketFactory<>(StreamChunkPacket.class) {
+
+        @Override
+        protected StreamChunkPacket createPacket(byte[] data) throws Exception {
+            return createPacket(ByteBuffer.wrap(data));
+        }
+
+        @Override
+        protected StreamChunkPacket createPacket(ByteBuffer data) throws Exception {
+            int requestID = data.getInt();
+            int flags = data.get() & 0xFF;
+            byte[] copy = new byte[data.remaining()];
+            data.get(copy);
+            return new StreamChunkPacket(requestID, flags, copy);
+        }
+    };
+
+    private final byte[] data;
+    private final int flags;
+    private final int length;
+    private final int offset;
+    private final int requestID;
+
+    public StreamChunkPacket(int requestID, int flags, byte[] data) {
+        this(requestID, flags, data, 0, data.length);
+    }
+
+    public StreamChunkPacket(int requestID, int flags, byte[] data, int offset, int length) {
+        Objects.checkFromIndexSize(offset, length, data.length);
+        this.requestID = requestID;
+        this.flags = flags;
+        this.data = data;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    public byte[] getData() {
+        return offset == 0 && length == data.length ? data : Arrays.copyOfRange(data, offset, offset + length);
+    }
+
+    public int getFlags() {
+        return flags;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public int getRequestID() {
+        return requestID;
+    }
+
+    public boolean isAborted() {
+        return (flags & ABORTED) != 0;
+    }
+
+    public boolean isLast() {
+        return (flags & LAST) != 0;
+    }
+
+    @Override
+    protected int getMaxDataLength() {
+        return Integer.BYTES + 1 + length;
+    }
+
+    @Override
+    protected void writePacketData(ByteBuffer buffer) {
+        buffer.putInt(requestID);
+        buffer.put((byte) flags);
+        buffer.put(data, offset, length);
+    }
+
+}
@@ -0,0 +1,65 @@
+package io.github.defective4.trivialpacket.common.packet.twoway;
+
+import java.nio.ByteBuffer;
+
+import io.github.defective4.trivialpacket.common.packet.Packet;
+import io.github.defective4.trivialpacket.common.packet.PacketFactory;
+
+/**
+ * Flow control packet of a streamed response. <br>
+ * Sent by the receiver of a stream to allow the sender to send more
+ * {@link StreamChunkPacket}s, or to cancel the stream.
+ */
+@SuppressWarnings("javadoc")
+public class StreamCreditPacket extends Packet {
+
+    /**
+     * Credits value cancelling the stream
+     */
+    public static final int CANCEL = 0;
+
+    public static final PacketFactory<StreamCreditPacket> FACTORY = new PacketFactory<>(StreamCreditPacket.class) {
+
+        @Override
+        protected StreamCreditPacket createPacket(byte[] data) throws Exception {
+            return createPacket(ByteBuffer.wrap(data));
+        }
+
+        @Override
+        protected StreamCreditPacket createPacket(ByteBuffer data) throws Exception {
+            return new StreamCreditPacket(data.getInt(), data.getInt());
+        }
+    };
+
+    private final int credits;
+    private final int requestID;
+
+    public StreamCreditPacket(int requestID, int credits) {
+        this.requestID = requestID;
+        this.credits = credits;
+    }
+
+    /**
+     * @return number of additional chunks the sender may send, or
+     *         {@link #CANCEL}
+     */
+    public int getCredits() {
+        return credits;
+    }
+
+    public int getRequestID() {
+        return requestID;
+    }
+
+    @Override
+    protected int getMaxDataLength() {
+        return Integer.BYTES * 2;
+    }
+
+    @Override
+    protected void writePacketData(ByteBuffer buffer) {
+        buffer.putInt(requestID);
+        buffer.putInt(credits);
+    }
+
+}
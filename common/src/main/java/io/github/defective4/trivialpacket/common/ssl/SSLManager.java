@@ -10,15 +10,84 @@ import java.security.SecureRandom;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSessionContext;
 import javax.net.ssl.TrustManagerFactory;
 
 @SuppressWarnings("javadoc")
 public class SSLManager {
 
+    private static final Map<ContextKey, SSLContext> CONTEXTS = new ConcurrentHashMap<>();
+
+    /**
+     * Removes all contexts cached by {@link #getSSLContext(Certificate, PrivateKey)}.
+     * <br>
+     * Servers and clients already using a removed context keep using it, but new
+     * ones get a new context, with an empty session cache.
+     */
+    public static void clearSSLContexts() {
+        CONTEXTS.clear();
+    }
+
+    /**
+     * Get a shared context for the certificate and key, creating it on first
+     * use. <br>
+     * All servers and clients using the same certificate and key share one
+     * context, and so one session cache, which lets reconnecting clients resume
+     * their previous TLS session instead of performing a full handshake. <br>
+     * Contexts are global: they are cached until {@link #clearSSLContexts()} is
+     * called, and shared by all callers in the JVM. Changing a shared context,
+     * like its session cache settings, affects all of its users, so use
+     * {@link #mkSSLContext(Certificate, PrivateKey)} for a private one.
+     *
+     * @param  cert certificate
+     * @param  key  private key associated with the certificate. Can be
+     *              <code>null</code> for contexts only validating the peer
+     * @return      shared SSL context
+     * @see         #mkSSLContext(Certificate, PrivateKey)
+     */
+    public static SSLContext getSSLContext(Certificate cert, PrivateKey key) throws KeyStoreException, IOException,
+            NoSuchAlgorithmException, CertificateException, UnrecoverableKeyException, KeyManagementException {
+        Objects.requireNonNull(cert);
+        ContextKey contextKey = new ContextKey(cert, key);
+        SSLContext context = CONTEXTS.get(contextKey);
+        if (context != null) return context;
+        context = mkSSLContext(cert, key);
+        SSLContext previous = CONTEXTS.putIfAbsent(contextKey, context);
+        return previous == null ? context : previous;
+    }
+
+    /**
+     * Creates SSL parameters for sockets of the context. <br>
+     * The context's default protocols and cipher suites are kept, but TLS 1.3
+     * and ECDHE suites using AES-GCM, which is hardware accelerated on most
+     * CPUs, are moved to the front. AES-128 goes before AES-256, as it's faster
+     * and considered strong enough. The order is enforced on the server side.
+     *
+     * @param  context SSL context
+     * @return         new SSL parameters
+     */
+    public static SSLParameters mkSSLParameters(SSLContext context) {
+        SSLParameters parameters = context.getDefaultSSLParameters();
+        List<String> suites = new ArrayList<>();
+        for (String cipher : new String[] { "_AES_128_GCM_", "_AES_256_GCM_" })
+            for (String suite : parameters.getCipherSuites())
+                if ((suite.startsWith("TLS_AES_") || suite.startsWith("TLS_ECDHE_")) && suite.contains(cipher))
+                    suites.add(suite);
+        for (String suite : parameters.getCipherSuites()) if (!suites.contains(suite)) suites.add(suite);
+        parameters.setCipherSuites(suites.toArray(new String[0]));
+        parameters.setUseCipherSuitesOrder(true);
+        return parameters;
+    }
+
     public static SSLContext mkSSLContext(Certificate cert, PrivateKey key) throws KeyStoreException, IOException,
             NoSuchAlgorithmException, CertificateException, UnrecoverableKeyException, KeyManagementException {
         Objects.requireNonNull(cert);
@@ -37,4 +106,64 @@ public class SSLManager {
         context.init(keyManagerFactory.getKeyManagers(), trustManagerFactory.getTrustManagers(), new SecureRandom());
         return context;
     }
+
+    /**
+     * Configures the session cache used by client sockets of the context
+     *
+     * @param  context                  SSL context
+     * @param  cacheSize                maximum number of cached sessions.
+     *                                  <code>0</code> means no limit
+     * @param  timeout                  time a session can be resumed for, in
+     *                                  seconds. <code>0</code> means no limit
+     * @throws IllegalArgumentException if cacheSize or timeout is less than 0
+     * @see                             #setSessionCache(SSLContext, int, int)
+     */
+    public static void setClientSessionCache(SSLContext context, int cacheSize, int timeout) {
+        configure(context.getClientSessionContext(), cacheSize, timeout);
+    }
+
+    /**
+     * Configures the session cache used by server sockets of the context
+     *
+     * @param  context                  SSL context
+     * @param  cacheSize                maximum number of cached sessions.
+     *                                  <code>0</code> means no limit
+     * @param  timeout                  time a session can be resumed for, in
+     *                                  seconds. <code>0</code> means no limit
+     * @throws IllegalArgumentException if cacheSize or timeout is less than 0
+     * @see                             #setSessionCache(SSLContext, int, int)
+     */
+    public static void setServerSessionCache(SSLContext context, int cacheSize, int timeout) {
+        configure(context.getServerSessionContext(), cacheSize, timeout);
+    }
+
+    /**
+     * Configures the session caches of the context. <br>
+     * Cached sessions let clients reconnecting to the same server resume their
+     * previous session, skipping the expensive key exchange and certificate
+     * validation. The cache is used on both sides, and for both TLS 1.2 session
+     * IDs and TLS 1.3 session tickets. <br>
+     * The settings apply to all servers and clients using the context, including
+     * ones sharing it through {@link #getSSLContext(Certificate, PrivateKey)}.
+     *
+     * @param  context                  SSL context
+     * @param  cacheSize                maximum number of cached sessions.
+     *                                  <code>0</code> means no limit
+     * @param  timeout                  time a session can be resumed for, in
+     *                                  seconds. <code>0</code> means no limit
+     * @throws IllegalArgumentException if cacheSize or timeout is less than 0
+     */
+    public static void setSessionCache(SSLContext context, int cacheSize, int timeout) {
+        setClientSessionCache(context, cacheSize, timeout);
+        setServerSessionCache(context, cacheSize, timeout);
+    }
+
+    private static void configure(SSLSessionContext sessions, int cacheSize, int timeout) {
+        if (cacheSize < 0) throw new IllegalArgumentException("cacheSize can't be less than 0");
+        if (timeout < 0) throw new IllegalArgumentException("timeout can't be less than 0");
+        sessions.setSessionCacheSize(cacheSize);
+        sessions.setSessionTimeout(timeout);
+    }
+
+    private record ContextKey(Certificate cert, PrivateKey key) {}
 }
@@ -0,0 +1,46 @@
+package io.github.defective4.trivialpacket.common.io;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+class DataBuffersTest {
+
+    @Test
+    void varIntsUseSevenBitsPerByte() throws Exception {
+        int[] values = { 0, 1, 127, 128, 16383, 16384, 2097151, 2097152, 268435455, 268435456, Integer.MAX_VALUE,
+                -1, Integer.MIN_VALUE };
+        int[] lengths = { 1, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 5, 5 };
+        for (int i = 0; i < values.length; i++) {
+            ByteBuffer buffer = ByteBuffer.allocate(5);
+            DataBuffers.putVarInt(buffer, values[i]);
+            assertEquals(lengths[i], buffer.position(), "length of " + values[i]);
+            assertEquals(values[i], DataBuffers.getVarInt(buffer.flip()));
+            assertFalse(buffer.hasRemaining());
+        }
+    }
+
+    @Test
+    void rejectsVarIntsLongerThanFiveBytes() {
+        ByteBuffer buffer = ByteBuffer.wrap(new byte[] { -1, -1, -1, -1, -1, 1 });
+        assertThrows(IOException.class, () -> DataBuffers.getVarInt(buffer));
+    }
+
+    @Test
+    void utf8MatchesStringEncoding() {
+        for (String str : new String[] { "", "ascii", "zażółć", "日本語", "😀 emoji", "\uD800 unpaired" }) {
+            byte[] expected = str.getBytes(StandardCharsets.UTF_8);
+            assertEquals(expected.length, DataBuffers.utf8Length(str), str);
+            ByteBuffer buffer = ByteBuffer.allocate(expected.length);
+            DataBuffers.putUTF8(buffer, str);
+            assertEquals(ByteBuffer.wrap(expected), buffer.flip());
+            assertEquals(new String(expected, StandardCharsets.UTF_8), DataBuffers.getUTF8(buffer, expected.length));
+        }
+    }
+}
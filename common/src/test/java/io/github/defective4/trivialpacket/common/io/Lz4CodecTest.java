@@ -0,0 +1,152 @@
+package io.github.defective4.trivialpacket.common.io;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+class Lz4CodecTest {
+
+    private static final CompressionCodec LZ4 = CompressionCodec.LZ4;
+
+    @Test
+    void roundTripsIncompressibleData() throws Exception {
+        Random random = new Random(1);
+        for (int length : new int[] { 0, 1, 15, 16, 270, 271, 4096, 100_000 }) {
+            byte[] data = new byte[length];
+            random.nextBytes(data);
+            roundTrip(data);
+            assertTrue(compress(data, false).length <= LZ4.maxCompressedLength(length));
+        }
+    }
+
+    @Test
+    void roundTripsRepetitiveData() throws Exception {
+        byte[] zeros = new byte[100_000];
+        assertTrue(roundTrip(zeros) < 1000);
+
+        byte[] pattern = new byte[100_000];
+        for (int i = 0; i < pattern.length; i++) pattern[i] = (byte) "abc".charAt(i % 3);
+        assertTrue(roundTrip(pattern) < 1000);
+
+        Random random = new Random(2);
+        byte[] mixed = new byte[100_000];
+        for (int i = 0; i < mixed.length;) {
+            int run = random.nextInt(600);
+            boolean literal = random.nextBoolean();
+            for (int j = 0; j < run && i < mixed.length; j++, i++)
+                mixed[i] = literal ? (byte) random.nextInt() : i >= 300 ? mixed[i - 300] : 7;
+        }
+        roundTrip(mixed);
+    }
+
+    @Test
+    void roundTripsLengthsAroundMatchLimit() throws Exception {
+        Random random = new Random(3);
+        for (int length = 0; length <= 40; length++) {
+            byte[] repetitive = new byte[length];
+            Arrays.fill(repetitive, (byte) 'x');
+            roundTrip(repetitive);
+            byte[] incompressible = new byte[length];
+            random.nextBytes(incompressible);
+            roundTrip(incompressible);
+            byte[] mixed = incompressible.clone();
+            System.arraycopy(repetitive, 0, mixed, length / 2, length - length / 2);
+            roundTrip(mixed);
+        }
+    }
+
+    @Test
+    void rejectsInvalidOffsets() {
+        assertInvalid(new byte[] { 0x10, 'a', 0, 0 }, 5);
+        assertInvalid(new byte[] { 0x10, 'a', 2, 0 }, 5);
+        assertInvalid(new byte[] { 0x10, 'a', (byte) 0xFF, (byte) 0xFF }, 5);
+    }
+
+    @Test
+    void rejectsOverlongLiteralRuns() {
+        assertInvalid(new byte[] { 0x50, 'a', 'b', 'c' }, 5);
+        assertInvalid(new byte[] { 0x50, 'a', 'b', 'c', 'd', 'e' }, 3);
+        assertInvalid(new byte[] { (byte) 0xF0, (byte) 255, (byte) 255, 10, 'a' }, 1000);
+        assertInvalid(new byte[] { (byte) 0xF0, (byte) 255, (byte) 255 }, 1000);
+    }
+
+    @Test
+    void rejectsOverlongMatchRuns() {
+        assertInvalid(new byte[] { 0x1F, 'a', 1, 0, (byte) 255, (byte) 255, 10, 0x00 }, 20);
+        assertInvalid(new byte[] { 0x1F, 'a', 1, 0, (byte) 255 }, 1000);
+    }
+
+    @Test
+    void rejectsTruncatedData() {
+        assertInvalid(new byte[0], 0);
+        assertInvalid(new byte[] { 0x11, 'a', 1 }, 10);
+        byte[] compressed = compress(new byte[1000], false);
+        assertInvalid(Arrays.copyOf(compressed, compressed.length - 1), 1000);
+    }
+
+    @Test
+    void rejectsWrongUncompressedLength() {
+        byte[] data = new byte[1000];
+        new Random(4).nextBytes(data);
+        Arrays.fill(data, 200, 800, (byte) 1);
+        byte[] compressed = compress(data, false);
+        assertInvalid(compressed, data.length - 1);
+        assertInvalid(compressed, data.length + 1);
+    }
+
+    @Test
+    void rejectsRandomDataWithIOException() {
+        Random random = new Random(5);
+        for (int i = 0; i < 10_000; i++) {
+            byte[] data = new byte[random.nextInt(64)];
+            random.nextBytes(data);
+            ByteBuffer dst = ByteBuffer.allocate(random.nextInt(256));
+            try {
+                LZ4.decompress(ByteBuffer.wrap(data), dst);
+            } catch (IOException e) {}
+        }
+    }
+
+    private static void assertInvalid(byte[] compressed, int length) {
+        assertThrows(IOException.class, () -> LZ4.decompress(ByteBuffer.wrap(compressed), ByteBuffer.allocate(length)));
+    }
+
+    private static byte[] compress(byte[] data, boolean direct) {
+        ByteBuffer dst = allocate(LZ4.maxCompressedLength(data.length), direct);
+        LZ4.compress(allocate(data.length, direct).put(data).flip(), dst);
+        byte[] compressed = new byte[dst.flip().remaining()];
+        dst.get(compressed);
+        return compressed;
+    }
+
+    private static ByteBuffer allocate(int capacity, boolean direct) {
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * Compresses and decompresses data with heap and direct buffers
+     *
+     * @return compressed length
+     */
+    private static int roundTrip(byte[] data) throws IOException {
+        int length = 0;
+        for (boolean direct : new boolean[] { false, true }) {
+            byte[] compressed = compress(data, direct);
+            ByteBuffer src = allocate(compressed.length, direct).put(compressed).flip();
+            ByteBuffer dst = allocate(data.length, direct);
+            LZ4.decompress(src, dst);
+            byte[] decompressed = new byte[dst.flip().remaining()];
+            dst.get(decompressed);
+            assertArrayEquals(data, decompressed);
+            length = compressed.length;
+        }
+        return length;
+    }
+}
@@ -0,0 +1,221 @@
+package io.github.defective4.trivialpacket.common.io;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Test;
+
+import io.github.defective4.trivialpacket.common.packet.FrameDecoder;
+import io.github.defective4.trivialpacket.common.packet.Packet;
+import io.github.defective4.trivialpacket.common.packet.twoway.CommandPacket;
+import io.github.defective4.trivialpacket.common.packet.twoway.PingPacket;
+import io.github.defective4.trivialpacket.common.packet.twoway.StreamChunkPacket;
+
+class OutboundQueueTest {
+
+    @Test
+    void writesFramesInOrderAcrossBatchesAndPartialWrites() throws Exception {
+        RecordingChannel channel = new RecordingChannel(100);
+        OutboundQueue queue = new OutboundQueue(channel);
+        for (int i = 0; i < 500; i++) queue.offer(new PingPacket(i));
+        assertTrue(queue.flush());
+        assertEquals(0, queue.getPendingBytes());
+
+        List<Packet> packets = channel.decode();
+        assertEquals(500, packets.size());
+        for (int i = 0; i < packets.size(); i++) assertEquals(i, ((PingPacket) packets.get(i)).getPingID());
+    }
+
+    @Test
+    void sendBatchWritesFramesTogether() throws Exception {
+        RecordingChannel channel = new RecordingChannel(Integer.MAX_VALUE);
+        OutboundQueue queue = new OutboundQueue(channel);
+        List<Packet> batch = new ArrayList<>();
+        for (int i = 0; i < 200; i++) batch.add(new PingPacket(i));
+        queue.sendBatch(batch);
+        assertEquals(4, channel.writes);
+        assertEquals(200, channel.decode().size());
+    }
+
+    @Test
+    void keepsFramesOfConcurrentSendersIntactAndOrdered() throws Exception {
+        RecordingChannel channel = new RecordingChannel(100);
+        OutboundQueue queue = new OutboundQueue(channel);
+        Thread[] senders = new Thread[4];
+        AtomicReference<IOException> failure = new AtomicReference<>();
+        for (int i = 0; i < senders.length; i++) {
+            int sender = i;
+            senders[i] = new Thread(() -> {
+                try {
+                    for (int j = 0; j < 1000; j++) queue.send(new PingPacket(sender * 10000L + j));
+                } catch (IOException e) {
+                    failure.set(e);
+                }
+            });
+            senders[i].start();
+        }
+        for (Thread sender : senders) sender.join();
+        assertNull(failure.get());
+        assertTrue(queue.flush());
+
+        long[] next = new long[senders.length];
+        List<Packet> packets = channel.decode();
+        assertEquals(4000, packets.size());
+        for (Packet packet : packets) {
+            long id = ((PingPacket) packet).getPingID();
+            int sender = (int) (id / 10000);
+            assertEquals(next[sender]++, id % 10000);
+        }
+    }
+
+    @Test
+    void writesTrailerAsPartOfItsFrame() throws Exception {
+        RecordingChannel channel = new RecordingChannel(7);
+        OutboundQueue queue = new OutboundQueue(channel);
+        byte[] trailer = new byte[1000];
+        for (int i = 0; i < trailer.length; i++) trailer[i] = (byte) i;
+        ByteBuffer source = ByteBuffer.wrap(trailer);
+        queue.offer(new PingPacket(1));
+        queue.offer(new StreamChunkPacket(3, StreamChunkPacket.LAST, new byte[0]), source, true);
+        queue.offer(new PingPacket(2));
+        assertTrue(queue.flush());
+        assertEquals(0, source.position());
+
+        List<Packet> packets = channel.decode();
+        assertEquals(3, packets.size());
+        assertEquals(1, ((PingPacket) packets.get(0)).getPingID());
+        StreamChunkPacket chunk = assertInstanceOf(StreamChunkPacket.class, packets.get(1));
+        assertEquals(3, chunk.getRequestID());
+        assertTrue(chunk.isLast());
+        assertArrayEquals(trailer, chunk.getData());
+        assertEquals(2, ((PingPacket) packets.get(2)).getPingID());
+    }
+
+    @Test
+    void dropOldestOnlyDiscardsOfferedFrames() throws Exception {
+        RecordingChannel channel = new RecordingChannel(0);
+        OutboundQueue queue = new OutboundQueue(channel);
+        queue.setWatermarks(100, 200);
+        queue.setOverflowPolicy(OverflowPolicy.DROP_OLDEST);
+        ByteBuffer broadcast = new CommandPacket("broadcast", new String[0]).encode(BufferPool.HEAP);
+        ByteBuffer trailer = ByteBuffer.wrap(new byte[50]);
+        for (int i = 0; i < 60; i++) {
+            if (i % 3 == 0) queue.offer(new PingPacket(i), false);
+            else if (i % 10 == 1) queue.offer(new StreamChunkPacket(i, 0, new byte[0]), trailer, false);
+            else queue.offerFrame(broadcast);
+        }
+        assertFalse(queue.flush());
+
+        channel.budget = Integer.MAX_VALUE;
+        assertTrue(queue.flush());
+        List<Integer> protocol = new ArrayList<>();
+        int broadcasts = 0;
+        for (Packet packet : channel.decode())
+            if (packet instanceof PingPacket ping) protocol.add((int) ping.getPingID());
+            else if (packet instanceof StreamChunkPacket chunk) {
+                assertEquals(50, chunk.getLength());
+                protocol.add(chunk.getRequestID());
+            } else broadcasts++;
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < 60; i++) if (i % 3 == 0 || i % 10 == 1) expected.add(i);
+        assertEquals(expected, protocol);
+        assertTrue(broadcasts < 36);
+        assertEquals(0, broadcast.position());
+    }
+
+    @Test
+    void offerFrameLeavesSharedFrameIntact() throws Exception {
+        ByteBuffer frame = new PingPacket(7).encode(BufferPool.HEAP).asReadOnlyBuffer();
+        RecordingChannel first = new RecordingChannel(Integer.MAX_VALUE);
+        RecordingChannel second = new RecordingChannel(Integer.MAX_VALUE);
+        OutboundQueue firstQueue = new OutboundQueue(first);
+        OutboundQueue secondQueue = new OutboundQueue(second);
+        firstQueue.offerFrame(frame);
+        secondQueue.offerFrame(frame);
+        assertTrue(firstQueue.flush());
+        assertTrue(secondQueue.flush());
+        assertEquals(7, ((PingPacket) first.decode().get(0)).getPingID());
+        assertEquals(7, ((PingPacket) second.decode().get(0)).getPingID());
+    }
+
+    @Test
+    void disconnectPolicyRejectsPacketsAfterOverflow() throws Exception {
+        OutboundQueue queue = new OutboundQueue(new RecordingChannel(0));
+        queue.setWatermarks(10, 20);
+        queue.setOverflowPolicy(OverflowPolicy.DISCONNECT);
+        queue.offer(new PingPacket(1), false);
+        queue.offer(new PingPacket(2), false);
+        assertThrows(IOException.class, () -> queue.offer(new PingPacket(3), false));
+        assertThrows(IOException.class, () -> queue.offer(new PingPacket(4), false));
+    }
+
+    /**
+     * Blocking channel recording written bytes, accepting at most a given number
+     * of bytes per write
+     */
+    private static class RecordingChannel implements GatheringByteChannel {
+        private int budget;
+        private final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        private int writes;
+
+        private RecordingChannel(int budget) {
+            this.budget = budget;
+        }
+
+        @Override
+        public void close() {}
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            return (int) write(new ByteBuffer[] { src }, 0, 1);
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) {
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            writes++;
+            long total = 0;
+            for (int i = offset; i < offset + length && total < budget; i++)
+                while (srcs[i].hasRemaining() && total < budget) {
+                    written.write(srcs[i].get());
+                    total++;
+                }
+            return total;
+        }
+
+        private List<Packet> decode() throws Exception {
+            FrameDecoder decoder = new FrameDecoder(BufferPool.HEAP, FrameDecoder.DEFAULT_MAX_FRAME_SIZE);
+            ByteArrayInputStream in = new ByteArrayInputStream(written.toByteArray());
+            List<Packet> packets = new ArrayList<>();
+            while (true) try {
+                packets.add(decoder.read(in));
+            } catch (EOFException e) {
+                return packets;
+            }
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package io.github.defective4.trivialpacket.common.packet;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+import io.github.defective4.trivialpacket.common.io.BufferPool;
+import io.github.defective4.trivialpacket.common.io.CompressionCodec;
+import io.github.defective4.trivialpacket.common.packet.twoway.CommandPacket;
+import io.github.defective4.trivialpacket.common.packet.twoway.CommandResponsePacket;
+import io.github.defective4.trivialpacket.common.packet.twoway.PingPacket;
+
+class FrameDecoderTest {
+
+    @Test
+    void decodesBackToBackFramesFromSingleRead() throws Exception {
+        byte[] bytes = concat(encode(new PingPacket(1)), encode(new PingPacket(2)), encode(new PingPacket(3)));
+        FrameDecoder decoder = new FrameDecoder(BufferPool.HEAP, FrameDecoder.DEFAULT_MAX_FRAME_SIZE);
+        decoder.fill(new ByteArrayInputStream(bytes));
+        for (long id = 1; id <= 3; id++) {
+            assertTrue(decoder.hasFrame());
+            assertEquals(id, ((PingPacket) decoder.nextPacket()).getPingID());
+        }
+        assertFalse(decoder.hasFrame());
+    }
+
+    @Test
+    void decodesFramesSplitAtEveryByte() throws Exception {
+        byte[] bytes = concat(encode(new CommandPacket(7, "echo", new String[] { "a", "bc" })),
+                encode(new PingPacket(42)));
+        FrameDecoder decoder = new FrameDecoder(BufferPool.HEAP, FrameDecoder.DEFAULT_MAX_FRAME_SIZE);
+        InputStream in = new TrickleInputStream(bytes);
+        CommandPacket command = (CommandPacket) decoder.read(in);
+        assertEquals(7, command.getRequestID());
+        assertEquals("echo", command.getCommand());
+        assertArrayEquals(new String[] { "a", "bc" }, command.getArguments());
+        assertEquals(42, ((PingPacket) decoder.read(in)).getPingID());
+        assertThrows(EOFException.class, () -> decoder.read(in));
+    }
+
+    @Test
+    void keepsPartialHeaderUntilFrameIsComplete() throws Exception {
+        byte[] frame = encode(new PingPacket(5));
+        FrameDecoder decoder = new FrameDecoder(BufferPool.HEAP, FrameDecoder.DEFAULT_MAX_FRAME_SIZE);
+        decoder.fill(new ByteArrayInputStream(frame, 0, 2));
+        assertFalse(decoder.hasFrame());
+        decoder.fill(new ByteArrayInputStream(frame, 2, 5));
+        assertFalse(decoder.hasFrame());
+        assertThrows(IllegalStateException.class, decoder::nextPacket);
+        decoder.fill(new ByteArrayInputStream(frame, 7, frame.length - 7));
+        assertEquals(5, ((PingPacket) decoder.nextPacket()).getPingID());
+    }
+
+    @Test
+    void growsBufferForFramesLargerThanInitialBuffer() throws Exception {
+        byte[] data = new byte[100_000];
+        for (int i = 0; i < data.length; i++) data[i] = (byte) i;
+        byte[] bytes = concat(encode(new PingPacket(1)), encode(new CommandResponsePacket(3, data)),
+                encode(new PingPacket(2)));
+        FrameDecoder decoder = new FrameDecoder(BufferPool.HEAP, FrameDecoder.DEFAULT_MAX_FRAME_SIZE);
+        InputStream in = new ChunkedInputStream(bytes, 1000);
+        assertEquals(1, ((PingPacket) decoder.read(in)).getPingID());
+        CommandResponsePacket response = (CommandResponsePacket) decoder.read(in);
+        assertEquals(3, response.getRequestID());
+        assertArrayEquals(data, response.getData());
+        assertEquals(2, ((PingPacket) decoder.read(in)).getPingID());
+    }
+
+    @Test
+    void growsBufferWithReceivedBytesInsteadOfAnnouncedLength() throws Exception {
+        ByteBuffer received = ByteBuffer.allocate(20000);
+        received.putInt(0, FrameDecoder.DEFAULT_MAX_FRAME_SIZE).put(4, (byte) 1);
+        int[] capacity = new int[1];
+        ReadableByteChannel channel = new ReadableByteChannel() {
+
+            @Override
+            public void close() {}
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public int read(ByteBuffer dst) {
+                capacity[0] = Math.max(capacity[0], dst.capacity());
+                int read = Math.min(Math.min(1000, received.remaining()), dst.remaining());
+                dst.put(received.slice(received.position(), read));
+                received.position(received.position() + read);
+                return read;
+            }
+        };
+        FrameDecoder decoder = new FrameDecoder(BufferPool.HEAP, FrameDecoder.DEFAULT_MAX_FRAME_SIZE);
+        for (int i = 0; i < 100; i++) decoder.fill(channel);
+        assertFalse(received.hasRemaining());
+        assertFalse(decoder.hasFrame());
+        assertTrue(capacity[0] <= 32768, "buffer capacity " + capacity[0]);
+    }
+
+    @Test
+    void rejectsCompressedFramesWithoutCodec() throws Exception {
+        byte[] frame = encode(new PingPacket(1));
+        ByteBuffer.wrap(frame).putInt(0, frame.length - 4 | CompressionCodec.COMPRESSED_FLAG);
+        FrameDecoder decoder = new FrameDecoder(BufferPool.HEAP, FrameDecoder.DEFAULT_MAX_FRAME_SIZE);
+        assertThrows(IOException.class, () -> decoder.read(new ByteArrayInputStream(frame)));
+    }
+
+    @Test
+    void decompressesFramesWithCodec() throws Exception {
+        byte[] data = new byte[4096];
+        Arrays.fill(data, (byte) 'x');
+        for (CompressionCodec codec : new CompressionCodec[] { CompressionCodec.DEFLATE, CompressionCodec.LZ4 }) {
+            ByteBuffer compressed = codec.compressFrame(new CommandResponsePacket(9, data).encode(BufferPool.HEAP),
+                    BufferPool.HEAP, 0);
+            assertTrue(compressed.getInt(compressed.position()) < 0);
+            byte[] frame = new byte[compressed.remaining()];
+            compressed.get(frame);
+
+            FrameDecoder decoder = new FrameDecoder(BufferPool.HEAP, FrameDecoder.DEFAULT_MAX_FRAME_SIZE);
+            decoder.setCompression(codec);
+            CommandResponsePacket response = (CommandResponsePacket) decoder.read(new TrickleInputStream(frame));
+            assertEquals(9, response.getRequestID());
+            assertArrayEquals(data, response.getData());
+        }
+    }
+
+    @Test
+    void rejectsFramesLargerThanMaximum() throws Exception {
+        byte[] frame = encode(new CommandResponsePacket(1, new byte[64]));
+        FrameDecoder decoder = new FrameDecoder(BufferPool.HEAP, 32);
+        assertThrows(IOException.class, () -> decoder.read(new ByteArrayInputStream(frame)));
+    }
+
+    @Test
+    void rejectsEmptyFrames() throws Exception {
+        FrameDecoder decoder = new FrameDecoder(BufferPool.HEAP, FrameDecoder.DEFAULT_MAX_FRAME_SIZE);
+        assertThrows(IOException.class, () -> decoder.read(new ByteArrayInputStream(new byte[4])));
+    }
+
+    @Test
+    void resolvesCommandCodesWithTable() throws Exception {
+        CommandTable table = new CommandTable(Arrays.asList("ping", "echo"));
+        byte[] frame = encode(new CommandPacket(0, "echo", new String[] { "x" }).compact(table));
+        FrameDecoder decoder = new FrameDecoder(BufferPool.HEAP, FrameDecoder.DEFAULT_MAX_FRAME_SIZE);
+        assertThrows(IOException.class, () -> decoder.read(new ByteArrayInputStream(frame)));
+
+        decoder.setCommandTable(table);
+        Packet packet = decoder.read(new ByteArrayInputStream(frame));
+        CommandPacket command = assertInstanceOf(CommandPacket.class, packet);
+        assertEquals("echo", command.getCommand());
+        assertEquals(1, command.getCommandCode());
+    }
+
+    private static byte[] concat(byte[]... frames) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] frame : frames) out.writeBytes(frame);
+        return out.toByteArray();
+    }
+
+    private static byte[] encode(Packet packet) throws IOException {
+        ByteBuffer frame = packet.encode(BufferPool.HEAP);
+        byte[] bytes = new byte[frame.remaining()];
+        frame.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Stream returning at most the given number of bytes from each read
+     */
+    private static class ChunkedInputStream extends ByteArrayInputStream {
+        private final int chunkSize;
+
+        private ChunkedInputStream(byte[] bytes, int chunkSize) {
+            super(bytes);
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            return super.read(b, off, Math.min(len, chunkSize));
+        }
+    }
+
+    /**
+     * Stream returning a single byte from each read
+     */
+    private static class TrickleInputStream extends ChunkedInputStream {
+
+        private TrickleInputStream(byte[] bytes) {
+            super(bytes, 1);
+        }
+    }
+}
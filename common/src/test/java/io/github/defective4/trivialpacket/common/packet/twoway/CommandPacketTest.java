@@ -0,0 +1,113 @@
+package io.github.defective4.trivialpacket.common.packet.twoway;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import io.github.defective4.trivialpacket.common.io.BufferPool;
+import io.github.defective4.trivialpacket.common.packet.CommandTable;
+import io.github.defective4.trivialpacket.common.packet.FrameDecoder;
+import io.github.defective4.trivialpacket.common.packet.Packet;
+
+class CommandPacketTest {
+
+    private static final CommandTable TABLE = new CommandTable(List.of("ping", "echo", "reload"));
+
+    @Test
+    void roundTripsRequestIDsAcrossVarIntBoundaries() throws Exception {
+        for (int requestID : new int[] { 0, 1, 127, 128, 16383, 16384, 2097151, 2097152, Integer.MAX_VALUE, -1 }) {
+            CommandPacket decoded = roundTrip(new CommandPacket(requestID, "echo", new String[0]), null);
+            assertEquals(requestID, decoded.getRequestID());
+            assertEquals("echo", decoded.getCommand());
+        }
+    }
+
+    @Test
+    void roundTripsArguments() throws Exception {
+        String[] arguments = { "", "a", "zażółć gęślą jaźń", "😀", "x".repeat(200) };
+        CommandPacket decoded = roundTrip(new CommandPacket(3, "echo", arguments), null);
+        assertArrayEquals(arguments, decoded.getArguments());
+    }
+
+    @Test
+    void roundTripsLongCommandNames() throws Exception {
+        String command = "c".repeat(300);
+        assertEquals(command, roundTrip(new CommandPacket(command, new String[0]), null).getCommand());
+    }
+
+    @Test
+    void sendsCommandsInTableByCode() throws Exception {
+        CommandPacket named = new CommandPacket(5, "reload", new String[] { "all" });
+        CommandPacket compact = named.compact(TABLE);
+        assertEquals(2, compact.getCommandCode());
+        assertTrue(encode(compact).length < encode(named).length);
+
+        CommandPacket decoded = roundTrip(compact, TABLE);
+        assertEquals(5, decoded.getRequestID());
+        assertEquals("reload", decoded.getCommand());
+        assertEquals(2, decoded.getCommandCode());
+        assertArrayEquals(new String[] { "all" }, decoded.getArguments());
+    }
+
+    @Test
+    void sendsCommandsMissingFromTableByName() throws Exception {
+        CommandPacket packet = new CommandPacket("unknown", new String[0]);
+        assertSame(packet, packet.compact(TABLE));
+        assertEquals(-1, packet.getCommandCode());
+        assertEquals("unknown", roundTrip(packet, TABLE).getCommand());
+    }
+
+    @Test
+    void rejectsCodesMissingFromTable() throws Exception {
+        CommandPacket compact = new CommandPacket("reload", new String[0]).compact(TABLE);
+        CommandPacket decoded = (CommandPacket) Packet.fromData(compact.getId(), data(compact));
+        assertThrows(IOException.class, () -> decoded.resolve(new CommandTable(List.of("a"))));
+    }
+
+    @Test
+    void keepsCodeUnresolvedWithoutTable() throws Exception {
+        CommandPacket compact = new CommandPacket("ping", new String[0]).compact(TABLE);
+        CommandPacket decoded = (CommandPacket) Packet.fromData(compact.getId(), data(compact));
+        assertNull(decoded.getCommand());
+        assertEquals(0, decoded.getCommandCode());
+        assertEquals("ping", decoded.resolve(TABLE).getCommand());
+    }
+
+    @Test
+    void rejectsInvalidArgumentCount() throws Exception {
+        CommandPacket packet = new CommandPacket("echo", new String[0]);
+        byte[] data = data(packet);
+        data[data.length - 1] = 100;
+        assertThrows(IllegalStateException.class, () -> Packet.fromData(packet.getId(), data));
+    }
+
+    private static byte[] data(Packet packet) throws IOException {
+        byte[] frame = encode(packet);
+        byte[] data = new byte[frame.length - 5];
+        System.arraycopy(frame, 5, data, 0, data.length);
+        return data;
+    }
+
+    private static byte[] encode(Packet packet) throws IOException {
+        ByteBuffer frame = packet.encode(BufferPool.HEAP);
+        byte[] bytes = new byte[frame.remaining()];
+        frame.get(bytes);
+        return bytes;
+    }
+
+    private static CommandPacket roundTrip(CommandPacket packet, CommandTable table) throws Exception {
+        FrameDecoder decoder = new FrameDecoder(BufferPool.HEAP, FrameDecoder.DEFAULT_MAX_FRAME_SIZE);
+        decoder.setCommandTable(table);
+        return (CommandPacket) decoder.read(new ByteArrayInputStream(encode(packet)));
+    }
+}
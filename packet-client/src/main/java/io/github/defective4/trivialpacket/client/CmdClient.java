@@ -1,26 +1,51 @@
 package io.github.defective4.trivialpacket.client;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.lang.reflect.InvocationTargetException;
+import java.io.InputStream;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
 import java.security.KeyManagementException;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
 
 import io.github.defective4.trivialpacket.client.event.ClientListener;
 import io.github.defective4.trivialpacket.client.packet.handler.ClientSidePacketHandler;
+import io.github.defective4.trivialpacket.common.concurrent.DispatchMode;
+import io.github.defective4.trivialpacket.common.concurrent.Dispatcher;
+import io.github.defective4.trivialpacket.common.concurrent.HashedWheelTimer;
+import io.github.defective4.trivialpacket.common.concurrent.PendingRequests;
+import io.github.defective4.trivialpacket.common.concurrent.VirtualThreads;
+import io.github.defective4.trivialpacket.common.io.BufferPool;
+import io.github.defective4.trivialpacket.common.io.ChunkedInputStream;
+import io.github.defective4.trivialpacket.common.io.ChunkedOutputStream;
+import io.github.defective4.trivialpacket.common.io.CompressionCodec;
+import io.github.defective4.trivialpacket.common.io.ConnectionOptions;
+import io.github.defective4.trivialpacket.common.io.OutboundQueue;
+import io.github.defective4.trivialpacket.common.io.OverflowPolicy;
+import io.github.defective4.trivialpacket.common.io.PendingStreams;
+import io.github.defective4.trivialpacket.common.metrics.Metrics;
+import io.github.defective4.trivialpacket.common.metrics.MetricsSink;
+import io.github.defective4.trivialpacket.common.packet.CommandTable;
+import io.github.defective4.trivialpacket.common.packet.FrameDecoder;
 import io.github.defective4.trivialpacket.common.packet.Packet;
 import io.github.defective4.trivialpacket.common.packet.client.AuthPacket;
 import io.github.defective4.trivialpacket.common.packet.server.AuthSuccessPacket;
@@ -57,20 +82,59 @@ import io.github.defective4.trivialpacket.common.token.TokenProvider;
  */
 public class CmdClient implements AutoCloseable {
 
+    private static final ExecutorService ASYNC_EXECUTOR = VirtualThreads.newThreadPerTaskExecutor();
+    private static final ThreadLocal<CurrentRequest> CURRENT_REQUEST = new ThreadLocal<>();
+    private static final long OVERFLOW_CLOSE_TIMEOUT = 5000;
+
+    /**
+     * Default interval between keep-alives, in milliseconds
+     */
+    public static final long DEFAULT_PING_INTERVAL = 15000;
+
     private final Certificate cert;
+    private volatile CommandTable commandTable;
+    private List<CompressionCodec> compression = Collections.emptyList();
+    private int compressionThreshold = CompressionCodec.DEFAULT_THRESHOLD;
     private boolean connected = false;
+    private ConnectionOptions connectionOptions = ConnectionOptions.DEFAULT;
+    private Dispatcher dispatcher;
+    private Executor dispatchExecutor = Dispatcher.DEFAULT_EXECUTOR;
+    private DispatchMode dispatchMode = DispatchMode.INLINE;
+    private int dispatchQueueCapacity = Dispatcher.DEFAULT_CAPACITY;
     private final ClientSidePacketHandler handler = new ClientSidePacketHandler(this);
 
+    private int highWatermark = OutboundQueue.DEFAULT_HIGH_WATERMARK;
     private final String host;
-    private DataInputStream is;
-    private long lastPingID = -1;
+    private InputStream is;
+    private volatile long lastPingID = -1;
+    private volatile long lastPingTime;
+    private long linger;
     private final List<ClientListener> listeners = new CopyOnWriteArrayList<>();
+    private int lowWatermark = OutboundQueue.DEFAULT_LOW_WATERMARK;
+    private int maxFrameSize = FrameDecoder.DEFAULT_MAX_FRAME_SIZE;
+    private MetricsSink metrics;
+    private volatile CompressionCodec negotiatedCompression = CompressionCodec.NONE;
 
-    private DataOutputStream os;
-    private final Timer pingTimer = new Timer(true);
+    private OutboundQueue out;
+    private final LongSupplier outboundQueueDepth = () -> {
+        OutboundQueue out = this.out;
+        return out == null ? 0 : out.getPendingBytes();
+    };
+    private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+    private long pingInterval = DEFAULT_PING_INTERVAL;
+    private volatile HashedWheelTimer.Timeout pingTimeout;
     private final int port;
-
+    private volatile Thread readThread;
+    private final PendingRequests<byte[]> requests = new PendingRequests<>();
+    private volatile long requestTimeout = PendingRequests.DEFAULT_TIMEOUT;
+    private int sessionCacheSize = -1;
+    private int sessionTimeout = -1;
     private final Socket socket;
+    private final SSLContext sslContext;
+    private int streamChunkSize = PendingStreams.DEFAULT_CHUNK_SIZE;
+    private int streamWindow = PendingStreams.DEFAULT_WINDOW;
+    private volatile PendingStreams streams;
+    private HashedWheelTimer timer = HashedWheelTimer.DEFAULT;
     private TokenProvider tokenProvider;
 
     /**
@@ -91,13 +155,15 @@ public class CmdClient implements AutoCloseable {
         this.port = port;
         tokenProvider = new FixedTokenProvider(token == null ? new char[0] : token);
         socket = new Socket();
+        sslContext = null;
     }
 
     /**
      * Constructs a client with SSL capabilities. <br>
      * The target server must have SSL enabled. <br>
      * Server's certificate must belong to the same chain as the one provided here,
-     * otherwise the client will refuse to connect.
+     * otherwise the client will refuse to connect. <br>
+     * The SSL context is shared with all clients using the same certificate.
      *
      * @param  host                 host to connect to
      * @param  port                 target port
@@ -117,7 +183,7 @@ public class CmdClient implements AutoCloseable {
         this.host = host;
         this.port = port;
         try {
-            socket = SSLManager.mkSSLContext(cert, null).getSocketFactory().createSocket();
+            sslContext = SSLManager.getSSLContext(cert, null);
         } catch (
                 UnrecoverableKeyException |
                 KeyManagementException |
@@ -126,7 +192,34 @@ public class CmdClient implements AutoCloseable {
                 CertificateException e) {
             throw new IOException(e);
         }
+        socket = createSocket(sslContext);
+    }
 
+    /**
+     * Constructs a client using an existing SSL context. <br>
+     * Clients sharing a context also share its session cache, so a client
+     * connecting to a server that another client was connected to before
+     * resumes the previous TLS session instead of performing a full handshake.
+     *
+     * @param  host                 host to connect to
+     * @param  port                 target port
+     * @param  token                authorization token. It has to be the same token
+     *                              as used on the target server. Can be
+     *                              <code>null</code>
+     * @param  sslContext           initialized SSL context
+     * @throws IOException          when there was an error creating the socket
+     * @throws NullPointerException if host or sslContext is null
+     * @see                         #setSessionCache(int, int)
+     */
+    public CmdClient(String host, int port, char[] token, SSLContext sslContext) throws IOException {
+        Objects.requireNonNull(host);
+        Objects.requireNonNull(sslContext);
+        tokenProvider = new FixedTokenProvider(token == null ? new char[0] : token);
+        cert = null;
+        this.host = host;
+        this.port = port;
+        this.sslContext = sslContext;
+        socket = createSocket(sslContext);
     }
 
     /**
@@ -143,9 +236,13 @@ public class CmdClient implements AutoCloseable {
 
     @Override
     public void close() throws IOException {
-        pingTimer.cancel();
-        pingTimer.purge();
+        HashedWheelTimer.Timeout pingTimeout = this.pingTimeout;
+        if (pingTimeout != null) pingTimeout.cancel();
         socket.close();
+        if (out != null) out.close();
+        requests.failAll(new IOException("Connection closed"));
+        PendingStreams streams = this.streams;
+        if (streams != null) streams.failAll(new IOException("Connection closed"));
     }
 
     /**
@@ -164,46 +261,79 @@ public class CmdClient implements AutoCloseable {
      */
     public void connect() throws Exception {
         if (connected) throw new IllegalStateException("Already connected");
-        socket.connect(new InetSocketAddress(host, port));
-        is = new DataInputStream(socket.getInputStream());
-        os = new DataOutputStream(socket.getOutputStream());
+        if (sslContext != null && sessionCacheSize >= 0)
+            SSLManager.setClientSessionCache(sslContext, sessionCacheSize, sessionTimeout);
+        connectionOptions.apply(socket);
+        socket.connect(new InetSocketAddress(host, port), connectionOptions.getConnectTimeout());
+        is = socket.getInputStream();
+        out = new OutboundQueue(socket.getOutputStream());
+        out.setLinger(linger);
+        out.setWatermarks(lowWatermark, highWatermark);
+        out.setOverflowPolicy(overflowPolicy);
+        out.setMetrics(metrics);
+        out.setListener(new OutboundQueue.Listener() {
+
+            @Override
+            public void overflowed() {
+                out.closeAfterFlush(new DisconnectPacket("Outbound buffer overflow"), OVERFLOW_CLOSE_TIMEOUT,
+                        CmdClient.this::closeQuietly);
+            }
+
+            @Override
+            public void writabilityChanged(boolean writable) {
+                for (ClientListener ls : listeners) try {
+                    ls.writabilityChanged(writable);
+                } catch (Exception e) {}
+            }
+        });
+        dispatcher = new Dispatcher(dispatchMode, dispatchExecutor, dispatchQueueCapacity, e -> closeQuietly(),
+                metrics);
+        streams = createStreams();
+        readThread = Thread.currentThread();
         connected = true;
-        sendPacket(new AuthPacket(tokenProvider.provide()));
-        Packet authResponse = Packet.readFromStream(is);
-        if (authResponse instanceof DisconnectPacket disconnectPacket) {
-            throw new IOException("Server rejected the connection: " + disconnectPacket.getReason());
+        if (metrics != null) {
+            metrics.connectionOpened();
+            metrics.outboundQueueDepth(outboundQueueDepth);
         }
-        if (!(authResponse instanceof AuthSuccessPacket)) {
-            throw new IOException("Received invalid packet during authentication: " + authResponse);
+        try (FrameDecoder decoder = new FrameDecoder(BufferPool.HEAP, maxFrameSize)) {
+            decoder.setMetrics(metrics);
+            if (socket instanceof SSLSocket sslSocket) {
+                long start = System.nanoTime();
+                sslSocket.startHandshake();
+                if (metrics != null) metrics.tlsHandshakeCompleted(System.nanoTime() - start);
+            }
+            sendPacket(new AuthPacket(tokenProvider.provide(), compression));
+            readPackets(decoder);
+        } finally {
+            requests.failAll(new IOException("Connection closed"));
+            streams.failAll(new IOException("Connection closed"));
+            if (metrics != null) {
+                metrics.outboundQueueDepthRemoved(outboundQueueDepth);
+                metrics.connectionClosed();
+            }
         }
-        for (ClientListener ls : listeners) ls.authorized();
-        if (!socket.isClosed()) pingTimer.scheduleAtFixedRate(new TimerTask() {
+    }
 
-            @Override
-            public void run() {
-                try {
-                    if (lastPingID != -1) {
-                        disconnect("Timed out");
-                        cancel();
-                    }
-                    lastPingID = System.currentTimeMillis();
-                    sendPacket(new PingPacket(lastPingID));
-                    for (ClientListener ls : listeners) ls.serverPinged(lastPingID);
-                } catch (Exception e) {
-                    cancel();
-                    try {
-                        close();
-                    } catch (IOException e1) {}
-                }
-            }
-        }, 0, 15000);
-        while (!socket.isClosed()) {
+    /**
+     * Connects this client in the background. <br>
+     * This works exactly like {@link #connect()}, except the connection is served
+     * by a virtual thread (or a daemon platform thread if virtual threads are not
+     * supported by the runtime), instead of blocking the calling thread. <br>
+     * This allows running a large number of clients within a single JVM.
+     *
+     * @return future completed when the connection ends. It's completed
+     *         exceptionally with the exception that would be thrown by
+     *         {@link #connect()}
+     * @see    VirtualThreads
+     */
+    public CompletableFuture<Void> connectAsync() {
+        return CompletableFuture.runAsync(() -> {
             try {
-                handler.handle(Packet.readFromStream(is));
-            } catch (InvocationTargetException e) {
-                throw e.getCause() == null ? e : new Exception(e.getCause());
+                connect();
+            } catch (Exception e) {
+                throw new CompletionException(e);
             }
-        }
+        }, ASYNC_EXECUTOR);
     }
 
     /**
@@ -226,6 +356,60 @@ public class CmdClient implements AutoCloseable {
         }
     }
 
+    /**
+     * Writes all pending packets to the server. <br>
+     * This is only needed if the linger time is set, as packets are otherwise
+     * flushed as soon as they are sent.
+     *
+     * @throws IOException           if there was an error writing the packets
+     * @throws IllegalStateException if the client is not connected
+     * @see                          #setLinger(long)
+     */
+    public void flush() throws IOException {
+        if (!connected) throw new IllegalStateException("Not connected");
+        out.flush();
+    }
+
+    /**
+     * Get command table announced by the server. <br>
+     * Commands from the table are sent by their code instead of their name.
+     *
+     * @return command table, or <code>null</code> if the server has none or the
+     *         client is not authorized yet
+     */
+    public CommandTable getCommandTable() {
+        return commandTable;
+    }
+
+    /**
+     * Get compression codecs offered to the server
+     *
+     * @return unmodifiable list of offered codecs, in order of preference
+     * @see    #setCompression(CompressionCodec...)
+     */
+    public List<CompressionCodec> getCompression() {
+        return compression;
+    }
+
+    /**
+     * Get minimum data length of compressed packets
+     *
+     * @return compression threshold in bytes
+     */
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    /**
+     * Get TCP options of the client socket
+     *
+     * @return connection options
+     * @see    #setConnectionOptions(ConnectionOptions)
+     */
+    public ConnectionOptions getConnectionOptions() {
+        return connectionOptions;
+    }
+
     /**
      * Get last pending keep-alive ID, used internally. <br>
      *
@@ -236,6 +420,217 @@ public class CmdClient implements AutoCloseable {
         return lastPingID;
     }
 
+    /**
+     * Get time the last keep-alive was sent at, used internally.
+     *
+     * @return value of {@link System#nanoTime()} when the last keep-alive was
+     *         sent
+     */
+    public long getLastPingTime() {
+        return lastPingTime;
+    }
+
+    /**
+     * Get compression codec chosen by the server. <br>
+     * It's {@link CompressionCodec#NONE} until the client is authorized, or if
+     * the server doesn't accept any of the offered codecs.
+     *
+     * @return compression codec
+     */
+    public CompressionCodec getNegotiatedCompression() {
+        return negotiatedCompression;
+    }
+
+    /**
+     * Get ID of the request handled by the calling thread. <br>
+     * When called from {@link ClientListener#commandReceived(String, String[])},
+     * it returns the ID that has to be passed to {@link #respond(int, byte[])} to
+     * respond to the command later, or from another thread.
+     *
+     * @return request ID, or <code>0</code> if the calling thread is not handling
+     *         a request from the server
+     */
+    public int getCurrentRequestID() {
+        CurrentRequest request = CURRENT_REQUEST.get();
+        return request != null && request.client == this ? request.id : 0;
+    }
+
+    /**
+     * Get executor calling listeners
+     *
+     * @return dispatch executor
+     * @see    #setDispatchExecutor(Executor)
+     */
+    public Executor getDispatchExecutor() {
+        return dispatchExecutor;
+    }
+
+    /**
+     * Get current dispatch mode
+     *
+     * @return dispatch mode
+     * @see    #setDispatchMode(DispatchMode)
+     */
+    public DispatchMode getDispatchMode() {
+        return dispatchMode;
+    }
+
+    /**
+     * Get maximum number of received packets waiting to be handled
+     *
+     * @return dispatch queue capacity
+     * @see    #setDispatchQueueCapacity(int)
+     */
+    public int getDispatchQueueCapacity() {
+        return dispatchQueueCapacity;
+    }
+
+    /**
+     * Get number of received packets waiting to be handled, or being handled by
+     * listeners. <br>
+     * Always <code>0</code> in {@link DispatchMode#INLINE} mode, or if the client
+     * is not connected.
+     *
+     * @return current dispatch queue depth
+     */
+    public int getDispatchQueueDepth() {
+        Dispatcher dispatcher = this.dispatcher;
+        return dispatcher == null ? 0 : dispatcher.getQueueDepth();
+    }
+
+    /**
+     * Get current high watermark of the outbound buffer
+     *
+     * @return number of pending bytes above which the client becomes not writable
+     * @see    #setWatermarks(int, int)
+     */
+    public int getHighWatermark() {
+        return highWatermark;
+    }
+
+    /**
+     * Get current linger time
+     *
+     * @return linger time in milliseconds
+     * @see    #setLinger(long)
+     */
+    public long getLinger() {
+        return linger;
+    }
+
+    /**
+     * Get current low watermark of the outbound buffer
+     *
+     * @return number of pending bytes below which the client becomes writable
+     *         again
+     * @see    #setWatermarks(int, int)
+     */
+    public int getLowWatermark() {
+        return lowWatermark;
+    }
+
+    /**
+     * Get maximum accepted frame length
+     *
+     * @return maximum frame length in bytes
+     */
+    public int getMaxFrameSize() {
+        return maxFrameSize;
+    }
+
+    /**
+     * Get sink receiving measurements of this client
+     *
+     * @return metrics sink, or <code>null</code> if there is none
+     * @see    #setMetrics(MetricsSink)
+     */
+    public MetricsSink getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Get current overflow policy
+     *
+     * @return overflow policy
+     * @see    #setOverflowPolicy(OverflowPolicy)
+     */
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * Get highest number of received packets that were waiting to be handled at
+     * once
+     *
+     * @return peak dispatch queue depth
+     * @see    #getDispatchQueueDepth()
+     */
+    public int getPeakDispatchQueueDepth() {
+        Dispatcher dispatcher = this.dispatcher;
+        return dispatcher == null ? 0 : dispatcher.getPeakQueueDepth();
+    }
+
+    /**
+     * Get interval between keep-alives
+     *
+     * @return keep-alive interval in milliseconds
+     * @see    #setPingInterval(long)
+     */
+    public long getPingInterval() {
+        return pingInterval;
+    }
+
+    /**
+     * Get number of requests waiting for a response from the server
+     *
+     * @return number of pending requests
+     */
+    public int getPendingRequests() {
+        return requests.size();
+    }
+
+    /**
+     * Get number of streamed responses being sent to or received from the server
+     *
+     * @return number of open streams
+     */
+    public int getOpenStreams() {
+        PendingStreams streams = this.streams;
+        return streams == null ? 0 : streams.size();
+    }
+
+    /**
+     * Get current request timeout
+     *
+     * @return request timeout in milliseconds
+     * @see    #setRequestTimeout(long)
+     */
+    public long getRequestTimeout() {
+        return requestTimeout;
+    }
+
+    /**
+     * Get maximum number of TLS sessions cached for resumption
+     *
+     * @return cache size, <code>0</code> if there is no limit, or
+     *         <code>-1</code> if the SSL context's setting is used
+     * @see    #setSessionCache(int, int)
+     */
+    public int getSessionCacheSize() {
+        return sessionCacheSize;
+    }
+
+    /**
+     * Get time TLS sessions can be resumed for
+     *
+     * @return timeout in seconds, <code>0</code> if there is no limit, or
+     *         <code>-1</code> if the SSL context's setting is used
+     * @see    #setSessionCache(int, int)
+     */
+    public int getSessionTimeout() {
+        return sessionTimeout;
+    }
+
     /**
      * Get this client's listeners.
      *
@@ -245,6 +640,16 @@ public class CmdClient implements AutoCloseable {
         return Collections.unmodifiableList(listeners);
     }
 
+    /**
+     * Get timer driving keep-alives of this client
+     *
+     * @return timer
+     * @see    #setTimer(HashedWheelTimer)
+     */
+    public HashedWheelTimer getTimer() {
+        return timer;
+    }
+
     /**
      * Get current token provider's class. <br>
      * For security reasons it's not supported to retrieve current token provider.
@@ -257,6 +662,28 @@ public class CmdClient implements AutoCloseable {
         return tokenProvider.getClass();
     }
 
+    /**
+     * Get maximum data length of chunks of streamed responses sent by this
+     * client
+     *
+     * @return chunk size in bytes
+     * @see    #respondStream(int)
+     */
+    public int getStreamChunkSize() {
+        return streamChunkSize;
+    }
+
+    /**
+     * Get number of chunks the server may send ahead when this client reads
+     * streamed responses
+     *
+     * @return window in chunks
+     * @see    #requestStream(String, String...)
+     */
+    public int getStreamWindow() {
+        return streamWindow;
+    }
+
     /**
      * Check if the underlying socket is closed.<br>
      * This delegates to {@link Socket#isClosed()}
@@ -278,11 +705,28 @@ public class CmdClient implements AutoCloseable {
         return connected;
     }
 
+    /**
+     * Checks if packets can be sent to the server without triggering the
+     * overflow policy. <br>
+     * The client becomes not writable when the server doesn't read data as fast
+     * as it's sent, and the outbound buffer grows above the high watermark. It
+     * becomes writable again when the buffer drains below the low watermark. Both
+     * changes are reported with {@link ClientListener#writabilityChanged(boolean)}.
+     *
+     * @return <code>true</code> if the client is connected and writable
+     */
+    public boolean isWritable() {
+        OutboundQueue out = this.out;
+        return out != null && out.isWritable();
+    }
+
     /**
      * Respond to a command send by the server. <br>
      * By definition you should only use this to respond to the server's command,
      * but in reality you can send this data at any point during connection and the
-     * default CmdServer implementation will handle it just fine.
+     * default CmdServer implementation will handle it just fine. <br>
+     * If called while handling a command sent as a request, the response is
+     * tagged with the request's ID.
      *
      * @param  data                  data to send to the server
      * @throws IOException           if there was an error sending data packet to
@@ -290,7 +734,190 @@ public class CmdClient implements AutoCloseable {
      * @throws IllegalStateException if the client is not connected
      */
     public void respond(byte[] data) throws IOException {
-        sendPacket(new CommandResponsePacket(data));
+        respond(getCurrentRequestID(), data);
+    }
+
+    /**
+     * Respond to a specific request sent by the server. <br>
+     * This can be called at any time after the command was received, from any
+     * thread.
+     *
+     * @param  requestID             ID of the request, obtained with
+     *                               {@link #getCurrentRequestID()}
+     * @param  data                  data to send to the server
+     * @throws IOException           if there was an error sending data packet to
+     *                               the server
+     * @throws IllegalStateException if the client is not connected
+     */
+    public void respond(int requestID, byte[] data) throws IOException {
+        sendPacket(new CommandResponsePacket(requestID, data));
+    }
+
+    /**
+     * Send a command to the server and write its response to a file. <br>
+     * The response is received like with {@link #requestStream(String, String...)},
+     * but every chunk is written to the file as soon as it arrives, on the thread
+     * running {@link #connect()}. Received chunks are copied once out of the
+     * connection's read buffer, and are not kept after being written to the
+     * file. The calling thread waits until the whole response is received, so it
+     * can't be the thread running {@link #connect()}. <br>
+     * The file is truncated to <code>offset</code> bytes before the response is
+     * written after them. To resume an interrupted transfer, pass the current
+     * size of the file, and tell the server where to continue in the command
+     * arguments. <br>
+     * The transfer fails if no data arrives for {@link #getRequestTimeout()}
+     * milliseconds.
+     *
+     * @param  target                   file to write to
+     * @param  offset                   position in the file to write the response
+     *                                  at
+     * @param  command                  command name
+     * @param  arguments                command arguments
+     * @return                          number of received bytes
+     * @throws IOException              if the file couldn't be written, or the
+     *                                  transfer failed or timed out
+     * @throws NullPointerException     if target, command or any of the arguments
+     *                                  is null
+     * @throws IllegalArgumentException if offset is less than 0
+     * @throws IllegalStateException    if the client is not connected
+     */
+    public long receiveFile(Path target, long offset, String command, String... arguments) throws IOException {
+        Objects.requireNonNull(command);
+        Objects.requireNonNull(arguments);
+        for (String arg : arguments) Objects.requireNonNull(arg);
+        if (!connected) throw new IllegalStateException("Not connected");
+        return streams.receiveFile(id -> new CommandPacket(id, command, arguments), target, offset, requestTimeout);
+    }
+
+    /**
+     * Respond to the command handled by the calling thread with a stream. <br>
+     * Works like {@link #respondStream(int)} with the ID returned by
+     * {@link #getCurrentRequestID()}.
+     *
+     * @return                          stream to write the response to
+     * @throws IllegalArgumentException if the calling thread is not handling a
+     *                                  request from the server
+     * @throws IllegalStateException    if the client is not connected
+     * @see                             #respondStream(int)
+     */
+    public ChunkedOutputStream respondStream() {
+        return respondStream(getCurrentRequestID());
+    }
+
+    /**
+     * Respond to a specific request sent by the server with a stream. <br>
+     * Data written to the stream is sent in chunks of at most
+     * {@link #getStreamChunkSize()} bytes, as fast as the server reads them, so
+     * responses of any size can be sent with constant memory. The response is
+     * complete once the stream is closed. <br>
+     * Writes wait for the server, so they can't be made on the thread running
+     * {@link #connect()}, which is the thread calling listeners in
+     * {@link DispatchMode#INLINE} mode. Write from another thread, or use a
+     * different dispatch mode.
+     *
+     * @param  requestID                ID of the request, obtained with
+     *                                  {@link #getCurrentRequestID()}
+     * @return                          stream to write the response to
+     * @throws IllegalArgumentException if requestID is <code>0</code>
+     * @throws IllegalStateException    if the client is not connected, or a
+     *                                  response to this request is already being
+     *                                  streamed
+     */
+    public ChunkedOutputStream respondStream(int requestID) {
+        if (!connected) throw new IllegalStateException("Not connected");
+        return streams.respond(requestID);
+    }
+
+    /**
+     * Send a command to the server and wait for its response asynchronously. <br>
+     * Any number of requests can be in flight at once. Responses are matched to
+     * requests by ID, so they don't have to arrive in order, and the next request
+     * doesn't have to wait for the previous response. <br>
+     * Responses to requests are not passed to
+     * {@link ClientListener#responseReceived(byte[])}. <br>
+     * The request times out after {@link #getRequestTimeout()} milliseconds.
+     *
+     * @param  command               command name
+     * @param  arguments             command arguments
+     * @return                       future completed with the response data. It's
+     *                               completed exceptionally with a
+     *                               {@link java.util.concurrent.TimeoutException}
+     *                               if the request times out, or an
+     *                               {@link IOException} if the request couldn't
+     *                               be sent or the connection was closed
+     * @throws NullPointerException  if command or any of the arguments is null
+     * @throws IllegalStateException if the client is not connected
+     */
+    public CompletableFuture<byte[]> request(String command, String... arguments) {
+        return request(requestTimeout, command, arguments);
+    }
+
+    /**
+     * Send a command to the server and wait for its response asynchronously,
+     * using a custom timeout.
+     *
+     * @param  timeout                  request timeout in milliseconds.
+     *                                  <code>0</code> means no timeout
+     * @param  command                  command name
+     * @param  arguments                command arguments
+     * @return                          future completed with the response data
+     * @throws NullPointerException     if command or any of the arguments is null
+     * @throws IllegalStateException    if the client is not connected
+     * @throws IllegalArgumentException if timeout is less than 0
+     * @see                             #request(String, String...)
+     */
+    public CompletableFuture<byte[]> request(long timeout, String command, String... arguments) {
+        Objects.requireNonNull(command);
+        Objects.requireNonNull(arguments);
+        for (String arg : arguments) Objects.requireNonNull(arg);
+        if (timeout < 0) throw new IllegalArgumentException("timeout can't be less than 0");
+        if (!connected) throw new IllegalStateException("Not connected");
+        CompletableFuture<byte[]> future = new CompletableFuture<>();
+        int id = requests.register(future, timeout);
+        try {
+            sendPacket(new CommandPacket(id, command, arguments));
+        } catch (IOException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Send a command to the server and read its response as a stream. <br>
+     * The response is received in chunks, and the server is only allowed to send
+     * {@link #getStreamWindow()} chunks ahead of the reader, so responses of any
+     * size are received with constant memory. The server can also respond with a
+     * regular response, which is then read from the stream at once. <br>
+     * Reads fail if no data arrives for {@link #getRequestTimeout()}
+     * milliseconds. Reads can't be made on the thread running {@link #connect()}.
+     *
+     * @param  command               command name
+     * @param  arguments             command arguments
+     * @return                       stream of the response
+     * @throws IOException           if the request couldn't be sent
+     * @throws NullPointerException  if command or any of the arguments is null
+     * @throws IllegalStateException if the client is not connected
+     */
+    public ChunkedInputStream requestStream(String command, String... arguments) throws IOException {
+        Objects.requireNonNull(command);
+        Objects.requireNonNull(arguments);
+        for (String arg : arguments) Objects.requireNonNull(arg);
+        if (!connected) throw new IllegalStateException("Not connected");
+        return streams.request(id -> new CommandPacket(id, command, arguments), requestTimeout);
+    }
+
+    /**
+     * Send multiple packets to the server at once. <br>
+     * All packets are written with as few writes as possible.
+     *
+     * @param  packets               packets to send
+     * @throws IOException           if there was an error sending the packets
+     * @throws NullPointerException  if packets or any of the packets is null
+     * @throws IllegalStateException if the client is not connected
+     */
+    public void sendBatch(Collection<? extends Packet> packets) throws IOException {
+        if (!connected) throw new IllegalStateException("Not connected");
+        out.sendBatch(packets);
     }
 
     /**
@@ -311,7 +938,56 @@ public class CmdClient implements AutoCloseable {
     }
 
     /**
-     * Send a raw packet to the server.
+     * Respond to the command handled by the calling thread with a file. <br>
+     * Works like {@link #sendFile(int, Path, long)} with the ID returned by
+     * {@link #getCurrentRequestID()}, sending the whole file.
+     *
+     * @param  file                     file to send
+     * @return                          number of sent bytes
+     * @throws IOException              if there was an error reading or sending
+     *                                  the file
+     * @throws IllegalArgumentException if the calling thread is not handling a
+     *                                  request from the server
+     * @throws IllegalStateException    if the client is not connected
+     * @see                             #sendFile(int, Path, long)
+     */
+    public long sendFile(Path file) throws IOException {
+        return sendFile(getCurrentRequestID(), file, 0);
+    }
+
+    /**
+     * Respond to a specific request sent by the server with a file, starting at
+     * an offset. <br>
+     * The file is streamed like with {@link #respondStream(int)}, but chunks are
+     * written to the connection directly from memory-mapped regions of the file,
+     * without copying them to the heap. The method returns once the whole file
+     * is sent, and can't be called on the thread running {@link #connect()}. If
+     * the file can't be read, the response is aborted.
+     *
+     * @param  requestID                ID of the request, obtained with
+     *                                  {@link #getCurrentRequestID()}
+     * @param  file                     file to send
+     * @param  offset                   position in the file to start at
+     * @return                          number of sent bytes
+     * @throws IOException              if there was an error reading or sending
+     *                                  the file
+     * @throws NullPointerException     if file is null
+     * @throws IllegalArgumentException if requestID is <code>0</code>, or offset
+     *                                  is less than 0
+     * @throws IllegalStateException    if the client is not connected, or a
+     *                                  response to this request is already being
+     *                                  streamed
+     */
+    public long sendFile(int requestID, Path file, long offset) throws IOException {
+        if (!connected) throw new IllegalStateException("Not connected");
+        return streams.sendFile(requestID, file, offset);
+    }
+
+    /**
+     * Send a raw packet to the server. <br>
+     * This method can be safely called from multiple threads at once. Packets
+     * are never interleaved, and packets sent by a single thread are delivered in
+     * order.
      *
      * @param  packet                packet to send
      * @throws IOException           if there was an error sending data packet to
@@ -322,7 +998,7 @@ public class CmdClient implements AutoCloseable {
     public void sendPacket(Packet packet) throws IOException {
         Objects.requireNonNull(packet);
         if (!connected) throw new IllegalStateException("Not connected");
-        packet.writeToStream(os);
+        out.send(packet);
     }
 
     /**
@@ -334,6 +1010,292 @@ public class CmdClient implements AutoCloseable {
         this.lastPingID = lastPingID;
     }
 
+    /**
+     * Set compression codecs offered to the server, in order of preference. <br>
+     * The server picks the first codec it also accepts, and both sides compress
+     * large packets with it once the client is authorized. <br>
+     * By default no codecs are offered. <br>
+     * This can only be used before calling {@link #connect()}
+     *
+     * @param  compression              offered codecs
+     * @throws IllegalStateException    if the client is already connected
+     * @throws NullPointerException     if compression or any of the codecs is null
+     * @throws IllegalArgumentException if there are more than 255 codecs
+     * @see                             #setCompressionThreshold(int)
+     */
+    public void setCompression(CompressionCodec... compression) {
+        if (connected) throw new IllegalStateException("Already connected");
+        if (compression.length > 255) throw new IllegalArgumentException("Too many compression codecs");
+        this.compression = List.of(compression);
+    }
+
+    /**
+     * Set minimum data length of compressed packets. <br>
+     * Smaller packets are sent uncompressed, as compressing them costs more than
+     * it saves. <br>
+     * Default value is {@link CompressionCodec#DEFAULT_THRESHOLD}. <br>
+     * This can only be used before calling {@link #connect()}
+     *
+     * @param  compressionThreshold
+     * @throws IllegalStateException    if the client is already connected
+     * @throws IllegalArgumentException if compressionThreshold is less than 0
+     */
+    public void setCompressionThreshold(int compressionThreshold) {
+        if (connected) throw new IllegalStateException("Already connected");
+        if (compressionThreshold < 0)
+            throw new IllegalArgumentException("compressionThreshold can't be less than 0");
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    /**
+     * Set TCP options of the client socket, like <code>TCP_NODELAY</code>,
+     * buffer sizes and the connect timeout. <br>
+     * Default value is {@link ConnectionOptions#DEFAULT}. <br>
+     * This can only be used before calling {@link #connect()}
+     *
+     * @param  connectionOptions
+     * @throws IllegalStateException if the client is already connected
+     * @throws NullPointerException  if connectionOptions is null
+     */
+    public void setConnectionOptions(ConnectionOptions connectionOptions) {
+        Objects.requireNonNull(connectionOptions);
+        if (connected) throw new IllegalStateException("Already connected");
+        this.connectionOptions = connectionOptions;
+    }
+
+    /**
+     * Set executor calling listeners in {@link DispatchMode#EXECUTOR} and
+     * {@link DispatchMode#ORDERED} modes. <br>
+     * Default value is {@link Dispatcher#DEFAULT_EXECUTOR}, running every task
+     * on a new virtual thread. <br>
+     * This can only be used before calling {@link #connect()}
+     *
+     * @param  dispatchExecutor
+     * @throws IllegalStateException if the client is already connected
+     * @throws NullPointerException  if dispatchExecutor is null
+     */
+    public void setDispatchExecutor(Executor dispatchExecutor) {
+        if (connected) throw new IllegalStateException("Already connected");
+        Objects.requireNonNull(dispatchExecutor);
+        this.dispatchExecutor = dispatchExecutor;
+    }
+
+    /**
+     * Set how received packets are passed to listeners. <br>
+     * Default value is {@link DispatchMode#INLINE}, meaning listeners are called
+     * on the thread running {@link #connect()}. In other modes listeners are
+     * called on the dispatch executor, so a slow listener doesn't stop the client
+     * from reading. <br>
+     * Pings and responses to requests sent with
+     * {@link #request(String, String...)} are always handled on the reading
+     * thread. <br>
+     * This can only be used before calling {@link #connect()}
+     *
+     * @param  dispatchMode
+     * @throws IllegalStateException if the client is already connected
+     * @throws NullPointerException  if dispatchMode is null
+     * @see                          #setDispatchExecutor(Executor)
+     */
+    public void setDispatchMode(DispatchMode dispatchMode) {
+        if (connected) throw new IllegalStateException("Already connected");
+        Objects.requireNonNull(dispatchMode);
+        this.dispatchMode = dispatchMode;
+    }
+
+    /**
+     * Set maximum number of received packets waiting to be handled. <br>
+     * When the queue is full, the client stops reading until listeners catch up.
+     * <br>
+     * Default value is {@link Dispatcher#DEFAULT_CAPACITY}. <br>
+     * This can only be used before calling {@link #connect()}
+     *
+     * @param  dispatchQueueCapacity
+     * @throws IllegalStateException    if the client is already connected
+     * @throws IllegalArgumentException if dispatchQueueCapacity is less than 1
+     */
+    public void setDispatchQueueCapacity(int dispatchQueueCapacity) {
+        if (connected) throw new IllegalStateException("Already connected");
+        if (dispatchQueueCapacity < 1)
+            throw new IllegalArgumentException("dispatchQueueCapacity can't be less than 1");
+        this.dispatchQueueCapacity = dispatchQueueCapacity;
+    }
+
+    /**
+     * Set the linger time. <br>
+     * Sent packets are held for at most this long, so they can be written to the
+     * network together with packets sent shortly after them. <br>
+     * Default value is <code>0</code>, meaning every packet is written
+     * immediately.
+     *
+     * @param  linger                   linger time in milliseconds
+     * @throws IllegalArgumentException if linger is less than 0
+     * @see                             OutboundQueue#setLinger(long)
+     */
+    public void setLinger(long linger) {
+        if (linger < 0) throw new IllegalArgumentException("linger can't be less than 0");
+        this.linger = linger;
+        if (out != null) out.setLinger(linger);
+    }
+
+    /**
+     * Set maximum length of frames received from the server. <br>
+     * If the server sends a frame declaring a larger length, the connection is
+     * closed before any memory is allocated for it. <br>
+     * Default value is {@link FrameDecoder#DEFAULT_MAX_FRAME_SIZE}. <br>
+     * This can only be used before calling {@link #connect()}
+     *
+     * @param  maxFrameSize             maximum frame length in bytes, including the
+     *                                  packet ID
+     * @throws IllegalStateException    if the client is already connected
+     * @throws IllegalArgumentException if maxFrameSize is less than 1
+     */
+    public void setMaxFrameSize(int maxFrameSize) {
+        if (connected) throw new IllegalStateException("Already connected");
+        if (maxFrameSize < 1) throw new IllegalArgumentException("maxFrameSize can't be less than 1");
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    /**
+     * Set sink receiving measurements of this client, such as packets and bytes
+     * sent and received, decoding and dispatch times, and keep-alive round-trip
+     * times. <br>
+     * Use {@link Metrics} to collect them and expose them through JMX. <br>
+     * By default there is no sink, and nothing is measured. <br>
+     * This can only be used before calling {@link #connect()}
+     *
+     * @param  metrics               metrics sink, or <code>null</code> to remove it
+     * @throws IllegalStateException if the client is already connected
+     */
+    public void setMetrics(MetricsSink metrics) {
+        if (connected) throw new IllegalStateException("Already connected");
+        this.metrics = metrics;
+    }
+
+    /**
+     * Set what happens to packets sent while the client is not writable. <br>
+     * Default value is {@link OverflowPolicy#BLOCK}, meaning the sending thread
+     * waits for the server.
+     *
+     * @param  overflowPolicy
+     * @throws NullPointerException if overflowPolicy is null
+     * @see                         #isWritable()
+     */
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        Objects.requireNonNull(overflowPolicy);
+        this.overflowPolicy = overflowPolicy;
+        if (out != null) out.setOverflowPolicy(overflowPolicy);
+    }
+
+    /**
+     * Set interval between keep-alives. <br>
+     * The client disconnects if the server doesn't respond to a keep-alive
+     * before the next one is due. <br>
+     * Default value is {@link #DEFAULT_PING_INTERVAL}. <br>
+     * This can only be used before calling {@link #connect()}
+     *
+     * @param  pingInterval             keep-alive interval in milliseconds
+     * @throws IllegalStateException    if the client is already connected
+     * @throws IllegalArgumentException if pingInterval is less than 1
+     */
+    public void setPingInterval(long pingInterval) {
+        if (connected) throw new IllegalStateException("Already connected");
+        if (pingInterval < 1) throw new IllegalArgumentException("pingInterval can't be less than 1");
+        this.pingInterval = pingInterval;
+    }
+
+    /**
+     * Set default timeout of requests sent with
+     * {@link #request(String, String...)}. <br>
+     * Default value is {@link PendingRequests#DEFAULT_TIMEOUT}.
+     *
+     * @param  requestTimeout           request timeout in milliseconds.
+     *                                  <code>0</code> means no timeout
+     * @throws IllegalArgumentException if requestTimeout is less than 0
+     */
+    public void setRequestTimeout(long requestTimeout) {
+        if (requestTimeout < 0) throw new IllegalArgumentException("requestTimeout can't be less than 0");
+        this.requestTimeout = requestTimeout;
+    }
+
+    /**
+     * Set size and timeout of the cache of TLS sessions this client can resume.
+     * <br>
+     * The settings are applied to the client side of the SSL context on
+     * {@link #connect()}. Clients created with the same certificate share a
+     * context, and so a single cache, whose settings are the ones applied last.
+     * Use {@link #CmdClient(String, int, char[], SSLContext)} with a context from
+     * {@link SSLManager#mkSSLContext(Certificate, java.security.PrivateKey)} for
+     * a separate cache. <br>
+     * By default, the context's settings are kept. Has no effect on clients
+     * without SSL. <br>
+     * This can only be used before calling {@link #connect()}
+     *
+     * @param  cacheSize                maximum number of cached sessions.
+     *                                  <code>0</code> means no limit
+     * @param  timeout                  time a session can be resumed for, in
+     *                                  seconds. <code>0</code> means no limit
+     * @throws IllegalStateException    if the client is already connected
+     * @throws IllegalArgumentException if cacheSize or timeout is less than 0
+     */
+    public void setSessionCache(int cacheSize, int timeout) {
+        if (connected) throw new IllegalStateException("Already connected");
+        if (cacheSize < 0) throw new IllegalArgumentException("cacheSize can't be less than 0");
+        if (timeout < 0) throw new IllegalArgumentException("timeout can't be less than 0");
+        sessionCacheSize = cacheSize;
+        sessionTimeout = timeout;
+    }
+
+    /**
+     * Set maximum data length of chunks of streamed responses sent by this
+     * client. <br>
+     * Default value is {@link PendingStreams#DEFAULT_CHUNK_SIZE}. It must fit in
+     * the maximum frame size of the server. <br>
+     * This can only be used before calling {@link #connect()}
+     *
+     * @param  streamChunkSize          chunk size in bytes
+     * @throws IllegalStateException    if the client is already connected
+     * @throws IllegalArgumentException if streamChunkSize is less than 1
+     */
+    public void setStreamChunkSize(int streamChunkSize) {
+        if (connected) throw new IllegalStateException("Already connected");
+        if (streamChunkSize < 1) throw new IllegalArgumentException("streamChunkSize can't be less than 1");
+        this.streamChunkSize = streamChunkSize;
+    }
+
+    /**
+     * Set number of chunks the server may send ahead when this client reads
+     * streamed responses. <br>
+     * Memory used by a single received stream is bounded by this value times the
+     * chunk size of the server. <br>
+     * Default value is {@link PendingStreams#DEFAULT_WINDOW}. <br>
+     * This can only be used before calling {@link #connect()}
+     *
+     * @param  streamWindow             window in chunks
+     * @throws IllegalStateException    if the client is already connected
+     * @throws IllegalArgumentException if streamWindow is less than 1
+     */
+    public void setStreamWindow(int streamWindow) {
+        if (connected) throw new IllegalStateException("Already connected");
+        if (streamWindow < 1) throw new IllegalArgumentException("streamWindow can't be less than 1");
+        this.streamWindow = streamWindow;
+    }
+
+    /**
+     * Set timer driving keep-alives of this client. <br>
+     * By default all clients share {@link HashedWheelTimer#DEFAULT}, so no
+     * thread is started per client. <br>
+     * This can only be used before calling {@link #connect()}
+     *
+     * @param  timer                 timer to use
+     * @throws NullPointerException  if timer is null
+     * @throws IllegalStateException if the client is already connected
+     */
+    public void setTimer(HashedWheelTimer timer) {
+        Objects.requireNonNull(timer);
+        if (connected) throw new IllegalStateException("Already connected");
+        this.timer = timer;
+    }
+
     /**
      * Sets a new token provider. <br>
      * This can only be used before calling {@link #connect()}
@@ -348,4 +1310,145 @@ public class CmdClient implements AutoCloseable {
         tokenProvider = provider;
     }
 
+    /**
+     * Set the watermarks bounding the outbound buffer. <br>
+     * Default values are {@link OutboundQueue#DEFAULT_LOW_WATERMARK} and
+     * {@link OutboundQueue#DEFAULT_HIGH_WATERMARK}.
+     *
+     * @param  lowWatermark             number of pending bytes below which the
+     *                                  client becomes writable again
+     * @param  highWatermark            number of pending bytes above which the
+     *                                  client becomes not writable
+     * @throws IllegalArgumentException if lowWatermark is less than 0, or
+     *                                  highWatermark is less than lowWatermark
+     * @see                             #isWritable()
+     */
+    public void setWatermarks(int lowWatermark, int highWatermark) {
+        if (lowWatermark < 0) throw new IllegalArgumentException("lowWatermark can't be less than 0");
+        if (highWatermark < lowWatermark)
+            throw new IllegalArgumentException("highWatermark can't be less than lowWatermark");
+        this.lowWatermark = lowWatermark;
+        this.highWatermark = highWatermark;
+        if (out != null) out.setWatermarks(lowWatermark, highWatermark);
+    }
+
+    /**
+     * Performs the authorization sequence and receives packets until the
+     * connection is closed
+     */
+    private void readPackets(FrameDecoder decoder) throws Exception {
+        Packet authResponse = decoder.read(is);
+        if (authResponse instanceof DisconnectPacket disconnectPacket) {
+            if (metrics != null) metrics.authenticationFailed();
+            throw new IOException("Server rejected the connection: " + disconnectPacket.getReason());
+        }
+        if (!(authResponse instanceof AuthSuccessPacket authSuccess)) {
+            if (metrics != null) metrics.authenticationFailed();
+            throw new IOException("Received invalid packet during authentication: " + authResponse);
+        }
+        CompressionCodec codec = authSuccess.getCompression();
+        if (codec != CompressionCodec.NONE && !compression.contains(codec)) {
+            if (metrics != null) metrics.authenticationFailed();
+            throw new IOException("Server chose an unsupported compression codec: " + codec);
+        }
+        if (metrics != null) metrics.authenticationSucceeded();
+        out.setCompression(codec, compressionThreshold);
+        decoder.setCompression(codec);
+        negotiatedCompression = codec;
+        commandTable = authSuccess.getCommandTable();
+        out.setCommandTable(commandTable);
+        decoder.setCommandTable(commandTable);
+        dispatcher.execute(() -> {
+            for (ClientListener ls : listeners) ls.authorized();
+        });
+        if (!socket.isClosed()) ASYNC_EXECUTOR.execute(this::ping);
+        while (!socket.isClosed()) receive(decoder.read(is));
+    }
+
+    private void closeQuietly() {
+        try {
+            close();
+        } catch (IOException e) {}
+    }
+
+    private static Socket createSocket(SSLContext sslContext) throws IOException {
+        SSLSocket socket = (SSLSocket) sslContext.getSocketFactory().createSocket();
+        socket.setSSLParameters(SSLManager.mkSSLParameters(sslContext));
+        return socket;
+    }
+
+    private PendingStreams createStreams() {
+        return new PendingStreams(requests, new PendingStreams.PacketSender() {
+            @Override
+            public void send(Packet packet) throws IOException {
+                sendPacket(packet);
+            }
+
+            @Override
+            public void send(Packet packet, ByteBuffer trailer) throws IOException {
+                if (!connected) throw new IllegalStateException("Not connected");
+                out.send(packet, trailer);
+            }
+        }, () -> Thread.currentThread() == readThread, streamChunkSize, streamWindow);
+    }
+
+    /**
+     * Passes a packet to the packet handler, marking the request it belongs to
+     */
+    private void handlePacket(Packet packet) throws Exception {
+        if (packet instanceof CommandPacket command && command.getRequestID() != 0) {
+            CurrentRequest previous = CURRENT_REQUEST.get();
+            CURRENT_REQUEST.set(new CurrentRequest(this, command.getRequestID()));
+            try {
+                handler.handle(packet);
+            } finally {
+                CURRENT_REQUEST.set(previous);
+            }
+        } else handler.handle(packet);
+    }
+
+    /**
+     * Sends a keep-alive and schedules the next one, or disconnects if the
+     * previous one was not acknowledged. <br>
+     * Runs on {@link #ASYNC_EXECUTOR}, as sending may block.
+     */
+    private void ping() {
+        try {
+            if (lastPingID != -1) {
+                disconnect("Timed out");
+                return;
+            }
+            lastPingID = System.currentTimeMillis();
+            lastPingTime = System.nanoTime();
+            sendPacket(new PingPacket(lastPingID));
+            for (ClientListener ls : listeners) ls.serverPinged(lastPingID);
+            if (!socket.isClosed()) pingTimeout = timer.schedule(() -> ASYNC_EXECUTOR.execute(this::ping),
+                    pingInterval, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            closeQuietly();
+        }
+    }
+
+    /**
+     * Processes a single received packet. <br>
+     * Stream packets and responses to pending requests are handled on the calling
+     * thread. Pings are checked and measured on the calling thread, so
+     * keep-alives are never delayed by slow listeners, but their listeners are
+     * notified through the dispatcher. All other packets are passed to the packet
+     * handler through the dispatcher.
+     */
+    private void receive(Packet packet) throws Exception {
+        if (packet instanceof CommandResponsePacket response
+                && requests.complete(response.getRequestID(), response.getData()))
+            return;
+        if (streams.receive(packet)) return;
+        if (packet instanceof PingPacket ping) {
+            if (ping.getPingID() != lastPingID) disconnect("Received invalid keep-alive packet");
+            else if (metrics != null) metrics.pingRoundTrip(System.nanoTime() - lastPingTime);
+            lastPingID = -1;
+            dispatcher.execute(() -> handler.handle(packet));
+        } else dispatcher.dispatch(() -> handlePacket(packet));
+    }
+
+    private record CurrentRequest(CmdClient client, int id) {}
 }
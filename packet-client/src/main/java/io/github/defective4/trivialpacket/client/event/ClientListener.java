@@ -67,4 +67,17 @@ public interface ClientListener {
      * @throws Exception
      */
     void serverPingReceived(long id) throws Exception;
+
+    /**
+     * Called when the outbound buffer becomes writable or not writable. <br>
+     * Unlike other events, it may be called on any thread that sends packets to
+     * the server, and should return quickly.
+     *
+     * @param  writable  <code>true</code> if the buffer drained below the low
+     *                   watermark, <code>false</code> if it grew above the high
+     *                   watermark
+     * @throws Exception
+     * @see              CmdClient#isWritable()
+     */
+    default void writabilityChanged(boolean writable) throws Exception {}
 }
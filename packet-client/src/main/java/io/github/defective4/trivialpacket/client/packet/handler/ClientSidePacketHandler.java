@@ -44,10 +44,7 @@ public class ClientSidePacketHandler extends PacketHandler {
 
     @PacketReceiver
     public void onPing(PingPacket e) throws Exception {
-        long id = e.getId();
-        if (id != client.getLastPingID()) client.disconnect("Received invalid keep-alive packet");
-        client.setLastPingID(-1);
-        for (ClientListener ls : client.getListeners()) ls.serverPingReceived(id);
+        for (ClientListener ls : client.getListeners()) ls.serverPingReceived(e.getPingID());
     }
 
     @PacketReceiver
@@ -0,0 +1,229 @@
+package io.github.defective4.trivialpacket.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Collection;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import io.github.defective4.trivialpacket.common.io.BufferPool;
+import io.github.defective4.trivialpacket.common.io.CompressionCodec;
+import io.github.defective4.trivialpacket.common.io.OutboundQueue;
+import io.github.defective4.trivialpacket.common.metrics.MetricsSink;
+import io.github.defective4.trivialpacket.common.packet.CommandTable;
+import io.github.defective4.trivialpacket.common.packet.FrameDecoder;
+import io.github.defective4.trivialpacket.common.packet.Packet;
+
+/**
+ * Non-blocking transport of a single {@link ClientConnection}. <br>
+ * It decodes incoming frames incrementally as they arrive, and queues outgoing
+ * frames until the channel is ready to accept them. <br>
+ * When the connection's dispatcher can't take more packets, the transport stops
+ * reading until it has space again, leaving further data in the socket's
+ * receive buffer.
+ */
+final class ChannelTransport {
+    private final SocketChannel channel;
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final ClientConnection connection;
+    private final FrameDecoder decoder;
+    private SelectionKey key;
+    private final SelectorLoop loop;
+    private final OutboundQueue outbound;
+    private Packet pending;
+    private boolean hasPending, readSuspended, writePending;
+
+    ChannelTransport(SocketChannel channel, OutboundQueue outbound, SelectorLoop loop, ClientConnection connection,
+            int maxFrameSize, MetricsSink metrics) {
+        this.channel = channel;
+        decoder = new FrameDecoder(BufferPool.DIRECT, maxFrameSize);
+        decoder.setMetrics(metrics);
+        this.outbound = outbound;
+        this.loop = loop;
+        this.connection = connection;
+    }
+
+    /**
+     * Closes the channel and fires the disconnect event. <br>
+     * Subsequent calls have no effect.
+     */
+    void close() {
+        if (!closed.compareAndSet(false, true)) return;
+        try {
+            channel.close();
+        } catch (IOException e) {}
+        loop.connectionClosed();
+        if (loop.inEventLoop()) closed();
+        else loop.execute(this::closed);
+    }
+
+    /**
+     * Writes as many queued frames as the channel accepts, or schedules it on the
+     * loop's thread. <br>
+     * Only one flush is scheduled at a time, so packets sent from other threads
+     * before the loop gets to it are written together.
+     *
+     * @throws IOException
+     */
+    void flush() throws IOException {
+        if (!loop.inEventLoop()) {
+            if (flushScheduled.compareAndSet(false, true)) loop.execute(() -> {
+                flushScheduled.set(false);
+                try {
+                    flush();
+                } catch (Exception e) {
+                    close();
+                }
+            });
+            return;
+        }
+        if (closed.get()) return;
+        writePending = !outbound.flush();
+        updateInterest();
+    }
+
+    boolean inEventLoop() {
+        return loop.inEventLoop();
+    }
+
+    /**
+     * Reads available data from the channel and passes every complete frame to
+     * the connection. <br>
+     * Must be called on the loop's thread.
+     *
+     * @throws Exception
+     */
+    void read() throws Exception {
+        if (decoder.fill(channel) < 0) throw new EOFException();
+        receiveFrames();
+    }
+
+    /**
+     * Set codec used to decompress received frames and table used to resolve
+     * received command codes. <br>
+     * Must be called on the loop's thread.
+     *
+     * @param compression
+     * @param commandTable
+     */
+    void setDecoderState(CompressionCodec compression, CommandTable commandTable) {
+        decoder.setCompression(compression);
+        decoder.setCommandTable(commandTable);
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    /**
+     * Queues a packet to be sent by the loop. <br>
+     * The loop's own thread never waits for the outbound queue to drain, as it's
+     * the thread draining it.
+     *
+     * @param  packet      packet to send
+     * @throws IOException if the connection is closed, or there was an error
+     *                     serializing the packet
+     */
+    void write(Packet packet) throws IOException {
+        if (closed.get()) throw new IOException("Connection closed");
+        outbound.offer(packet, !loop.inEventLoop());
+        flush();
+    }
+
+    /**
+     * Queues a packet followed by a trailer to be sent by the loop
+     *
+     * @param  packet      packet to send
+     * @param  trailer     data following the packet's data
+     * @throws IOException if the connection is closed, or there was an error
+     *                     serializing the packet
+     * @see                OutboundQueue#offer(Packet, ByteBuffer, boolean)
+     */
+    void write(Packet packet, ByteBuffer trailer) throws IOException {
+        if (closed.get()) throw new IOException("Connection closed");
+        outbound.offer(packet, trailer, !loop.inEventLoop());
+        flush();
+    }
+
+    /**
+     * Queues an encoded frame to be sent by the loop
+     *
+     * @param  frame       frame to send. A read-only view of it is queued, so
+     *                     it's never released to the pool
+     * @throws IOException if the connection is closed
+     */
+    void writeFrame(ByteBuffer frame) throws IOException {
+        if (closed.get()) throw new IOException("Connection closed");
+        outbound.offerFrame(frame);
+        flush();
+    }
+
+    /**
+     * Queues multiple packets to be sent by the loop together
+     *
+     * @param  packets     packets to send
+     * @throws IOException if the connection is closed, or there was an error
+     *                     serializing the packets
+     */
+    void writeAll(Collection<? extends Packet> packets) throws IOException {
+        Objects.requireNonNull(packets);
+        if (closed.get()) throw new IOException("Connection closed");
+        boolean mayBlock = !loop.inEventLoop();
+        for (Packet packet : packets) outbound.offer(packet, mayBlock);
+        flush();
+    }
+
+    private void closed() {
+        decoder.close();
+        outbound.close();
+        connection.closed();
+        connection.fireDisconnected();
+    }
+
+    /**
+     * Passes all buffered frames to the connection, and suspends reading if it
+     * refuses one
+     */
+    private void receiveFrames() throws Exception {
+        while (!closed.get()) {
+            if (!hasPending) {
+                if (!decoder.hasFrame()) return;
+                pending = decoder.nextPacket();
+                hasPending = true;
+            }
+            if (!connection.receive(pending, this::resumeReading)) {
+                readSuspended = true;
+                updateInterest();
+                return;
+            }
+            pending = null;
+            hasPending = false;
+        }
+    }
+
+    /**
+     * Called by the dispatcher when it has space again. Passes the refused packet
+     * and other buffered frames to the connection, and resumes reading.
+     */
+    private void resumeReading() {
+        loop.execute(() -> {
+            if (closed.get() || !readSuspended) return;
+            readSuspended = false;
+            try {
+                receiveFrames();
+                updateInterest();
+            } catch (Exception e) {
+                close();
+            }
+        });
+    }
+
+    private void updateInterest() {
+        if (closed.get()) return;
+        key.interestOps((readSuspended ? 0 : SelectionKey.OP_READ) | (writePending ? SelectionKey.OP_WRITE : 0));
+    }
+}
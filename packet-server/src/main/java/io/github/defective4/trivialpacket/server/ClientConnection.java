@@ -1,19 +1,43 @@
 package io.github.defective4.trivialpacket.server;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.lang.reflect.InvocationTargetException;
+import java.io.InputStream;
 import java.net.InetAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.util.Collection;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
+import javax.net.ssl.SSLSocket;
+
+import io.github.defective4.trivialpacket.common.concurrent.DispatchMode;
+import io.github.defective4.trivialpacket.common.concurrent.Dispatcher;
+import io.github.defective4.trivialpacket.common.concurrent.HashedWheelTimer;
+import io.github.defective4.trivialpacket.common.concurrent.PendingRequests;
+import io.github.defective4.trivialpacket.common.io.BufferPool;
+import io.github.defective4.trivialpacket.common.io.ChunkedInputStream;
+import io.github.defective4.trivialpacket.common.io.ChunkedOutputStream;
+import io.github.defective4.trivialpacket.common.io.CompressionCodec;
+import io.github.defective4.trivialpacket.common.io.OutboundQueue;
+import io.github.defective4.trivialpacket.common.io.OverflowPolicy;
+import io.github.defective4.trivialpacket.common.io.PendingStreams;
+import io.github.defective4.trivialpacket.common.metrics.MetricsSink;
+import io.github.defective4.trivialpacket.common.packet.CommandTable;
+import io.github.defective4.trivialpacket.common.packet.FrameDecoder;
 import io.github.defective4.trivialpacket.common.packet.Packet;
 import io.github.defective4.trivialpacket.common.packet.client.AuthPacket;
 import io.github.defective4.trivialpacket.common.packet.server.AuthSuccessPacket;
 import io.github.defective4.trivialpacket.common.packet.twoway.CommandPacket;
 import io.github.defective4.trivialpacket.common.packet.twoway.CommandResponsePacket;
 import io.github.defective4.trivialpacket.common.packet.twoway.DisconnectPacket;
+import io.github.defective4.trivialpacket.common.packet.twoway.PingPacket;
+import io.github.defective4.trivialpacket.server.event.DisconnectReason;
 import io.github.defective4.trivialpacket.server.event.ServerListener;
 import io.github.defective4.trivialpacket.server.packet.handler.ServerSidePacketHandler;
 
@@ -22,11 +46,28 @@ import io.github.defective4.trivialpacket.server.packet.handler.ServerSidePacket
  * You can interact with the connected client through this class's methods
  */
 public class ClientConnection implements AutoCloseable {
+    private static final ThreadLocal<CurrentRequest> CURRENT_REQUEST = new ThreadLocal<>();
+    private static final long CLOSE_TIMEOUT = 5000;
+
+    private volatile HashedWheelTimer.Timeout ageTimeout;
+    private boolean authorized;
+    private volatile CompressionCodec compression = CompressionCodec.NONE;
+    private final FrameDecoder decoder;
+    private final AtomicReference<DisconnectReason> disconnectReason = new AtomicReference<>();
+    private final Dispatcher dispatcher;
+    private volatile HashedWheelTimer.Timeout handshakeTimeout;
     private final ServerSidePacketHandler handler;
-    private final DataInputStream is;
-    private final DataOutputStream os;
+    private volatile HashedWheelTimer.Timeout idleTimeout;
+    private final InputStream is;
+    private volatile long lastRead;
+    private final OutboundQueue out;
+    private volatile Thread readThread;
+    private final PendingRequests<byte[]> requests = new PendingRequests<>();
+    private volatile long requestTimeout = PendingRequests.DEFAULT_TIMEOUT;
     private final CmdServer server;
     private final Socket socket;
+    private final PendingStreams streams;
+    private final ChannelTransport transport;
 
     /**
      * Default constructor
@@ -40,15 +81,51 @@ public class ClientConnection implements AutoCloseable {
         Objects.requireNonNull(socket);
         Objects.requireNonNull(server);
         this.socket = socket;
-        os = new DataOutputStream(socket.getOutputStream());
-        is = new DataInputStream(socket.getInputStream());
+        out = socket.getChannel() == null ? new OutboundQueue(socket.getOutputStream())
+                : new OutboundQueue(socket.getChannel());
+        is = socket.getInputStream();
+        decoder = new FrameDecoder(BufferPool.HEAP, server.getMaxFrameSize());
+        decoder.setMetrics(server.getMetrics());
+        this.server = server;
+        transport = null;
+        handler = new ServerSidePacketHandler(this, server);
+        dispatcher = new Dispatcher(server.getDispatchMode(), server.getDispatchExecutor(),
+                server.getDispatchQueueCapacity(), e -> closeQuietly(), server.getMetrics());
+        streams = createStreams();
+        configureOutbound();
+        scheduleTimeouts();
+    }
+
+    /**
+     * Constructs a connection served by a {@link SelectorLoop}
+     *
+     * @param channel non-blocking channel
+     * @param loop    loop the channel is registered in
+     * @param server
+     */
+    ClientConnection(SocketChannel channel, SelectorLoop loop, CmdServer server) {
+        socket = channel.socket();
         this.server = server;
+        is = null;
+        decoder = null;
+        out = new OutboundQueue(channel);
+        transport = new ChannelTransport(channel, out, loop, this, server.getMaxFrameSize(), server.getMetrics());
         handler = new ServerSidePacketHandler(this, server);
+        dispatcher = new Dispatcher(server.getDispatchMode(), server.getDispatchExecutor(),
+                server.getDispatchQueueCapacity(), e -> closeQuietly(), server.getMetrics());
+        streams = createStreams();
+        configureOutbound();
+        scheduleTimeouts();
     }
 
     @Override
     public void close() throws IOException {
-        socket.close();
+        if (transport != null) transport.close();
+        else {
+            socket.close();
+            out.close();
+            closed();
+        }
     }
 
     /**
@@ -61,6 +138,161 @@ public class ClientConnection implements AutoCloseable {
         sendPacket(new DisconnectPacket(reason));
     }
 
+    /**
+     * Writes all pending packets to the client. <br>
+     * This is only needed if the linger time is set, as packets are otherwise
+     * flushed as soon as they are sent.
+     *
+     * @throws IOException when there was an error writing the packets
+     * @see                #setLinger(long)
+     */
+    public void flush() throws IOException {
+        if (transport != null) transport.flush();
+        else out.flush();
+    }
+
+    /**
+     * Get compression codec negotiated with the client. <br>
+     * It's {@link CompressionCodec#NONE} until the client is authorized, or if
+     * the client and the server have no common codec.
+     *
+     * @return compression codec
+     * @see    CmdServer#setCompression(CompressionCodec...)
+     */
+    public CompressionCodec getCompression() {
+        return compression;
+    }
+
+    /**
+     * Get reason this connection was closed for
+     *
+     * @return disconnect reason, or <code>null</code> if the connection is not
+     *         being closed
+     * @see    ServerListener#clientDisconnected(ClientConnection,
+     *         DisconnectReason)
+     */
+    public DisconnectReason getDisconnectReason() {
+        return disconnectReason.get();
+    }
+
+    /**
+     * Get ID of the request handled by the calling thread. <br>
+     * When called from
+     * {@link ServerListener#commandReceived(ClientConnection, String, String[])},
+     * it returns the ID that has to be passed to {@link #respond(int, byte[])} to
+     * respond to the command later, or from another thread.
+     *
+     * @return request ID, or <code>0</code> if the calling thread is not handling
+     *         a request from this client
+     */
+    public int getCurrentRequestID() {
+        CurrentRequest request = CURRENT_REQUEST.get();
+        return request != null && request.connection == this ? request.id : 0;
+    }
+
+    /**
+     * Get number of received packets waiting to be handled, or being handled by
+     * listeners. <br>
+     * Always <code>0</code> in {@link DispatchMode#INLINE} mode.
+     *
+     * @return current dispatch queue depth
+     * @see    CmdServer#setDispatchMode(DispatchMode)
+     */
+    public int getDispatchQueueDepth() {
+        return dispatcher.getQueueDepth();
+    }
+
+    /**
+     * Get current high watermark of the outbound buffer
+     *
+     * @return number of pending bytes above which the connection becomes not
+     *         writable
+     * @see    #setWatermarks(int, int)
+     */
+    public int getHighWatermark() {
+        return out.getHighWatermark();
+    }
+
+    /**
+     * Get current linger time
+     *
+     * @return linger time in milliseconds
+     * @see    #setLinger(long)
+     */
+    public long getLinger() {
+        return out.getLinger();
+    }
+
+    /**
+     * Get current low watermark of the outbound buffer
+     *
+     * @return number of pending bytes below which the connection becomes
+     *         writable again
+     * @see    #setWatermarks(int, int)
+     */
+    public int getLowWatermark() {
+        return out.getLowWatermark();
+    }
+
+    /**
+     * Get current overflow policy
+     *
+     * @return overflow policy
+     * @see    #setOverflowPolicy(OverflowPolicy)
+     */
+    public OverflowPolicy getOverflowPolicy() {
+        return out.getOverflowPolicy();
+    }
+
+    /**
+     * Get highest number of received packets that were waiting to be handled at
+     * once
+     *
+     * @return peak dispatch queue depth
+     * @see    #getDispatchQueueDepth()
+     */
+    public int getPeakDispatchQueueDepth() {
+        return dispatcher.getPeakQueueDepth();
+    }
+
+    /**
+     * Get number of bytes waiting to be written to the client
+     *
+     * @return number of pending bytes
+     */
+    public int getPendingBytes() {
+        return out.getPendingBytes();
+    }
+
+    /**
+     * Get number of requests waiting for a response from the client
+     *
+     * @return number of pending requests
+     */
+    public int getPendingRequests() {
+        return requests.size();
+    }
+
+    /**
+     * Get number of streamed responses being sent to or received from the
+     * client
+     *
+     * @return number of open streams
+     */
+    public int getOpenStreams() {
+        return streams.size();
+    }
+
+    /**
+     * Get current request timeout
+     *
+     * @return request timeout in milliseconds
+     * @see    #setRequestTimeout(long)
+     */
+    public long getRequestTimeout() {
+        return requestTimeout;
+    }
+
     /**
      * See {@link Socket#getInetAddress()}
      *
@@ -79,17 +311,204 @@ public class ClientConnection implements AutoCloseable {
         return socket.getPort();
     }
 
+    /**
+     * Checks if packets can be sent to the client without triggering the
+     * overflow policy. <br>
+     * The connection becomes not writable when the client doesn't read data as
+     * fast as it's sent, and the outbound buffer grows above the high watermark.
+     * It becomes writable again when the buffer drains below the low watermark.
+     * Both changes are reported with
+     * {@link ServerListener#writabilityChanged(ClientConnection, boolean)}.
+     *
+     * @return <code>true</code> if the connection is writable
+     */
+    public boolean isWritable() {
+        return out.isWritable();
+    }
+
     /**
      * Respond to a command send by the client. <br>
      * By definition you should only use this to respond to the client's command,
      * but in reality you can send this data at any point during connection and the
-     * default CmdClient implementation will handle it just fine.
+     * default CmdClient implementation will handle it just fine. <br>
+     * If called while handling a command sent as a request, the response is
+     * tagged with the request's ID.
      *
      * @param  data        data to send
      * @throws IOException when there was an error sending the packet
      */
     public void respond(byte[] data) throws IOException {
-        sendPacket(new CommandResponsePacket(data));
+        respond(getCurrentRequestID(), data);
+    }
+
+    /**
+     * Respond to a specific request sent by the client. <br>
+     * This can be called at any time after the command was received, from any
+     * thread.
+     *
+     * @param  requestID   ID of the request, obtained with
+     *                     {@link #getCurrentRequestID()}
+     * @param  data        data to send
+     * @throws IOException when there was an error sending the packet
+     */
+    public void respond(int requestID, byte[] data) throws IOException {
+        sendPacket(new CommandResponsePacket(requestID, data));
+    }
+
+    /**
+     * Send a command to the client and write its response to a file. <br>
+     * The response is received like with {@link #requestStream(String, String...)},
+     * but every chunk is written to the file as soon as it arrives, on the thread
+     * reading this connection. Received chunks are copied once out of the
+     * connection's read buffer, and are not kept after being written to the
+     * file. The calling thread waits until the whole response is received, so it
+     * can't be the thread reading this connection. <br>
+     * The file is truncated to <code>offset</code> bytes before the response is
+     * written after them. To resume an interrupted transfer, pass the current
+     * size of the file, and tell the client where to continue in the command
+     * arguments. <br>
+     * The transfer fails if no data arrives for {@link #getRequestTimeout()}
+     * milliseconds.
+     *
+     * @param  target                   file to write to
+     * @param  offset                   position in the file to write the response
+     *                                  at
+     * @param  command                  command name
+     * @param  args                     command arguments
+     * @return                          number of received bytes
+     * @throws IOException              if the file couldn't be written, or the
+     *                                  transfer failed or timed out
+     * @throws NullPointerException     if target, command or any of the arguments
+     *                                  is null
+     * @throws IllegalArgumentException if offset is less than 0
+     */
+    public long receiveFile(Path target, long offset, String command, String... args) throws IOException {
+        Objects.requireNonNull(command);
+        Objects.requireNonNull(args);
+        for (String arg : args) Objects.requireNonNull(arg);
+        return streams.receiveFile(id -> new CommandPacket(id, command, args), target, offset, requestTimeout);
+    }
+
+    /**
+     * Respond to the command handled by the calling thread with a stream. <br>
+     * Works like {@link #respondStream(int)} with the ID returned by
+     * {@link #getCurrentRequestID()}.
+     *
+     * @return                          stream to write the response to
+     * @throws IllegalArgumentException if the calling thread is not handling a
+     *                                  request from this client
+     * @see                             #respondStream(int)
+     */
+    public ChunkedOutputStream respondStream() {
+        return respondStream(getCurrentRequestID());
+    }
+
+    /**
+     * Respond to a specific request sent by the client with a stream. <br>
+     * Data written to the stream is sent in chunks of at most
+     * {@link CmdServer#getStreamChunkSize()} bytes, as fast as the client reads
+     * them, so responses of any size can be sent with constant memory. The
+     * response is complete once the stream is closed. <br>
+     * Writes wait for the client, so they can't be made on the thread reading
+     * this connection, which is the thread calling listeners in
+     * {@link DispatchMode#INLINE} mode. Write from another thread, or use a
+     * different dispatch mode.
+     *
+     * @param  requestID                ID of the request, obtained with
+     *                                  {@link #getCurrentRequestID()}
+     * @return                          stream to write the response to
+     * @throws IllegalArgumentException if requestID is <code>0</code>
+     * @throws IllegalStateException    if a response to this request is already
+     *                                  being streamed
+     */
+    public ChunkedOutputStream respondStream(int requestID) {
+        return streams.respond(requestID);
+    }
+
+    /**
+     * Send a command to the client and wait for its response asynchronously. <br>
+     * Any number of requests can be in flight at once. Responses are matched to
+     * requests by ID, so they don't have to arrive in order. <br>
+     * Responses to requests are not passed to
+     * {@link ServerListener#responseReceived(ClientConnection, byte[])}. <br>
+     * The request times out after {@link #getRequestTimeout()} milliseconds.
+     *
+     * @param  command              command name
+     * @param  args                 command arguments
+     * @return                      future completed with the response data. It's
+     *                              completed exceptionally with a
+     *                              {@link java.util.concurrent.TimeoutException}
+     *                              if the request times out, or an
+     *                              {@link IOException} if the request couldn't be
+     *                              sent or the connection was closed
+     * @throws NullPointerException if command or any of the arguments is null
+     */
+    public CompletableFuture<byte[]> request(String command, String... args) {
+        return request(requestTimeout, command, args);
+    }
+
+    /**
+     * Send a command to the client and wait for its response asynchronously,
+     * using a custom timeout.
+     *
+     * @param  timeout                  request timeout in milliseconds.
+     *                                  <code>0</code> means no timeout
+     * @param  command                  command name
+     * @param  args                     command arguments
+     * @return                          future completed with the response data
+     * @throws NullPointerException     if command or any of the arguments is null
+     * @throws IllegalArgumentException if timeout is less than 0
+     * @see                             #request(String, String...)
+     */
+    public CompletableFuture<byte[]> request(long timeout, String command, String... args) {
+        Objects.requireNonNull(command);
+        Objects.requireNonNull(args);
+        for (String arg : args) Objects.requireNonNull(arg);
+        if (timeout < 0) throw new IllegalArgumentException("timeout can't be less than 0");
+        CompletableFuture<byte[]> future = new CompletableFuture<>();
+        int id = requests.register(future, timeout);
+        try {
+            sendPacket(new CommandPacket(id, command, args));
+        } catch (IOException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Send a command to the client and read its response as a stream. <br>
+     * The response is received in chunks, and the client is only allowed to send
+     * {@link CmdServer#getStreamWindow()} chunks ahead of the reader, so
+     * responses of any size are received with constant memory. The client can
+     * also respond with a regular response, which is then read from the stream
+     * at once. <br>
+     * Reads fail if no data arrives for {@link #getRequestTimeout()}
+     * milliseconds. Reads can't be made on the thread reading this connection.
+     *
+     * @param  command              command name
+     * @param  args                 command arguments
+     * @return                      stream of the response
+     * @throws IOException          if the request couldn't be sent
+     * @throws NullPointerException if command or any of the arguments is null
+     */
+    public ChunkedInputStream requestStream(String command, String... args) throws IOException {
+        Objects.requireNonNull(command);
+        Objects.requireNonNull(args);
+        for (String arg : args) Objects.requireNonNull(arg);
+        return streams.request(id -> new CommandPacket(id, command, args), requestTimeout);
+    }
+
+    /**
+     * Send multiple packets to the client at once. <br>
+     * All packets are written with a single write, if possible.
+     *
+     * @param  packets              packets to send
+     * @throws IOException          when there was an error sending the packets
+     * @throws NullPointerException if packets or any of the packets is null
+     */
+    public void sendBatch(Collection<? extends Packet> packets) throws IOException {
+        if (transport != null) transport.writeAll(packets);
+        else out.sendBatch(packets);
     }
 
     /**
@@ -108,7 +527,53 @@ public class ClientConnection implements AutoCloseable {
     }
 
     /**
-     * Send a raw packet to the client.
+     * Respond to the command handled by the calling thread with a file. <br>
+     * Works like {@link #sendFile(int, Path, long)} with the ID returned by
+     * {@link #getCurrentRequestID()}, sending the whole file.
+     *
+     * @param  file                     file to send
+     * @return                          number of sent bytes
+     * @throws IOException              if there was an error reading or sending
+     *                                  the file
+     * @throws IllegalArgumentException if the calling thread is not handling a
+     *                                  request from this client
+     * @see                             #sendFile(int, Path, long)
+     */
+    public long sendFile(Path file) throws IOException {
+        return sendFile(getCurrentRequestID(), file, 0);
+    }
+
+    /**
+     * Respond to a specific request sent by the client with a file, starting at
+     * an offset. <br>
+     * The file is streamed like with {@link #respondStream(int)}, but chunks are
+     * written to the connection directly from memory-mapped regions of the file,
+     * without copying them to the heap. The method returns once the whole file
+     * is sent, and can't be called on the thread reading this connection. If the
+     * file can't be read, the response is aborted.
+     *
+     * @param  requestID                ID of the request, obtained with
+     *                                  {@link #getCurrentRequestID()}
+     * @param  file                     file to send
+     * @param  offset                   position in the file to start at
+     * @return                          number of sent bytes
+     * @throws IOException              if there was an error reading or sending
+     *                                  the file
+     * @throws NullPointerException     if file is null
+     * @throws IllegalArgumentException if requestID is <code>0</code>, or offset
+     *                                  is less than 0
+     * @throws IllegalStateException    if a response to this request is already
+     *                                  being streamed
+     */
+    public long sendFile(int requestID, Path file, long offset) throws IOException {
+        return streams.sendFile(requestID, file, offset);
+    }
+
+    /**
+     * Send a raw packet to the client. <br>
+     * This method can be safely called from multiple threads at once. Packets
+     * are never interleaved, and packets sent by a single thread are delivered in
+     * order.
      *
      * @param  packet               packet to send
      * @throws IOException          when there was an error sending the packet
@@ -116,7 +581,69 @@ public class ClientConnection implements AutoCloseable {
      */
     public void sendPacket(Packet packet) throws IOException {
         Objects.requireNonNull(packet);
-        packet.writeToStream(os);
+        if (transport != null) transport.write(packet);
+        else out.send(packet);
+    }
+
+    /**
+     * Set the linger time. <br>
+     * Sent packets are held for at most this long, so they can be written to the
+     * network together with packets sent shortly after them. <br>
+     * Default value is <code>0</code>, meaning every packet is written
+     * immediately. <br>
+     * Linger time has no effect in {@link TransportMode#SELECTOR} mode, where
+     * packets sent between event loop iterations are always written together.
+     *
+     * @param  linger                   linger time in milliseconds
+     * @throws IllegalArgumentException if linger is less than 0
+     * @see                             OutboundQueue#setLinger(long)
+     */
+    public void setLinger(long linger) {
+        out.setLinger(linger);
+    }
+
+    /**
+     * Set what happens to packets sent while the connection is not writable.
+     * <br>
+     * Default value is {@link CmdServer#getOverflowPolicy()}.
+     *
+     * @param  overflowPolicy
+     * @throws NullPointerException if overflowPolicy is null
+     * @see                         #isWritable()
+     */
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        out.setOverflowPolicy(overflowPolicy);
+    }
+
+    /**
+     * Set default timeout of requests sent with
+     * {@link #request(String, String...)}. <br>
+     * Default value is {@link PendingRequests#DEFAULT_TIMEOUT}.
+     *
+     * @param  requestTimeout           request timeout in milliseconds.
+     *                                  <code>0</code> means no timeout
+     * @throws IllegalArgumentException if requestTimeout is less than 0
+     */
+    public void setRequestTimeout(long requestTimeout) {
+        if (requestTimeout < 0) throw new IllegalArgumentException("requestTimeout can't be less than 0");
+        this.requestTimeout = requestTimeout;
+    }
+
+    /**
+     * Set the watermarks bounding the outbound buffer. <br>
+     * Default values are {@link CmdServer#getLowWatermark()} and
+     * {@link CmdServer#getHighWatermark()}.
+     *
+     * @param  lowWatermark             number of pending bytes below which the
+     *                                  connection becomes writable again
+     * @param  highWatermark            number of pending bytes above which the
+     *                                  connection becomes not writable
+     * @throws IllegalArgumentException if lowWatermark is less than 0, or
+     *                                  highWatermark is less than lowWatermark
+     * @see                             #isWritable()
+     */
+    public void setWatermarks(int lowWatermark, int highWatermark) {
+        out.setWatermarks(lowWatermark, highWatermark);
     }
 
     /**
@@ -127,21 +654,266 @@ public class ClientConnection implements AutoCloseable {
      * @throws Exception
      */
     protected void handle() throws Exception {
-        if (!(Packet.readFromStream(is) instanceof AuthPacket authPacket))
-            throw new IOException("Invalid auth packet received");
-        if (!new String(server.getToken()).equals(new String(authPacket.getToken()))) {
-            sendPacket(new DisconnectPacket("Received invalid token"));
-            throw new IOException("Received invalid token");
+        readThread = Thread.currentThread();
+        try {
+            if (socket instanceof SSLSocket sslSocket) {
+                long start = System.nanoTime();
+                sslSocket.startHandshake();
+                MetricsSink metrics = server.getMetrics();
+                if (metrics != null) metrics.tlsHandshakeCompleted(System.nanoTime() - start);
+            }
+            while (!socket.isClosed()) receive(decoder.read(is));
+        } finally {
+            decoder.close();
+        }
+    }
+
+    /**
+     * Cleans up after the connection is closed. <br>
+     * All requests waiting for a response and all streams are failed.
+     */
+    void closed() {
+        cancel(handshakeTimeout);
+        cancel(idleTimeout);
+        cancel(ageTimeout);
+        server.connectionClosed(this);
+        requests.failAll(new IOException("Connection closed"));
+        streams.failAll(new IOException("Connection closed"));
+    }
+
+    ChannelTransport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Queues an encoded frame shared with other connections, without blocking
+     *
+     * @param  frame    read-only frame
+     * @param  executor executor used to write the frame on blocking transports
+     * @return          <code>false</code> if the connection is closed
+     */
+    boolean sendFrame(ByteBuffer frame, Executor executor) {
+        try {
+            if (transport != null) transport.writeFrame(frame);
+            else out.sendFrame(frame, executor);
+            return true;
+        } catch (IOException e) {
+            return false;
         }
-        sendPacket(new AuthSuccessPacket());
-        for (ServerListener ls : server.getListeners()) ls.clientAuthorized(this);
-        while (!socket.isClosed()) {
+    }
+
+    /**
+     * Fires the disconnect event. <br>
+     * The event is dispatched after all packets received before, if the
+     * connection uses {@link DispatchMode#ORDERED} dispatch.
+     */
+    void fireDisconnected() {
+        disconnectReason.compareAndSet(null, DisconnectReason.CLOSED);
+        DisconnectReason reason = disconnectReason.get();
+        dispatcher.execute(() -> {
+            for (ServerListener ls : server.getListeners()) try {
+                ls.clientDisconnected(this, reason);
+            } catch (Exception e) {}
+        });
+    }
+
+    /**
+     * Processes a single received packet. <br>
+     * The first packet has to be an {@link AuthPacket}, all subsequent packets are
+     * passed to the packet handler through the dispatcher, waiting if its queue is
+     * full. Pings are always answered, and responses to pending requests
+     * completed, on the calling thread, so they are never delayed by slow
+     * listeners.
+     *
+     * @param  packet    received packet
+     * @throws Exception if the packet could not be handled and the connection
+     *                   should be closed
+     */
+    void receive(Packet packet) throws Exception {
+        if (!receiveInline(packet)) dispatcher.dispatch(() -> handlePacket(packet));
+    }
+
+    /**
+     * Processes a single received packet without waiting for space in the
+     * dispatcher's queue
+     *
+     * @param  packet      received packet
+     * @param  onAvailable called when the dispatcher's queue has space again, if
+     *                     the packet was refused
+     * @return             <code>false</code> if the packet was refused, and has to
+     *                     be passed again later
+     * @throws Exception   if the packet could not be handled and the connection
+     *                     should be closed
+     * @see                #receive(Packet)
+     */
+    boolean receive(Packet packet, Runnable onAvailable) throws Exception {
+        return receiveInline(packet) || dispatcher.tryDispatch(() -> handlePacket(packet), onAvailable);
+    }
+
+    /**
+     * Sends a {@link DisconnectPacket} without waiting for space in the outbound
+     * buffer, and closes the connection once it's written, or after
+     * {@link #CLOSE_TIMEOUT} milliseconds
+     *
+     * @param reason  disconnect reason passed to listeners
+     * @param message reason sent to the client
+     */
+    private void closeAfterFlush(DisconnectReason reason, String message) {
+        disconnectReason.compareAndSet(null, reason);
+        out.closeAfterFlush(new DisconnectPacket(message), CLOSE_TIMEOUT, this::closeQuietly);
+        if (transport != null) try {
+            transport.flush();
+        } catch (IOException e) {
+            transport.close();
+        }
+    }
+
+    private void closeQuietly() {
+        try {
+            close();
+        } catch (IOException e) {}
+    }
+
+    private void configureOutbound() {
+        out.setWatermarks(server.getLowWatermark(), server.getHighWatermark());
+        out.setOverflowPolicy(server.getOverflowPolicy());
+        out.setMetrics(server.getMetrics());
+        out.setListener(new OutboundQueue.Listener() {
+
+            @Override
+            public void overflowed() {
+                closeAfterFlush(DisconnectReason.OUTBOUND_OVERFLOW, "Outbound buffer overflow");
+            }
+
+            @Override
+            public void writabilityChanged(boolean writable) {
+                for (ServerListener ls : server.getListeners()) try {
+                    ls.writabilityChanged(ClientConnection.this, writable);
+                } catch (Exception e) {}
+            }
+        });
+    }
+
+    private static void cancel(HashedWheelTimer.Timeout timeout) {
+        if (timeout != null) timeout.cancel();
+    }
+
+    /**
+     * Closes the connection if no packet was received for the read idle timeout,
+     * or checks again when it can expire next
+     */
+    private void checkIdle() {
+        if (socket.isClosed()) return;
+        long timeout = server.getReadIdleTimeout();
+        long idle = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastRead);
+        if (idle >= timeout) closeAfterFlush(DisconnectReason.READ_IDLE_TIMEOUT, "Read timed out");
+        else idleTimeout = server.schedule(this::checkIdle, timeout - idle);
+    }
+
+    private PendingStreams createStreams() {
+        return new PendingStreams(requests, new PendingStreams.PacketSender() {
+            @Override
+            public void send(Packet packet) throws IOException {
+                sendPacket(packet);
+            }
+
+            @Override
+            public void send(Packet packet, ByteBuffer trailer) throws IOException {
+                if (transport != null) transport.write(packet, trailer);
+                else out.send(packet, trailer);
+            }
+        }, this::isReadingThread, server.getStreamChunkSize(), server.getStreamWindow());
+    }
+
+    private boolean isReadingThread() {
+        return transport != null ? transport.inEventLoop() : Thread.currentThread() == readThread;
+    }
+
+    /**
+     * Passes a packet to the packet handler, marking the request it belongs to
+     */
+    private void handlePacket(Packet packet) throws Exception {
+        if (packet instanceof CommandPacket command && command.getRequestID() != 0) {
+            CurrentRequest previous = CURRENT_REQUEST.get();
+            CURRENT_REQUEST.set(new CurrentRequest(this, command.getRequestID()));
             try {
-                handler.handle(Packet.readFromStream(is));
-            } catch (InvocationTargetException e) {
-                throw e.getCause() == null ? e : new Exception(e.getCause());
+                handler.handle(packet);
+            } finally {
+                CURRENT_REQUEST.set(previous);
+            }
+        } else handler.handle(packet);
+    }
+
+    /**
+     * Handles packets that are never dispatched: authentication, pings, stream
+     * packets, and responses to pending requests. <br>
+     * Listeners of authentication and pings are still notified through the
+     * dispatcher.
+     *
+     * @return <code>true</code> if the packet was handled
+     */
+    private boolean receiveInline(Packet packet) throws Exception {
+        if (idleTimeout != null) lastRead = System.nanoTime();
+        if (!authorized) {
+            MetricsSink metrics = server.getMetrics();
+            if (!(packet instanceof AuthPacket authPacket)) {
+                if (metrics != null) metrics.authenticationFailed();
+                disconnectReason.compareAndSet(null, DisconnectReason.AUTHENTICATION_FAILED);
+                throw new IOException("Invalid auth packet received");
             }
+            if (!new String(server.getToken()).equals(new String(authPacket.getToken()))) {
+                if (metrics != null) metrics.authenticationFailed();
+                disconnectReason.compareAndSet(null, DisconnectReason.AUTHENTICATION_FAILED);
+                sendPacket(new DisconnectPacket("Received invalid token"));
+                throw new IOException("Received invalid token");
+            }
+            authorized = true;
+            cancel(handshakeTimeout);
+            if (metrics != null) metrics.authenticationSucceeded();
+            CompressionCodec codec = authPacket.getCompression().stream().filter(server.getCompression()::contains)
+                    .findFirst().orElse(CompressionCodec.NONE);
+            CommandTable table = server.getCommandTable();
+            sendPacket(new AuthSuccessPacket(codec, table));
+            out.setCompression(codec, server.getCompressionThreshold());
+            out.setCommandTable(table);
+            if (transport != null) transport.setDecoderState(codec, table);
+            else {
+                decoder.setCompression(codec);
+                decoder.setCommandTable(table);
+            }
+            compression = codec;
+            server.connectionAuthorized(this);
+            dispatcher.execute(() -> {
+                for (ServerListener ls : server.getListeners()) ls.clientAuthorized(this);
+            });
+            return true;
         }
+        if (packet instanceof PingPacket ping) {
+            sendPacket(new PingPacket(ping.getPingID()));
+            dispatcher.execute(() -> handler.handle(packet));
+            return true;
+        }
+        if (streams.receive(packet)) return true;
+        return packet instanceof CommandResponsePacket response
+                && requests.complete(response.getRequestID(), response.getData());
+    }
+
+    /**
+     * Schedules the handshake, read idle and connection age timeouts configured
+     * in the server
+     */
+    private void scheduleTimeouts() {
+        lastRead = System.nanoTime();
+        if (server.getHandshakeTimeout() > 0) handshakeTimeout = server.schedule(() -> {
+            if (!socket.isClosed()) closeAfterFlush(DisconnectReason.HANDSHAKE_TIMEOUT, "Handshake timed out");
+        }, server.getHandshakeTimeout());
+        if (server.getReadIdleTimeout() > 0)
+            idleTimeout = server.schedule(this::checkIdle, server.getReadIdleTimeout());
+        if (server.getMaxConnectionAge() > 0) ageTimeout = server.schedule(() -> {
+            if (!socket.isClosed())
+                closeAfterFlush(DisconnectReason.MAX_AGE_EXCEEDED, "Maximum connection age exceeded");
+        }, server.getMaxConnectionAge());
     }
 
+    private record CurrentRequest(ClientConnection connection, int id) {}
 }
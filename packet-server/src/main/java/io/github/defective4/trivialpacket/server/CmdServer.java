@@ -1,10 +1,16 @@
 package io.github.defective4.trivialpacket.server;
 
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
 import java.security.KeyManagementException;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
@@ -12,18 +18,45 @@ import java.security.PrivateKey;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
 
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
 
+import io.github.defective4.trivialpacket.common.concurrent.DispatchMode;
+import io.github.defective4.trivialpacket.common.concurrent.Dispatcher;
+import io.github.defective4.trivialpacket.common.concurrent.HashedWheelTimer;
+import io.github.defective4.trivialpacket.common.concurrent.VirtualThreads;
+import io.github.defective4.trivialpacket.common.io.BufferPool;
+import io.github.defective4.trivialpacket.common.io.CompressionCodec;
+import io.github.defective4.trivialpacket.common.io.ConnectionOptions;
+import io.github.defective4.trivialpacket.common.io.OutboundQueue;
+import io.github.defective4.trivialpacket.common.io.OverflowPolicy;
+import io.github.defective4.trivialpacket.common.io.PendingStreams;
+import io.github.defective4.trivialpacket.common.metrics.Metrics;
+import io.github.defective4.trivialpacket.common.metrics.MetricsSink;
+import io.github.defective4.trivialpacket.common.packet.CommandTable;
+import io.github.defective4.trivialpacket.common.packet.FrameDecoder;
+import io.github.defective4.trivialpacket.common.packet.Packet;
+import io.github.defective4.trivialpacket.common.packet.twoway.CommandPacket;
+import io.github.defective4.trivialpacket.common.packet.twoway.DisconnectPacket;
 import io.github.defective4.trivialpacket.common.ssl.SSLManager;
 import io.github.defective4.trivialpacket.common.token.FixedTokenProvider;
 import io.github.defective4.trivialpacket.common.token.TokenProvider;
+import io.github.defective4.trivialpacket.server.event.DisconnectReason;
 import io.github.defective4.trivialpacket.server.event.ServerListener;
 
 /**
@@ -52,13 +85,57 @@ import io.github.defective4.trivialpacket.server.event.ServerListener;
  */
 public class CmdServer implements AutoCloseable {
 
+    /**
+     * Default time clients have to authenticate, in milliseconds
+     */
+    public static final long DEFAULT_HANDSHAKE_TIMEOUT = 10000;
+
+    private static final ExecutorService ASYNC_EXECUTOR = VirtualThreads.newThreadPerTaskExecutor();
+    private static final long MAX_ACCEPT_BACKOFF = 1000;
+    private static final long MIN_ACCEPT_BACKOFF = 10;
+    private static final int REJECT_TIMEOUT = 1000;
+
+    private volatile Exception acceptorFailure;
+    private volatile ServerSocket[] acceptorSockets;
+    private int acceptors = 1;
+    private CommandTable commandTable;
+    private List<CompressionCodec> compression = Collections.emptyList();
+    private int compressionThreshold = CompressionCodec.DEFAULT_THRESHOLD;
+    private final AtomicInteger connectionCount = new AtomicInteger();
+    private ConnectionOptions connectionOptions = ConnectionOptions.DEFAULT;
+    private final Set<ClientConnection> connections = ConcurrentHashMap.newKeySet();
+    private Executor dispatchExecutor = Dispatcher.DEFAULT_EXECUTOR;
+    private DispatchMode dispatchMode = DispatchMode.INLINE;
+    private int dispatchQueueCapacity = Dispatcher.DEFAULT_CAPACITY;
+    private long handshakeTimeout = DEFAULT_HANDSHAKE_TIMEOUT;
+    private int highWatermark = OutboundQueue.DEFAULT_HIGH_WATERMARK;
     private final String host;
     private final List<ServerListener> listeners = new CopyOnWriteArrayList<>();
+    private SelectorLoop[] loops;
+    private int lowWatermark = OutboundQueue.DEFAULT_LOW_WATERMARK;
+    private long maxConnectionAge;
+    private int maxConnections;
+    private int maxFrameSize = FrameDecoder.DEFAULT_MAX_FRAME_SIZE;
+    private MetricsSink metrics;
+    private final LongSupplier outboundQueueDepth = () -> {
+        long depth = 0;
+        for (ClientConnection connection : connections) depth += connection.getPendingBytes();
+        return depth;
+    };
+    private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
     private ExecutorService pool;
     private int poolSize = 1;
     private final int port;
+    private long readIdleTimeout;
     private final ServerSocket server;
+    private int sessionCacheSize = -1;
+    private int sessionTimeout = -1;
+    private final SSLContext sslContext;
+    private int streamChunkSize = PendingStreams.DEFAULT_CHUNK_SIZE;
+    private int streamWindow = PendingStreams.DEFAULT_WINDOW;
+    private HashedWheelTimer timer = HashedWheelTimer.DEFAULT;
     private TokenProvider tokenProvider;
+    private TransportMode transportMode = TransportMode.BLOCKING;
 
     /**
      * Creates a new command server with no SSL. <br>
@@ -70,7 +147,8 @@ public class CmdServer implements AutoCloseable {
      * @throws IOException
      */
     public CmdServer(String host, int port, char[] token) throws IOException {
-        server = new ServerSocket();
+        sslContext = null;
+        server = openServerSocket();
         this.port = port;
         tokenProvider = new FixedTokenProvider(token == null ? new char[0] : token);
         this.host = host;
@@ -79,7 +157,9 @@ public class CmdServer implements AutoCloseable {
     /**
      * Creates a SSL-enabled command server. <br>
      * All connecting clients must have SSL enabled and they have to use the same
-     * certificate as the one provided here.
+     * certificate as the one provided here. <br>
+     * The SSL context is shared with all servers using the same certificate and
+     * key.
      *
      * @param  host                      host to listen on. Can be <code>null</code>
      * @param  port                      port to listen on
@@ -100,8 +180,30 @@ public class CmdServer implements AutoCloseable {
             UnrecoverableKeyException, KeyManagementException {
         Objects.requireNonNull(cert);
         Objects.requireNonNull(key);
-        SSLContext context = SSLManager.mkSSLContext(cert, key);
-        server = context.getServerSocketFactory().createServerSocket();
+        sslContext = SSLManager.getSSLContext(cert, key);
+        server = openServerSocket();
+        this.port = port;
+        tokenProvider = new FixedTokenProvider(token == null ? new char[0] : token);
+        this.host = host;
+    }
+
+    /**
+     * Creates a SSL-enabled command server using an existing SSL context. <br>
+     * This allows sharing a single context, and its session cache, between
+     * servers, or using a context with custom key and trust managers.
+     *
+     * @param  host                 host to listen on. Can be <code>null</code>
+     * @param  port                 port to listen on
+     * @param  token                authorization token. Can be <code>null</code>
+     * @param  sslContext           initialized SSL context
+     * @throws IOException
+     * @throws NullPointerException if sslContext is null
+     * @see                         #setSessionCache(int, int)
+     */
+    public CmdServer(String host, int port, char[] token, SSLContext sslContext) throws IOException {
+        Objects.requireNonNull(sslContext);
+        this.sslContext = sslContext;
+        server = openServerSocket();
         this.port = port;
         tokenProvider = new FixedTokenProvider(token == null ? new char[0] : token);
         this.host = host;
@@ -119,10 +221,169 @@ public class CmdServer implements AutoCloseable {
         listeners.add(listener);
     }
 
+    /**
+     * Send a packet to all authorized clients
+     *
+     * @param  packet               packet to send
+     * @return                      number of clients the packet was sent to
+     * @throws IOException          if there was an error encoding the packet
+     * @throws NullPointerException if packet is null
+     * @see                         #broadcast(Predicate, Packet)
+     */
+    public int broadcast(Packet packet) throws IOException {
+        return broadcast(connection -> true, packet);
+    }
+
+    /**
+     * Send a packet to all authorized clients matching a filter. <br>
+     * The packet is encoded only once, and the same frame is queued for every
+     * client. Large packets are also compressed at most once per codec used by
+     * the target clients. This method never blocks on writing: clients served by an event
+     * loop are written to by their loop, and all other clients are written to in
+     * the background. Slow clients don't delay sending the packet to other
+     * clients. <br>
+     * Clients that are not writable get the packet according to their overflow
+     * policy, except that {@link OverflowPolicy#BLOCK} queues the packet without
+     * waiting.
+     *
+     * @param  filter               filter selecting target clients
+     * @param  packet               packet to send
+     * @return                      number of clients the packet was sent to.
+     *                              Clients closed in the meantime, and clients
+     *                              that rejected the packet are not counted
+     * @throws IOException          if there was an error encoding the packet
+     * @throws NullPointerException if filter or packet is null
+     */
+    public int broadcast(Predicate<ClientConnection> filter, Packet packet) throws IOException {
+        Objects.requireNonNull(filter);
+        Objects.requireNonNull(packet);
+        if (commandTable != null && packet instanceof CommandPacket command) packet = command.compact(commandTable);
+        ByteBuffer[] frames = new ByteBuffer[CompressionCodec.values().length];
+        int sent = 0;
+        for (ClientConnection connection : connections) if (filter.test(connection)) {
+            CompressionCodec codec = connection.getCompression();
+            ByteBuffer frame = frames[codec.ordinal()];
+            if (frame == null) {
+                ByteBuffer encoded = frames[CompressionCodec.NONE.ordinal()];
+                if (encoded == null) frames[CompressionCodec.NONE.ordinal()] = encoded = packet.encode(BufferPool.HEAP)
+                        .asReadOnlyBuffer();
+                frame = frames[codec.ordinal()] = codec.compressFrame(encoded, BufferPool.HEAP, compressionThreshold)
+                        .asReadOnlyBuffer();
+            }
+            if (connection.sendFrame(frame, ASYNC_EXECUTOR)) sent++;
+        }
+        return sent;
+    }
+
     @Override
     public void close() throws IOException {
-        pool.shutdownNow();
+        if (loops != null) for (SelectorLoop loop : loops) loop.close();
+        if (pool != null) pool.shutdownNow();
         server.close();
+        ServerSocket[] acceptorSockets = this.acceptorSockets;
+        if (acceptorSockets != null) for (ServerSocket socket : acceptorSockets) if (socket != null) socket.close();
+    }
+
+    /**
+     * Get number of threads accepting connections
+     *
+     * @return number of acceptors
+     * @see    #setAcceptors(int)
+     */
+    public int getAcceptors() {
+        return acceptors;
+    }
+
+    /**
+     * Get table of commands sent by their code
+     *
+     * @return command table, or <code>null</code> if there is none
+     * @see    #setCommandTable(String...)
+     */
+    public CommandTable getCommandTable() {
+        return commandTable;
+    }
+
+    /**
+     * Get compression codecs accepted from clients
+     *
+     * @return unmodifiable list of accepted codecs
+     * @see    #setCompression(CompressionCodec...)
+     */
+    public List<CompressionCodec> getCompression() {
+        return compression;
+    }
+
+    /**
+     * Get minimum data length of packets compressed by connections
+     *
+     * @return compression threshold in bytes
+     */
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    /**
+     * Get all authorized clients. <br>
+     * The returned collection is a live view, which is safe to iterate while
+     * clients connect and disconnect.
+     *
+     * @return unmodifiable collection of authorized clients
+     */
+    public Collection<ClientConnection> getConnections() {
+        return Collections.unmodifiableSet(connections);
+    }
+
+    /**
+     * Get executor calling listeners of connections
+     *
+     * @return dispatch executor
+     * @see    #setDispatchExecutor(Executor)
+     */
+    public Executor getDispatchExecutor() {
+        return dispatchExecutor;
+    }
+
+    /**
+     * Get current dispatch mode
+     *
+     * @return dispatch mode
+     * @see    #setDispatchMode(DispatchMode)
+     */
+    public DispatchMode getDispatchMode() {
+        return dispatchMode;
+    }
+
+    /**
+     * Get maximum number of received packets of a single connection waiting to
+     * be handled
+     *
+     * @return dispatch queue capacity
+     * @see    #setDispatchQueueCapacity(int)
+     */
+    public int getDispatchQueueCapacity() {
+        return dispatchQueueCapacity;
+    }
+
+    /**
+     * Get time clients have to authenticate in
+     *
+     * @return handshake timeout in milliseconds, or <code>0</code> if disabled
+     * @see    #setHandshakeTimeout(long)
+     */
+    public long getHandshakeTimeout() {
+        return handshakeTimeout;
+    }
+
+    /**
+     * Get high watermark of outbound buffers of new connections
+     *
+     * @return number of pending bytes above which a connection becomes not
+     *         writable
+     * @see    #setWatermarks(int, int)
+     */
+    public int getHighWatermark() {
+        return highWatermark;
     }
 
     /**
@@ -134,6 +395,85 @@ public class CmdServer implements AutoCloseable {
         return Collections.unmodifiableList(listeners);
     }
 
+    /**
+     * Get low watermark of outbound buffers of new connections
+     *
+     * @return number of pending bytes below which a connection becomes writable
+     *         again
+     * @see    #setWatermarks(int, int)
+     */
+    public int getLowWatermark() {
+        return lowWatermark;
+    }
+
+    /**
+     * Get TCP options of the server socket and accepted connections
+     *
+     * @return connection options
+     * @see    #setConnectionOptions(ConnectionOptions)
+     */
+    public ConnectionOptions getConnectionOptions() {
+        return connectionOptions;
+    }
+
+    /**
+     * Get number of currently open connections, including unauthorized ones.
+     *
+     * @return number of open connections
+     */
+    public int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    /**
+     * Get maximum time a client can stay connected for
+     *
+     * @return maximum connection age in milliseconds, or <code>0</code> if
+     *         unlimited
+     * @see    #setMaxConnectionAge(long)
+     */
+    public long getMaxConnectionAge() {
+        return maxConnectionAge;
+    }
+
+    /**
+     * Get maximum number of simultaneous connections
+     *
+     * @return maximum number of connections, or <code>0</code> if unlimited
+     */
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * Get maximum accepted frame length
+     *
+     * @return maximum frame length in bytes
+     */
+    public int getMaxFrameSize() {
+        return maxFrameSize;
+    }
+
+    /**
+     * Get sink receiving measurements of this server
+     *
+     * @return metrics sink, or <code>null</code> if there is none
+     * @see    #setMetrics(MetricsSink)
+     */
+    public MetricsSink getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Get overflow policy of new connections
+     *
+     * @return overflow policy
+     * @see    #setOverflowPolicy(OverflowPolicy)
+     */
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
     /**
      * Get current thread pool size
      *
@@ -143,6 +483,79 @@ public class CmdServer implements AutoCloseable {
         return poolSize;
     }
 
+    /**
+     * Get maximum time clients can stay silent for
+     *
+     * @return read idle timeout in milliseconds, or <code>0</code> if disabled
+     * @see    #setReadIdleTimeout(long)
+     */
+    public long getReadIdleTimeout() {
+        return readIdleTimeout;
+    }
+
+    /**
+     * Get maximum number of TLS sessions cached for resumption
+     *
+     * @return cache size, <code>0</code> if there is no limit, or
+     *         <code>-1</code> if the SSL context's setting is used
+     * @see    #setSessionCache(int, int)
+     */
+    public int getSessionCacheSize() {
+        return sessionCacheSize;
+    }
+
+    /**
+     * Get time TLS sessions can be resumed for
+     *
+     * @return timeout in seconds, <code>0</code> if there is no limit, or
+     *         <code>-1</code> if the SSL context's setting is used
+     * @see    #setSessionCache(int, int)
+     */
+    public int getSessionTimeout() {
+        return sessionTimeout;
+    }
+
+    /**
+     * Get maximum data length of chunks of streamed responses sent by
+     * connections
+     *
+     * @return chunk size in bytes
+     * @see    ClientConnection#respondStream(int)
+     */
+    public int getStreamChunkSize() {
+        return streamChunkSize;
+    }
+
+    /**
+     * Get number of chunks clients may send ahead when connections read streamed
+     * responses
+     *
+     * @return window in chunks
+     * @see    ClientConnection#requestStream(String, String...)
+     */
+    public int getStreamWindow() {
+        return streamWindow;
+    }
+
+    /**
+     * Get timer enforcing timeouts of connections
+     *
+     * @return timer
+     * @see    #setTimer(HashedWheelTimer)
+     */
+    public HashedWheelTimer getTimer() {
+        return timer;
+    }
+
+    /**
+     * Get current transport mode
+     *
+     * @return current transport mode
+     */
+    public TransportMode getTransportMode() {
+        return transportMode;
+    }
+
     /**
      * Get current token provider's class. <br>
      * For security reasons it's not supported to retrieve current token provider.
@@ -155,11 +568,301 @@ public class CmdServer implements AutoCloseable {
         return tokenProvider.getClass();
     }
 
+    /**
+     * Check if this server is bound and accepting connections. <br>
+     * This delegates to {@link ServerSocket#isBound()}
+     *
+     * @return <code>true</code> if the server was bound by {@link #start()}
+     */
+    public boolean isBound() {
+        return server.isBound();
+    }
+
+    /**
+     * Set number of threads accepting connections. <br>
+     * Each acceptor has its own server socket bound to the same port with
+     * {@link StandardSocketOptions#SO_REUSEPORT}, so the operating system
+     * spreads incoming connections between them. This helps with sudden bursts
+     * of connections, like all clients reconnecting after a restart. The first
+     * acceptor runs on the thread calling {@link #start()}, the others on new
+     * daemon threads. <br>
+     * On platforms that don't support <code>SO_REUSEPORT</code> a single
+     * acceptor is used. It only accepts connections and hands them off to the
+     * worker threads or event loops, so SSL handshakes and rejections of
+     * clients over the limit never block it. <br>
+     * Errors accepting a connection are retried after a short delay. If an
+     * acceptor stops for any other reason, the server is closed and
+     * {@link #start()} throws the error. <br>
+     * Default value for new server instances is <code>1</code>. <br>
+     * You can only set number of acceptors on unbound servers.
+     *
+     * @param  acceptors                number of acceptors
+     * @throws IllegalStateException    if the server is already bound
+     * @throws IllegalArgumentException if acceptors is less than 1
+     */
+    public void setAcceptors(int acceptors) {
+        if (server.isBound()) throw new IllegalStateException("Already bound");
+        if (acceptors < 1) throw new IllegalArgumentException("acceptors can't be less than 1");
+        this.acceptors = acceptors;
+    }
+
+    /**
+     * Set table of frequently used commands. <br>
+     * The table is sent to every client during authentication, and from then on
+     * both sides send commands from the table as a one or two byte code instead
+     * of their name. Commands are ordered from the most frequent one, as only
+     * the first 64 commands take a single byte. <br>
+     * By default there is no table. <br>
+     * You can only set the table on unbound servers.
+     *
+     * @param  commands                 command names, or nothing to remove the
+     *                                  table
+     * @throws IllegalStateException    if the server is already bound
+     * @throws NullPointerException     if commands or any of the commands is null
+     * @throws IllegalArgumentException if any command appears more than once
+     */
+    public void setCommandTable(String... commands) {
+        if (server.isBound()) throw new IllegalStateException("Already bound");
+        commandTable = commands.length == 0 ? null : new CommandTable(List.of(commands));
+    }
+
+    /**
+     * Set compression codecs accepted from clients. <br>
+     * During authentication, each connection uses the first codec offered by the
+     * client that is also accepted by the server, and both sides compress large
+     * packets with it from then on. If there is no such codec, the connection is
+     * not compressed. <br>
+     * By default no codecs are accepted. <br>
+     * You can only set the codecs on unbound servers.
+     *
+     * @param  compression              accepted codecs
+     * @throws IllegalStateException    if the server is already bound
+     * @throws NullPointerException     if compression or any of the codecs is null
+     * @see                             #setCompressionThreshold(int)
+     */
+    public void setCompression(CompressionCodec... compression) {
+        if (server.isBound()) throw new IllegalStateException("Already bound");
+        this.compression = List.of(compression);
+    }
+
+    /**
+     * Set minimum data length of packets compressed by connections. <br>
+     * Smaller packets are sent uncompressed, as compressing them costs more than
+     * it saves. <br>
+     * Default value for new server instances is
+     * {@link CompressionCodec#DEFAULT_THRESHOLD}. <br>
+     * You can only set the threshold on unbound servers.
+     *
+     * @param  compressionThreshold     threshold in bytes
+     * @throws IllegalStateException    if the server is already bound
+     * @throws IllegalArgumentException if compressionThreshold is less than 0
+     */
+    public void setCompressionThreshold(int compressionThreshold) {
+        if (server.isBound()) throw new IllegalStateException("Already bound");
+        if (compressionThreshold < 0)
+            throw new IllegalArgumentException("compressionThreshold can't be less than 0");
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    /**
+     * Set TCP options of the server socket and accepted connections, like
+     * <code>TCP_NODELAY</code>, buffer sizes and the accept backlog. <br>
+     * Default value for new server instances is
+     * {@link ConnectionOptions#DEFAULT}. <br>
+     * You can only set the options on unbound servers.
+     *
+     * @param  connectionOptions
+     * @throws IllegalStateException if the server is already bound
+     * @throws NullPointerException  if connectionOptions is null
+     */
+    public void setConnectionOptions(ConnectionOptions connectionOptions) {
+        Objects.requireNonNull(connectionOptions);
+        if (server.isBound()) throw new IllegalStateException("Already bound");
+        this.connectionOptions = connectionOptions;
+    }
+
+    /**
+     * Set executor calling listeners in {@link DispatchMode#EXECUTOR} and
+     * {@link DispatchMode#ORDERED} modes. <br>
+     * It's shared by all connections. Default executor for new server instances
+     * is {@link Dispatcher#DEFAULT_EXECUTOR}, running every task on a new virtual
+     * thread. <br>
+     * You can only set the executor on unbound servers.
+     *
+     * @param  dispatchExecutor
+     * @throws IllegalStateException if the server is already bound
+     * @throws NullPointerException  if dispatchExecutor is null
+     */
+    public void setDispatchExecutor(Executor dispatchExecutor) {
+        if (server.isBound()) throw new IllegalStateException("Already bound");
+        Objects.requireNonNull(dispatchExecutor);
+        this.dispatchExecutor = dispatchExecutor;
+    }
+
+    /**
+     * Set how received packets are passed to listeners. <br>
+     * Default mode for new server instances is {@link DispatchMode#INLINE},
+     * meaning listeners are called on the thread reading the connection. In other
+     * modes listeners are called on the dispatch executor, so a slow listener
+     * doesn't stop the connection from reading. <br>
+     * Authentication, pings and responses to requests sent with
+     * {@link ClientConnection#request(String, String...)} are always handled on
+     * the reading thread. <br>
+     * You can only set dispatch mode on unbound servers.
+     *
+     * @param  dispatchMode
+     * @throws IllegalStateException if the server is already bound
+     * @throws NullPointerException  if dispatchMode is null
+     * @see                          #setDispatchExecutor(Executor)
+     */
+    public void setDispatchMode(DispatchMode dispatchMode) {
+        if (server.isBound()) throw new IllegalStateException("Already bound");
+        Objects.requireNonNull(dispatchMode);
+        this.dispatchMode = dispatchMode;
+    }
+
+    /**
+     * Set maximum number of received packets of a single connection waiting to
+     * be handled. <br>
+     * When the queue of a connection is full, the server stops reading from it
+     * until listeners catch up. <br>
+     * Default value for new server instances is
+     * {@link Dispatcher#DEFAULT_CAPACITY}. <br>
+     * You can only set the capacity on unbound servers.
+     *
+     * @param  dispatchQueueCapacity
+     * @throws IllegalStateException    if the server is already bound
+     * @throws IllegalArgumentException if dispatchQueueCapacity is less than 1
+     */
+    public void setDispatchQueueCapacity(int dispatchQueueCapacity) {
+        if (server.isBound()) throw new IllegalStateException("Already bound");
+        if (dispatchQueueCapacity < 1)
+            throw new IllegalArgumentException("dispatchQueueCapacity can't be less than 1");
+        this.dispatchQueueCapacity = dispatchQueueCapacity;
+    }
+
+    /**
+     * Set time clients have to authenticate in. <br>
+     * Clients that don't send a valid token in time, including clients that
+     * don't send anything at all, are sent a {@link DisconnectPacket} and
+     * disconnected with {@link DisconnectReason#HANDSHAKE_TIMEOUT}, so they
+     * don't occupy a thread forever. The time includes the SSL handshake on
+     * SSL-enabled servers. <br>
+     * Default value for new server instances is
+     * {@link #DEFAULT_HANDSHAKE_TIMEOUT}. <br>
+     * You can only set the timeout on unbound servers.
+     *
+     * @param  handshakeTimeout         handshake timeout in milliseconds.
+     *                                  <code>0</code> means no timeout
+     * @throws IllegalStateException    if the server is already bound
+     * @throws IllegalArgumentException if handshakeTimeout is less than 0
+     */
+    public void setHandshakeTimeout(long handshakeTimeout) {
+        if (server.isBound()) throw new IllegalStateException("Already bound");
+        if (handshakeTimeout < 0) throw new IllegalArgumentException("handshakeTimeout can't be less than 0");
+        this.handshakeTimeout = handshakeTimeout;
+    }
+
+    /**
+     * Set maximum time a client can stay connected for. <br>
+     * Clients connected for longer are sent a {@link DisconnectPacket} and
+     * disconnected with {@link DisconnectReason#MAX_AGE_EXCEEDED}. This can be
+     * used to periodically rebalance long-lived connections between servers.
+     * <br>
+     * Default value for new server instances is <code>0</code>, meaning there is
+     * no limit. <br>
+     * You can only set the limit on unbound servers.
+     *
+     * @param  maxConnectionAge         maximum connection age in milliseconds
+     * @throws IllegalStateException    if the server is already bound
+     * @throws IllegalArgumentException if maxConnectionAge is less than 0
+     */
+    public void setMaxConnectionAge(long maxConnectionAge) {
+        if (server.isBound()) throw new IllegalStateException("Already bound");
+        if (maxConnectionAge < 0) throw new IllegalArgumentException("maxConnectionAge can't be less than 0");
+        this.maxConnectionAge = maxConnectionAge;
+    }
+
+    /**
+     * Set maximum number of simultaneous connections. <br>
+     * Clients connecting over the limit are sent a {@link DisconnectPacket} and
+     * disconnected immediately. <br>
+     * Default value for new server instances is <code>0</code>, meaning there is
+     * no limit. <br>
+     * You can only set the limit on unbound servers.
+     *
+     * @param  maxConnections
+     * @throws IllegalStateException    if the server is already bound
+     * @throws IllegalArgumentException if maxConnections is less than 0
+     */
+    public void setMaxConnections(int maxConnections) {
+        if (server.isBound()) throw new IllegalStateException("Already bound");
+        if (maxConnections < 0) throw new IllegalArgumentException("maxConnections can't be less than 0");
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * Set maximum length of frames received from clients. <br>
+     * Clients sending a frame declaring a larger length are disconnected before
+     * any memory is allocated for it. <br>
+     * Default value for new server instances is
+     * {@link FrameDecoder#DEFAULT_MAX_FRAME_SIZE}. <br>
+     * You can only set the limit on unbound servers.
+     *
+     * @param  maxFrameSize             maximum frame length in bytes, including the
+     *                                  packet ID
+     * @throws IllegalStateException    if the server is already bound
+     * @throws IllegalArgumentException if maxFrameSize is less than 1
+     */
+    public void setMaxFrameSize(int maxFrameSize) {
+        if (server.isBound()) throw new IllegalStateException("Already bound");
+        if (maxFrameSize < 1) throw new IllegalArgumentException("maxFrameSize can't be less than 1");
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    /**
+     * Set sink receiving measurements of this server, such as connection counts,
+     * packets and bytes sent and received, and decoding and dispatch times. <br>
+     * Use {@link Metrics} to collect them and expose them through JMX. <br>
+     * By default there is no sink, and nothing is measured. <br>
+     * You can only set the sink on unbound servers.
+     *
+     * @param  metrics               metrics sink, or <code>null</code> to remove it
+     * @throws IllegalStateException if the server is already bound
+     */
+    public void setMetrics(MetricsSink metrics) {
+        if (server.isBound()) throw new IllegalStateException("Already bound");
+        this.metrics = metrics;
+    }
+
+    /**
+     * Set what happens to packets sent to a client that doesn't read them as
+     * fast as they are sent. <br>
+     * Default value for new server instances is {@link OverflowPolicy#BLOCK},
+     * meaning the sending thread waits for the client. <br>
+     * The policy can be changed for each connection with
+     * {@link ClientConnection#setOverflowPolicy(OverflowPolicy)}. <br>
+     * You can only set the default policy on unbound servers.
+     *
+     * @param  overflowPolicy
+     * @throws IllegalStateException if the server is already bound
+     * @throws NullPointerException  if overflowPolicy is null
+     * @see                          ClientConnection#isWritable()
+     */
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        if (server.isBound()) throw new IllegalStateException("Already bound");
+        Objects.requireNonNull(overflowPolicy);
+        this.overflowPolicy = overflowPolicy;
+    }
+
     /**
      * Set thread pool size. <br>
      * If there is no space for new threads in the current thread pool, no new
      * client will be able to connect. <br>
      * Default pool size for new server instances is <code>1</code><br>
+     * In {@link TransportMode#SELECTOR} mode this is the number of event loops,
+     * each of them capable of serving many clients at once. <br>
+     * Pool size is ignored in {@link TransportMode#VIRTUAL_THREADS} mode. <br>
      * You can only set thread pool size on unbound servers.
      *
      * @param  poolSize
@@ -172,6 +875,108 @@ public class CmdServer implements AutoCloseable {
         this.poolSize = poolSize;
     }
 
+    /**
+     * Set maximum time clients can stay silent for. <br>
+     * Clients that don't send any packet for longer are sent a
+     * {@link DisconnectPacket} and disconnected with
+     * {@link DisconnectReason#READ_IDLE_TIMEOUT}. Clients send a keep-alive
+     * every 15 seconds by default, so the timeout should be a few times longer
+     * than their ping interval. <br>
+     * Default value for new server instances is <code>0</code>, meaning idle
+     * clients are never disconnected. <br>
+     * You can only set the timeout on unbound servers.
+     *
+     * @param  readIdleTimeout          read idle timeout in milliseconds.
+     *                                  <code>0</code> means no timeout
+     * @throws IllegalStateException    if the server is already bound
+     * @throws IllegalArgumentException if readIdleTimeout is less than 0
+     */
+    public void setReadIdleTimeout(long readIdleTimeout) {
+        if (server.isBound()) throw new IllegalStateException("Already bound");
+        if (readIdleTimeout < 0) throw new IllegalArgumentException("readIdleTimeout can't be less than 0");
+        this.readIdleTimeout = readIdleTimeout;
+    }
+
+    /**
+     * Set size and timeout of the cache of TLS sessions clients can resume. <br>
+     * The settings are applied to the server side of the SSL context when the
+     * server starts. Servers created with the same certificate and key share a
+     * context, and so a single cache, whose settings are the ones applied last.
+     * Use {@link #CmdServer(String, int, char[], SSLContext)} with a context
+     * from {@link SSLManager#mkSSLContext(Certificate, PrivateKey)} for a
+     * separate cache. <br>
+     * By default, the context's settings are kept. Has no effect on servers
+     * without SSL. <br>
+     * You can only set the cache on unbound servers.
+     *
+     * @param  cacheSize                maximum number of cached sessions.
+     *                                  <code>0</code> means no limit
+     * @param  timeout                  time a session can be resumed for, in
+     *                                  seconds. <code>0</code> means no limit
+     * @throws IllegalStateException    if the server is already bound
+     * @throws IllegalArgumentException if cacheSize or timeout is less than 0
+     */
+    public void setSessionCache(int cacheSize, int timeout) {
+        if (server.isBound()) throw new IllegalStateException("Already bound");
+        if (cacheSize < 0) throw new IllegalArgumentException("cacheSize can't be less than 0");
+        if (timeout < 0) throw new IllegalArgumentException("timeout can't be less than 0");
+        sessionCacheSize = cacheSize;
+        sessionTimeout = timeout;
+    }
+
+    /**
+     * Set maximum data length of chunks of streamed responses sent by
+     * connections. <br>
+     * Default value for new server instances is
+     * {@link PendingStreams#DEFAULT_CHUNK_SIZE}. It must fit in the maximum frame
+     * size of clients. <br>
+     * You can only set the chunk size on unbound servers.
+     *
+     * @param  streamChunkSize          chunk size in bytes
+     * @throws IllegalStateException    if the server is already bound
+     * @throws IllegalArgumentException if streamChunkSize is less than 1
+     */
+    public void setStreamChunkSize(int streamChunkSize) {
+        if (server.isBound()) throw new IllegalStateException("Already bound");
+        if (streamChunkSize < 1) throw new IllegalArgumentException("streamChunkSize can't be less than 1");
+        this.streamChunkSize = streamChunkSize;
+    }
+
+    /**
+     * Set number of chunks clients may send ahead when connections read streamed
+     * responses. <br>
+     * Memory used by a single received stream is bounded by this value times the
+     * chunk size of the client. <br>
+     * Default value for new server instances is
+     * {@link PendingStreams#DEFAULT_WINDOW}. <br>
+     * You can only set the window on unbound servers.
+     *
+     * @param  streamWindow             window in chunks
+     * @throws IllegalStateException    if the server is already bound
+     * @throws IllegalArgumentException if streamWindow is less than 1
+     */
+    public void setStreamWindow(int streamWindow) {
+        if (server.isBound()) throw new IllegalStateException("Already bound");
+        if (streamWindow < 1) throw new IllegalArgumentException("streamWindow can't be less than 1");
+        this.streamWindow = streamWindow;
+    }
+
+    /**
+     * Set timer enforcing handshake, read idle and connection age timeouts. <br>
+     * By default all servers share {@link HashedWheelTimer#DEFAULT}, so no
+     * thread is started per connection. <br>
+     * You can only set the timer on unbound servers.
+     *
+     * @param  timer
+     * @throws IllegalStateException if the server is already bound
+     * @throws NullPointerException  if timer is null
+     */
+    public void setTimer(HashedWheelTimer timer) {
+        Objects.requireNonNull(timer);
+        if (server.isBound()) throw new IllegalStateException("Already bound");
+        this.timer = timer;
+    }
+
     /**
      * Sets a new token provider. <br>
      *
@@ -183,21 +988,220 @@ public class CmdServer implements AutoCloseable {
         tokenProvider = provider;
     }
 
+    /**
+     * Set transport mode used to serve connected clients. <br>
+     * Default mode for new server instances is {@link TransportMode#BLOCKING}<br>
+     * You can only set transport mode on unbound servers.
+     *
+     * @param  transportMode
+     * @throws IllegalStateException if the server is already bound, or if
+     *                               {@link TransportMode#SELECTOR} is requested
+     *                               on an SSL-enabled server
+     * @throws NullPointerException  if transportMode is null
+     */
+    public void setTransportMode(TransportMode transportMode) {
+        Objects.requireNonNull(transportMode);
+        if (server.isBound()) throw new IllegalStateException("Already bound");
+        if (transportMode == TransportMode.SELECTOR && server.getChannel() == null)
+            throw new IllegalStateException("Selector transport is not supported on SSL-enabled servers");
+        this.transportMode = transportMode;
+    }
+
+    /**
+     * Set the watermarks bounding outbound buffers of new connections. <br>
+     * A connection becomes not writable when the number of bytes waiting to be
+     * written grows above the high watermark, and writable again when it drains
+     * below the low watermark. Packets sent while a connection is not writable
+     * are handled according to the overflow policy. <br>
+     * Default values for new server instances are
+     * {@link OutboundQueue#DEFAULT_LOW_WATERMARK} and
+     * {@link OutboundQueue#DEFAULT_HIGH_WATERMARK}. <br>
+     * You can only set the watermarks on unbound servers.
+     *
+     * @param  lowWatermark             number of pending bytes below which a
+     *                                  connection becomes writable again
+     * @param  highWatermark            number of pending bytes above which a
+     *                                  connection becomes not writable
+     * @throws IllegalStateException    if the server is already bound
+     * @throws IllegalArgumentException if lowWatermark is less than 0, or
+     *                                  highWatermark is less than lowWatermark
+     * @see                             #setOverflowPolicy(OverflowPolicy)
+     */
+    public void setWatermarks(int lowWatermark, int highWatermark) {
+        if (server.isBound()) throw new IllegalStateException("Already bound");
+        if (lowWatermark < 0) throw new IllegalArgumentException("lowWatermark can't be less than 0");
+        if (highWatermark < lowWatermark)
+            throw new IllegalArgumentException("highWatermark can't be less than lowWatermark");
+        this.lowWatermark = lowWatermark;
+        this.highWatermark = highWatermark;
+    }
+
     /**
      * Bind this server and start listening for connections. <br>
+     * This method blocks until the server is closed. <br>
      * To interact with connected clients use {@link ServerListener}
      *
-     * @throws IOException           if there was an error starting the server
+     * @throws IOException           if there was an error starting the server, or
+     *                               an acceptor failed
      * @throws SocketException       if there was an error binding, or after calling
      *                               {@link #close()}
      * @throws IllegalStateException if the server is already bound
      */
     public void start() throws IOException {
-        pool = poolSize == 1 ? Executors.newSingleThreadExecutor() : Executors.newFixedThreadPool(poolSize);
         if (server.isBound()) throw new IllegalStateException("Already bound");
-        server.bind(new InetSocketAddress(port));
-        while (!isClosed()) {
-            Socket socket = server.accept();
+        if (sslContext != null && sessionCacheSize >= 0)
+            SSLManager.setServerSessionCache(sslContext, sessionCacheSize, sessionTimeout);
+        if (transportMode == TransportMode.VIRTUAL_THREADS) pool = VirtualThreads.newThreadPerTaskExecutor();
+        else pool = poolSize == 1 ? Executors.newSingleThreadExecutor() : Executors.newFixedThreadPool(poolSize);
+        if (transportMode == TransportMode.SELECTOR) {
+            loops = new SelectorLoop[poolSize];
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new SelectorLoop(this);
+                pool.submit(loops[i]);
+            }
+        }
+        boolean reusePort = acceptors > 1
+                && server.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        if (reusePort) server.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        bind(server, port);
+        if (reusePort) try {
+            ServerSocket[] sockets = new ServerSocket[acceptors - 1];
+            acceptorSockets = sockets;
+            for (int i = 0; i < sockets.length; i++) {
+                ServerSocket socket = openServerSocket();
+                sockets[i] = socket;
+                socket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                bind(socket, server.getLocalPort());
+                int acceptor = i + 1;
+                Thread thread = new Thread(() -> {
+                    try {
+                        accept(socket, acceptor);
+                    } catch (IOException | RuntimeException e) {
+                        acceptorFailed(socket, e);
+                    }
+                }, "TrivialPacket acceptor #" + acceptor);
+                thread.setDaemon(true);
+                thread.start();
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        MetricsSink metrics = this.metrics;
+        if (metrics != null) metrics.outboundQueueDepth(outboundQueueDepth);
+        try {
+            accept(server, 0);
+        } catch (IOException | RuntimeException e) {
+            if (!server.isClosed()) close();
+            Exception failure = acceptorFailure;
+            if (failure == null) throw e;
+            throw new IOException("Acceptor failed", failure);
+        } finally {
+            if (metrics != null) metrics.outboundQueueDepthRemoved(outboundQueueDepth);
+        }
+    }
+
+    /**
+     * Adds a connection to the authorized connections
+     *
+     * @param connection authorized connection
+     */
+    void connectionAuthorized(ClientConnection connection) {
+        connections.add(connection);
+    }
+
+    /**
+     * Called exactly once for every accepted connection after it's closed
+     */
+    void connectionClosed() {
+        connectionCount.decrementAndGet();
+        if (metrics != null) metrics.connectionClosed();
+    }
+
+    /**
+     * Removes a closed connection from the authorized connections
+     *
+     * @param connection closed connection
+     */
+    void connectionClosed(ClientConnection connection) {
+        connections.remove(connection);
+    }
+
+    /**
+     * Schedules a timeout of a connection on the server's timer
+     *
+     * @param  task    task to run. It's run on the timer's thread
+     * @param  timeout timeout in milliseconds
+     * @return         handle used to cancel the task
+     */
+    HashedWheelTimer.Timeout schedule(Runnable task, long timeout) {
+        return timer.schedule(task, timeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Get server's token. For internal use.
+     *
+     * @return server token
+     */
+    protected char[] getToken() {
+        return tokenProvider.provide();
+    }
+
+    /**
+     * Accepts connections until the socket is closed, handing them off to the
+     * worker threads or event loops. <br>
+     * Errors accepting a connection while the socket is open, like running out
+     * of file descriptors, are reported to the metrics sink and retried after a
+     * delay doubling with every consecutive error, up to a second.
+     *
+     * @param  acceptor    server socket to accept connections from
+     * @param  nextLoop    index of the event loop the first connection is
+     *                     registered in
+     * @throws IOException if the socket was closed, or the thread was
+     *                     interrupted while waiting to retry
+     */
+    private void accept(ServerSocket acceptor, int nextLoop) throws IOException {
+        if (loops != null) nextLoop %= loops.length;
+        long backoff = 0;
+        while (!acceptor.isClosed()) {
+            Socket socket;
+            try {
+                socket = acceptor.accept();
+            } catch (ClosedChannelException e) {
+                throw new SocketException("Socket closed");
+            } catch (IOException e) {
+                if (acceptor.isClosed()) throw e;
+                if (metrics != null) metrics.acceptFailed(e);
+                backoff = Math.min(Math.max(backoff * 2, MIN_ACCEPT_BACKOFF), MAX_ACCEPT_BACKOFF);
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException e2) {
+                    throw new InterruptedIOException();
+                }
+                continue;
+            }
+            backoff = 0;
+            if (metrics != null) metrics.connectionAccepted();
+            try {
+                connectionOptions.apply(socket);
+            } catch (IOException e) {
+                try {
+                    socket.close();
+                } catch (IOException e2) {}
+                continue;
+            }
+            if (maxConnections > 0 && connectionCount.incrementAndGet() > maxConnections) {
+                connectionCount.decrementAndGet();
+                ASYNC_EXECUTOR.execute(() -> reject(socket));
+                continue;
+            }
+            if (maxConnections <= 0) connectionCount.incrementAndGet();
+            if (metrics != null) metrics.connectionOpened();
+            if (loops != null) {
+                loops[nextLoop].register(socket.getChannel());
+                nextLoop = (nextLoop + 1) % loops.length;
+                continue;
+            }
             pool.submit(() -> {
                 ClientConnection local = null;
                 try (ClientConnection client = new ClientConnection(socket, this)) {
@@ -205,8 +1209,10 @@ public class CmdServer implements AutoCloseable {
                     for (ServerListener ls : listeners) ls.clientConnected(client);
                     client.handle();
                 } catch (Exception e) {} finally {
-                    for (ServerListener ls : listeners) try {
-                        ls.clientDisconnected(local);
+                    connectionClosed();
+                    if (local != null) local.fireDisconnected();
+                    else for (ServerListener ls : listeners) try {
+                        ls.clientDisconnected(null, DisconnectReason.CLOSED);
                     } catch (Exception e) {}
                 }
             });
@@ -214,16 +1220,41 @@ public class CmdServer implements AutoCloseable {
     }
 
     /**
-     * Get server's token. For internal use.
+     * Closes the server after an additional acceptor stopped, unless it stopped
+     * because its socket was closed. <br>
+     * Leaving the server running would leave the acceptor's socket bound with
+     * nobody accepting connections the operating system assigns to it, so
+     * {@link #start()} is ended instead, throwing the failure.
      *
-     * @return server token
+     * @param socket  socket of the acceptor
+     * @param failure error that stopped the acceptor
      */
-    protected char[] getToken() {
-        return tokenProvider.provide();
+    private void acceptorFailed(ServerSocket socket, Exception failure) {
+        if (socket.isClosed()) return;
+        acceptorFailure = failure;
+        try {
+            close();
+        } catch (IOException e) {}
+    }
+
+    private void bind(ServerSocket socket, int port) throws IOException {
+        connectionOptions.apply(socket);
+        socket.bind(host == null ? new InetSocketAddress(port) : new InetSocketAddress(host, port),
+                connectionOptions.getBacklog());
+    }
+
+    private ServerSocket openServerSocket() throws IOException {
+        if (sslContext == null) return ServerSocketChannel.open().socket();
+        SSLServerSocket socket = (SSLServerSocket) sslContext.getServerSocketFactory().createServerSocket();
+        socket.setSSLParameters(SSLManager.mkSSLParameters(sslContext));
+        return socket;
     }
 
-    private boolean isClosed() {
-        return server.isClosed();
+    private void reject(Socket socket) {
+        try (socket) {
+            socket.setSoTimeout(REJECT_TIMEOUT);
+            new DisconnectPacket("Server is full").writeToStream(new DataOutputStream(socket.getOutputStream()));
+        } catch (IOException e) {}
     }
 
 }
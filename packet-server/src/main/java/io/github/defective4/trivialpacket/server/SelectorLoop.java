@@ -0,0 +1,136 @@
+package io.github.defective4.trivialpacket.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import io.github.defective4.trivialpacket.server.event.ServerListener;
+
+/**
+ * A single event loop, multiplexing many non-blocking client connections. <br>
+ * All reads, writes and listener calls of registered connections happen on the
+ * loop's thread.
+ */
+final class SelectorLoop implements Runnable, Closeable {
+    private volatile boolean closed;
+    private final Selector selector;
+    private final CmdServer server;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private volatile Thread thread;
+
+    /**
+     * @param  server
+     * @throws IOException          if the selector could not be opened
+     * @throws NullPointerException if server is null
+     */
+    SelectorLoop(CmdServer server) throws IOException {
+        Objects.requireNonNull(server);
+        this.server = server;
+        selector = Selector.open();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        thread = Thread.currentThread();
+        try {
+            while (!closed) {
+                selector.select();
+                runTasks();
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    ChannelTransport transport = (ChannelTransport) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable()) transport.read();
+                        if (key.isValid() && key.isWritable()) transport.flush();
+                    } catch (Exception e) {
+                        transport.close();
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {} finally {
+            closed = true;
+            try {
+                for (SelectionKey key : selector.keys()) ((ChannelTransport) key.attachment()).close();
+                runTasks();
+                selector.close();
+            } catch (IOException | ClosedSelectorException e) {}
+        }
+    }
+
+    /**
+     * Schedules a task to be run on this loop's thread
+     *
+     * @param task task to run
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        if (!inEventLoop()) selector.wakeup();
+    }
+
+    /**
+     * @return <code>true</code> if the calling thread is this loop's thread
+     */
+    boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Notifies the server that a connection registered in this loop was closed
+     */
+    void connectionClosed() {
+        server.connectionClosed();
+    }
+
+    /**
+     * Registers a newly accepted channel in this loop. <br>
+     * The channel is switched to non-blocking mode.
+     *
+     * @param channel accepted channel
+     */
+    void register(SocketChannel channel) {
+        execute(() -> {
+            ChannelTransport transport = null;
+            try {
+                channel.configureBlocking(false);
+                ClientConnection connection = new ClientConnection(channel, this, server);
+                transport = connection.getTransport();
+                transport.setKey(channel.register(selector, SelectionKey.OP_READ, transport));
+                for (ServerListener ls : server.getListeners()) ls.clientConnected(connection);
+            } catch (Exception e) {
+                if (transport != null) transport.close();
+                else {
+                    try {
+                        channel.close();
+                    } catch (IOException e1) {}
+                    connectionClosed();
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs all scheduled tasks. A failing task doesn't stop the loop, nor the
+     * tasks scheduled after it.
+     */
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) try {
+            task.run();
+        } catch (RuntimeException e) {}
+    }
+}
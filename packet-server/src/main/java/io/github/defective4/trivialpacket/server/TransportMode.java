@@ -0,0 +1,37 @@
+package io.github.defective4.trivialpacket.server;
+
+/**
+ * Transport used by {@link CmdServer} to exchange data with connected clients.
+ *
+ * @see CmdServer#setTransportMode(TransportMode)
+ */
+public enum TransportMode {
+    /**
+     * Every connection is served by its own thread from the server's thread pool,
+     * which blocks while reading packets. <br>
+     * This is the default mode.
+     */
+    BLOCKING,
+    /**
+     * Every connection is served by its own virtual thread, which blocks while
+     * reading packets. <br>
+     * There is no limit on the number of concurrently served clients other than
+     * {@link CmdServer#setMaxConnections(int)}. <br>
+     * On runtimes without virtual threads support, daemon platform threads are
+     * used instead.
+     *
+     * @see io.github.defective4.trivialpacket.common.concurrent.VirtualThreads
+     */
+    VIRTUAL_THREADS,
+    /**
+     * Connections are multiplexed over a small number of event loop threads using
+     * non-blocking channels and a {@link java.nio.channels.Selector}. <br>
+     * Server's pool size determines the number of event loops. <br>
+     * With {@link io.github.defective4.trivialpacket.common.concurrent.DispatchMode#INLINE}
+     * dispatch, listener callbacks are called on the event loop thread, so they
+     * should not block for long periods of time. Other dispatch modes run them
+     * on the dispatch executor. <br>
+     * This mode is not available on SSL-enabled servers.
+     */
+    SELECTOR
+}
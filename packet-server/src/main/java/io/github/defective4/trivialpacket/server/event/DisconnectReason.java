@@ -0,0 +1,49 @@
+package io.github.defective4.trivialpacket.server.event;
+
+import io.github.defective4.trivialpacket.server.CmdServer;
+
+/**
+ * Reason a client connection was closed for
+ *
+ * @see ServerListener#clientDisconnected(io.github.defective4.trivialpacket.server.ClientConnection,
+ *      DisconnectReason)
+ */
+public enum DisconnectReason {
+    /**
+     * The client sent an invalid token or an invalid first packet
+     */
+    AUTHENTICATION_FAILED,
+
+    /**
+     * The connection was closed by the client, or because of an error
+     */
+    CLOSED,
+
+    /**
+     * The client didn't authenticate in time
+     *
+     * @see CmdServer#setHandshakeTimeout(long)
+     */
+    HANDSHAKE_TIMEOUT,
+
+    /**
+     * The connection was open for longer than allowed
+     *
+     * @see CmdServer#setMaxConnectionAge(long)
+     */
+    MAX_AGE_EXCEEDED,
+
+    /**
+     * The client didn't read packets as fast as they were sent, with the
+     * {@link io.github.defective4.trivialpacket.common.io.OverflowPolicy#DISCONNECT}
+     * policy
+     */
+    OUTBOUND_OVERFLOW,
+
+    /**
+     * The client didn't send anything for too long
+     *
+     * @see CmdServer#setReadIdleTimeout(long)
+     */
+    READ_IDLE_TIMEOUT
+}
@@ -35,6 +35,20 @@ public interface ServerListener {
      */
     void clientDisconnected(ClientConnection connection) throws Exception;
 
+    /**
+     * Called when a client disconnects, with the reason the connection was
+     * closed for. <br>
+     * This is the method called by the server. By default it calls
+     * {@link #clientDisconnected(ClientConnection)}, so override either of them.
+     *
+     * @param  connection client connection. Can be <code>null</code>
+     * @param  reason     disconnect reason
+     * @throws Exception
+     */
+    default void clientDisconnected(ClientConnection connection, DisconnectReason reason) throws Exception {
+        clientDisconnected(connection);
+    }
+
     /**
      * Called when a client sends a ping packet to the server
      *
@@ -70,4 +84,19 @@ public interface ServerListener {
      * @throws Exception
      */
     void responseReceived(ClientConnection connection, byte[] data) throws Exception;
+
+    /**
+     * Called when the outbound buffer of a connection becomes writable or not
+     * writable. <br>
+     * Unlike other events, it may be called on any thread that sends packets to
+     * the client, and should return quickly.
+     *
+     * @param  connection client connection
+     * @param  writable   <code>true</code> if the buffer drained below the low
+     *                    watermark, <code>false</code> if it grew above the high
+     *                    watermark
+     * @throws Exception
+     * @see               ClientConnection#isWritable()
+     */
+    default void writabilityChanged(ClientConnection connection, boolean writable) throws Exception {}
 }
@@ -47,8 +47,7 @@ public class ServerSidePacketHandler extends PacketHandler {
 
     @PacketReceiver
     public void onPing(PingPacket e) throws Exception {
-        for (ServerListener ls : server.getListeners()) ls.clientPinged(e.getId());
-        connection.sendPacket(new PingPacket(e.getId()));
+        for (ServerListener ls : server.getListeners()) ls.clientPinged(e.getPingID());
     }
 
     @PacketReceiver